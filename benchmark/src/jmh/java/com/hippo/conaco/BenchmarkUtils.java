@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.hippo.streampipe.OutputStreamPipe;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+
+final class BenchmarkUtils {
+    private BenchmarkUtils() {}
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    static File createTempDir(String name) throws IOException {
+        File dir = File.createTempFile(name, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Can't create temp dir " + dir);
+        }
+        return dir;
+    }
+
+    static void writeFile(File file, byte[] bytes) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDir(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        dir.delete();
+    }
+
+    /**
+     * Daemon threads, so a benchmark fork never hangs on exit.
+     */
+    static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + mCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * An OutputStream drops everything.
+     */
+    static final OutputStream NULL_OUTPUT_STREAM = new OutputStream() {
+        @Override
+        public void write(int b) {}
+
+        @Override
+        public void write(byte[] b, int off, int len) {}
+    };
+
+    /**
+     * Runs commands at once in the calling thread.
+     */
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * A builder of Conaco with a 32 MB memory cache and no disk cache.
+     * Unikery is called in the thread which finishes the load.
+     *
+     * @param useMemoryCache false to keep loaded values out of memory cache
+     */
+    static Conaco.Builder<Integer> conacoBuilder(boolean useMemoryCache) {
+        Conaco.Builder<Integer> builder = new Conaco.Builder<>();
+        builder.hasMemoryCache = true;
+        builder.memoryCacheMaxSize = 32 * 1024 * 1024;
+        builder.okHttpClient = new OkHttpClient();
+        builder.valueHelper = new LengthHelper(useMemoryCache);
+        builder.callbackExecutor = DIRECT;
+        return builder;
+    }
+
+    /**
+     * A task builder which decodes in the thread of the disk or network job.
+     */
+    static ConacoTask.Builder<Integer> taskBuilder(LatchUnikery unikery, String key, String url) {
+        ConacoTask.Builder<Integer> builder = new ConacoTask.Builder<>();
+        builder.unikery = unikery;
+        builder.key = key;
+        builder.url = url;
+        builder.decodeExecutor = DIRECT;
+        return builder;
+    }
+
+    static void putToDisk(Conaco<?> conaco, String key, byte[] bytes) throws IOException {
+        OutputStreamPipe pipe = conaco.getBeerBelly().getDiskCache().getOutputStreamPipe(key);
+        try {
+            pipe.obtain();
+            pipe.open().write(bytes);
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.conaco;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk cache hit throughput of Conaco. One operation is a burst of loads
+ * for different keys in disk cache. Values are kept out of memory cache,
+ * so every load goes through the disk executor of Conaco.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DiskHitBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({"1", "2", "4", "8"})
+    public int concurrency;
+
+    @Param({"32768"})
+    public int entrySize;
+
+    private File mDir;
+    private Conaco<Integer> mConaco;
+    private String[] mKeys;
+    private LatchUnikery[] mUnikeries;
+
+    @Setup
+    public void setup() throws IOException {
+        mDir = BenchmarkUtils.createTempDir("disk-hit");
+        Conaco.Builder<Integer> builder = BenchmarkUtils.conacoBuilder(false);
+        builder.hasDiskCache = true;
+        builder.diskCacheDir = mDir;
+        builder.diskCacheMaxSize = 64 * 1024 * 1024;
+        builder.diskConcurrency = concurrency;
+        mConaco = builder.build();
+
+        byte[] bytes = BenchmarkUtils.randomBytes(entrySize);
+        mKeys = new String[BURST];
+        mUnikeries = new LatchUnikery[BURST];
+        for (int i = 0; i < BURST; i++) {
+            mKeys[i] = "key" + i;
+            mUnikeries[i] = new LatchUnikery();
+            BenchmarkUtils.putToDisk(mConaco, mKeys[i], bytes);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkUtils.deleteDir(mDir);
+    }
+
+    @Benchmark
+    public void burst() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(BURST);
+        for (int i = 0; i < BURST; i++) {
+            mUnikeries[i].setLatch(latch);
+            mConaco.load(BenchmarkUtils.taskBuilder(mUnikeries[i], mKeys[i], null));
+        }
+        latch.await();
+        for (int i = 0; i < BURST; i++) {
+            mUnikeries[i].getValue();
+        }
+    }
+}
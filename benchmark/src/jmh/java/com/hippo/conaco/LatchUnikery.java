@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.conaco;
+
+import com.hippo.streampipe.InputStreamPipe;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Counts down a latch when its load is done.
+ */
+class LatchUnikery implements Unikery<Integer> {
+
+    private volatile int mTaskId = INVALID_ID;
+    private volatile CountDownLatch mLatch;
+    private volatile Integer mValue;
+    private volatile boolean mFailed;
+
+    /**
+     * Count down the latch when the next load is done, null for none.
+     */
+    public void setLatch(CountDownLatch latch) {
+        mLatch = latch;
+    }
+
+    /**
+     * Return the value of the last load, throw if it failed.
+     */
+    public Integer getValue() {
+        if (mFailed) {
+            throw new IllegalStateException("Load failed");
+        }
+        return mValue;
+    }
+
+    private void done() {
+        CountDownLatch latch = mLatch;
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    @Override
+    public void setTaskId(int id) {
+        mTaskId = id;
+    }
+
+    @Override
+    public int getTaskId() {
+        return mTaskId;
+    }
+
+    @Override
+    public void onMiss(int source) {}
+
+    @Override
+    public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {}
+
+    @Override
+    public void onWait() {}
+
+    @Override
+    public void onGetValue(Integer value, int source) {
+        mValue = value;
+        done();
+    }
+
+    @Override
+    public void onGetPipe(InputStreamPipe pipe) {
+        done();
+    }
+
+    @Override
+    public void onFailure() {
+        mFailed = true;
+        done();
+    }
+
+    @Override
+    public void onCancel() {
+        mFailed = true;
+        done();
+    }
+}
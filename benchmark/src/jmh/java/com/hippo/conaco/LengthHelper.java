@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.conaco;
+
+import com.hippo.streampipe.InputStreamPipe;
+
+import java.io.IOException;
+
+/**
+ * Decodes a value to its length in bytes, so benchmarks
+ * measure the load pipeline instead of a decoder.
+ */
+class LengthHelper implements ValueHelper<Integer> {
+
+    private final BufferPool mBufferPool = new BufferPool(64 * 1024, 8);
+    private final boolean mUseMemoryCache;
+
+    /**
+     * @param useMemoryCache false to load every value from disk or network
+     */
+    public LengthHelper(boolean useMemoryCache) {
+        mUseMemoryCache = useMemoryCache;
+    }
+
+    @Override
+    public Integer decode(InputStreamPipe isPipe) {
+        try {
+            isPipe.obtain();
+            return (int) IOUtils.copy(isPipe.open(), BenchmarkUtils.NULL_OUTPUT_STREAM, mBufferPool);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            isPipe.close();
+            isPipe.release();
+        }
+    }
+
+    @Override
+    public int sizeOf(String key, Integer value) {
+        return value;
+    }
+
+    @Override
+    public void onAddToMemoryCache(String key, Integer value) {}
+
+    @Override
+    public void onRemoveFromMemoryCache(String key, Integer value) {}
+
+    @Override
+    public boolean useMemoryCache(String key, Integer value) {
+        return mUseMemoryCache;
+    }
+}
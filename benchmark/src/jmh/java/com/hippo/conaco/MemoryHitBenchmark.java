@@ -0,0 +1,78 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.conaco;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Conaco#load(ConacoTask.Builder)} of a key in memory cache.
+ * The value is delivered before load returns, so one operation
+ * is the whole hit path: register, lookup and callback.
+ * <pre>
+ *   ./gradlew :benchmark:jmh -Pjmh.include=MemoryHit
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MemoryHitBenchmark {
+
+    @Param({"1", "1024"})
+    public int keys;
+
+    @Param({"8"})
+    public int shards;
+
+    private Conaco<Integer> mConaco;
+    private String[] mKeys;
+
+    @Setup
+    public void setup() {
+        Conaco.Builder<Integer> builder = BenchmarkUtils.conacoBuilder(true);
+        builder.memoryCacheShardCount = shards;
+        mConaco = builder.build();
+        mKeys = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            mKeys[i] = "key" + i;
+            mConaco.getBeerBelly().putToMemory(mKeys[i], 1024);
+        }
+    }
+
+    /**
+     * Each thread loads with its own Unikery.
+     */
+    @State(Scope.Thread)
+    public static class Caller {
+        final LatchUnikery unikery = new LatchUnikery();
+        int index;
+    }
+
+    @Benchmark
+    public Integer hit(Caller caller) {
+        String key = mKeys[caller.index++ % mKeys.length];
+        mConaco.load(BenchmarkUtils.taskBuilder(caller.unikery, key, null));
+        return caller.unikery.getValue();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a key trace through a {@link MemoryCache}, like {@code ValueCache}
+ * does for each load: get, and put on miss. Hit ratio of the last replay
+ * is printed when the trial ends, the score is the time of one replay.
+ * <p>
+ * {@link #trace} is the name of a built-in synthetic trace, or the path
+ * of a recorded trace file. Each line of the file is a key, optionally
+ * followed by a space and the size of its value in bytes.
+ * <pre>
+ *   ./gradlew :benchmark:jmh -Pjmh.include=MemoryTrace
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MemoryTraceBenchmark {
+
+    private static final int DEFAULT_SIZE = 64 * 1024;
+
+    @Param({"lru", "tinyLfu"})
+    public String policy;
+
+    /**
+     * {@code gallery}: a hot set of thumbnails shown again and again,
+     * mixed with long scrolls through new pictures.
+     * {@code zipf}: keys drawn from a Zipf distribution.
+     */
+    @Param({"gallery", "zipf"})
+    public String trace;
+
+    @Param({"16"})
+    public int cacheSizeMb;
+
+    private String[] mKeys;
+    private int[] mSizes;
+    private int mHits;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        if ("gallery".equals(trace)) {
+            gallery(keys, sizes);
+        } else if ("zipf".equals(trace)) {
+            zipf(keys, sizes);
+        } else {
+            read(trace, keys, sizes);
+        }
+        mKeys = keys.toArray(new String[keys.size()]);
+        mSizes = new int[sizes.size()];
+        for (int i = 0; i < mSizes.length; i++) {
+            mSizes[i] = sizes.get(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println(String.format(Locale.US, "%n%s %s %dMB: hit ratio %.4f over %d requests",
+                policy, trace, cacheSizeMb, (double) mHits / mKeys.length, mKeys.length));
+    }
+
+    /**
+     * 400 thumbnails of 16K are shown with Zipf popularity, every 2000 requests
+     * there is a scroll through 1500 new pictures of 64K which are never seen again.
+     */
+    private static void gallery(List<String> keys, List<Integer> sizes) {
+        Random random = new Random(1);
+        Zipf zipf = new Zipf(400, 0.9, random);
+        int picture = 0;
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 2000; i++) {
+                keys.add("thumb" + zipf.next());
+                sizes.add(16 * 1024);
+            }
+            for (int i = 0; i < 1500; i++) {
+                keys.add("picture" + picture++);
+                sizes.add(DEFAULT_SIZE);
+            }
+        }
+    }
+
+    private static void zipf(List<String> keys, List<Integer> sizes) {
+        Random random = new Random(1);
+        Zipf zipf = new Zipf(10000, 0.8, random);
+        for (int i = 0; i < 100000; i++) {
+            keys.add("key" + zipf.next());
+            sizes.add(DEFAULT_SIZE);
+        }
+    }
+
+    private static void read(String path, List<String> keys, List<Integer> sizes) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                int index = line.indexOf(' ');
+                if (index == -1) {
+                    keys.add(line);
+                    sizes.add(DEFAULT_SIZE);
+                } else {
+                    keys.add(line.substring(0, index));
+                    sizes.add(Integer.parseInt(line.substring(index + 1).trim()));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (keys.isEmpty()) {
+            throw new IOException("Empty trace " + path);
+        }
+    }
+
+    private MemoryCache<Integer> createCache() {
+        int maxSize = cacheSizeMb * 1024 * 1024;
+        MemoryCache.Callback<Integer> callback = new MemoryCache.Callback<Integer>() {
+            @Override
+            public int sizeOf(String key, Integer value) {
+                return value;
+            }
+
+            @Override
+            public void onEntryAdded(String key, Integer value) {}
+
+            @Override
+            public void onEntryRemoved(boolean evicted, String key, Integer oldValue, Integer newValue) {}
+        };
+        if ("lru".equals(policy)) {
+            return new LruMemoryCache<>(maxSize, callback);
+        } else {
+            return new TinyLfuMemoryCache<>(maxSize, callback);
+        }
+    }
+
+    @Benchmark
+    public int replay() {
+        MemoryCache<Integer> cache = createCache();
+        String[] keys = mKeys;
+        int[] sizes = mSizes;
+        int hits = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (cache.get(keys[i]) != null) {
+                hits++;
+            } else {
+                cache.put(keys[i], sizes[i]);
+            }
+        }
+        mHits = hits;
+        return hits;
+    }
+
+    /**
+     * Draws ranks from 0 to n - 1, rank k has weight {@code 1 / (k + 1) ^ s}.
+     */
+    private static class Zipf {
+
+        private final double[] mCumulative;
+        private final Random mRandom;
+
+        public Zipf(int n, double s, Random random) {
+            mCumulative = new double[n];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += 1 / Math.pow(i + 1, s);
+                mCumulative[i] = sum;
+            }
+            for (int i = 0; i < n; i++) {
+                mCumulative[i] /= sum;
+            }
+            mRandom = random;
+        }
+
+        public int next() {
+            int index = Arrays.binarySearch(mCumulative, mRandom.nextDouble());
+            return index >= 0 ? index : Math.min(-index - 1, mCumulative.length - 1);
+        }
+    }
+}
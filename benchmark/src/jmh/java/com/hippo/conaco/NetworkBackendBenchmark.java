@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Many slow downloads at the same time, each body trickles in
+ * {@link #CHUNKS} chunks from a local HTTP server. Compares the
+ * default 3-thread {@link PriorityExecutor} with {@link ThreadPerTaskExecutor}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NetworkBackendBenchmark {
+
+    private static final int CHUNKS = 4;
+    private static final int CHUNK_SIZE = 4096;
+
+    @Param({"pool", "threadPerTask"})
+    public String backend;
+
+    @Param({"16", "256"})
+    public int downloads;
+
+    @Param({"5"})
+    public int chunkDelayMs;
+
+    private HttpServer mServer;
+    private String mUrl;
+    private OkHttpClient mClient;
+    private Executor mExecutor;
+    private BufferPool mBufferPool;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] chunk = BenchmarkUtils.randomBytes(CHUNK_SIZE);
+        final long delay = chunkDelayMs;
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, CHUNKS * CHUNK_SIZE);
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    for (int i = 0; i < CHUNKS; i++) {
+                        Thread.sleep(delay);
+                        os.write(chunk);
+                        os.flush();
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                } finally {
+                    os.close();
+                }
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool(BenchmarkUtils.threadFactory("Server")));
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/image";
+
+        mClient = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(downloads, 5, TimeUnit.MINUTES))
+                .build();
+        if ("pool".equals(backend)) {
+            mExecutor = new PriorityExecutor(3, false, BenchmarkUtils.threadFactory("Network"));
+        } else {
+            mExecutor = new ThreadPerTaskExecutor("Network");
+        }
+        mBufferPool = new BufferPool(64 * 1024, 8);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private void download() throws IOException {
+        Response response = mClient.newCall(new Request.Builder().url(mUrl).build()).execute();
+        InputStream is = response.body().byteStream();
+        try {
+            IOUtils.copy(is, BenchmarkUtils.NULL_OUTPUT_STREAM, mBufferPool);
+        } finally {
+            is.close();
+        }
+    }
+
+    @Benchmark
+    public void load() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(downloads);
+        for (int i = 0; i < downloads; i++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        download();
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+        latch.await();
+    }
+}
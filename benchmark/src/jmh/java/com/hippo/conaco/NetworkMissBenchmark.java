@@ -0,0 +1,113 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.conaco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end latency of network misses of Conaco against a local HTTP server.
+ * Each miss goes through the disk and network executors of Conaco, it is
+ * downloaded to a temp-dir disk cache and decoded from it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NetworkMissBenchmark {
+
+    @Param({"1", "8"})
+    public int misses;
+
+    @Param({"262144"})
+    public int bodySize;
+
+    private HttpServer mServer;
+    private String mUrl;
+    private File mDir;
+    private Conaco<Integer> mConaco;
+    private LatchUnikery[] mUnikeries;
+    private int mKeyGenerator;
+
+    @Setup
+    public void setup() throws IOException {
+        final byte[] body = BenchmarkUtils.randomBytes(bodySize);
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool(BenchmarkUtils.threadFactory("Server")));
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/image";
+
+        mDir = BenchmarkUtils.createTempDir("network-miss");
+        Conaco.Builder<Integer> builder = BenchmarkUtils.conacoBuilder(false);
+        builder.hasDiskCache = true;
+        builder.diskCacheDir = mDir;
+        builder.diskCacheMaxSize = 64 * 1024 * 1024;
+        mConaco = builder.build();
+
+        mUnikeries = new LatchUnikery[misses];
+        for (int i = 0; i < misses; i++) {
+            mUnikeries[i] = new LatchUnikery();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mServer.stop(0);
+        BenchmarkUtils.deleteDir(mDir);
+    }
+
+    @Benchmark
+    public void load() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(misses);
+        for (int i = 0; i < misses; i++) {
+            // A new key each time, it is never in disk cache
+            String key = "key" + mKeyGenerator++;
+            mUnikeries[i].setLatch(latch);
+            mConaco.load(BenchmarkUtils.taskBuilder(mUnikeries[i], key, mUrl + "?" + key));
+        }
+        latch.await();
+        for (int i = 0; i < misses; i++) {
+            mUnikeries[i].getValue();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.conaco;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of loading one key many times at once. One operation loads the
+ * same amount of tasks spread over {@code keys} distinct keys in disk cache.
+ * Tasks of a key wait for the first one and share its value, fewer keys
+ * means fewer disk reads and more waiting tasks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SameKeyContentionBenchmark {
+
+    private static final int TASKS = 256;
+    private static final int CONCURRENCY = 4;
+
+    @Param({"1", "16", "256"})
+    public int keys;
+
+    @Param({"4096"})
+    public int entrySize;
+
+    private File mDir;
+    private Conaco<Integer> mConaco;
+    private String[] mKeys;
+    private LatchUnikery[] mUnikeries;
+
+    @Setup
+    public void setup() throws IOException {
+        mDir = BenchmarkUtils.createTempDir("same-key");
+        Conaco.Builder<Integer> builder = BenchmarkUtils.conacoBuilder(false);
+        builder.hasDiskCache = true;
+        builder.diskCacheDir = mDir;
+        builder.diskCacheMaxSize = 64 * 1024 * 1024;
+        builder.diskConcurrency = CONCURRENCY;
+        mConaco = builder.build();
+
+        byte[] bytes = BenchmarkUtils.randomBytes(entrySize);
+        mKeys = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            mKeys[i] = "key" + i;
+            BenchmarkUtils.putToDisk(mConaco, mKeys[i], bytes);
+        }
+        mUnikeries = new LatchUnikery[TASKS];
+        for (int i = 0; i < TASKS; i++) {
+            mUnikeries[i] = new LatchUnikery();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkUtils.deleteDir(mDir);
+    }
+
+    @Benchmark
+    public void tasks() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            mUnikeries[i].setLatch(latch);
+            mConaco.load(BenchmarkUtils.taskBuilder(mUnikeries[i], mKeys[i % keys], null));
+        }
+        latch.await();
+        for (int i = 0; i < TASKS; i++) {
+            mUnikeries[i].getValue();
+        }
+    }
+}
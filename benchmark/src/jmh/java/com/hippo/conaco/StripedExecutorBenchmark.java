@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.conaco;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Scaling of the disk executor of Conaco. One operation is a burst of
+ * jobs which block like a read from flash storage, without using CPU.
+ * Disk cache files in {@link DiskHitBenchmark} are in page cache, so it
+ * can't show the wait for storage.
+ * <p>
+ * With distinct keys, the burst should take about
+ * {@code BURST / concurrency} times the latency. With one key, the jobs
+ * run one by one whatever the concurrency is.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StripedExecutorBenchmark {
+
+    private static final int BURST = 64;
+
+    @Param({"1", "2", "4", "8"})
+    public int concurrency;
+
+    @Param({"200"})
+    public int latencyMicros;
+
+    @Param({"64", "1"})
+    public int keys;
+
+    private StripedExecutor mExecutor;
+    private String[] mKeys;
+
+    @Setup
+    public void setup() {
+        mExecutor = new StripedExecutor(concurrency, BenchmarkUtils.threadFactory("disk"));
+        mKeys = new String[BURST];
+        for (int i = 0; i < BURST; i++) {
+            mKeys[i] = "key" + (i % keys);
+        }
+    }
+
+    @Benchmark
+    public void burst() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(BURST);
+        final long latency = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                LockSupport.parkNanos(latency);
+                latch.countDown();
+            }
+        };
+        for (int i = 0; i < BURST; i++) {
+            mExecutor.execute(job, mKeys[i]);
+        }
+        latch.await();
+    }
+}
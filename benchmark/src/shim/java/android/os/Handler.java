@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+/**
+ * Benchmarks set their own callback executor, nothing should be posted.
+ */
+public class Handler {
+
+    public Handler(Looper looper) {}
+
+    public final boolean post(Runnable r) {
+        throw new UnsupportedOperationException("No main thread in benchmarks");
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        throw new UnsupportedOperationException("No main thread in benchmarks");
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of byte arrays for copying streams.
+ * All buffers have the same size.
+ * <p>
+ * {@link DataContainer#save(java.io.InputStream, long, String, ProgressNotifier)}
+ * can use the pool of {@link Conaco#getBufferPool()} too.
+ */
+public class BufferPool {
+
+    private final int mBufferSize;
+    private final int mMaxCount;
+    private final ArrayDeque<byte[]> mBuffers;
+
+    private long mAcquireCount;
+    private long mAllocationCount;
+
+    /**
+     * @param bufferSize the size of each buffer
+     * @param maxCount the max count of buffers kept in the pool
+     */
+    public BufferPool(int bufferSize, int maxCount) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+        }
+        if (maxCount < 0) {
+            throw new IllegalArgumentException("Max count must not be negative: " + maxCount);
+        }
+        mBufferSize = bufferSize;
+        mMaxCount = maxCount;
+        mBuffers = new ArrayDeque<>(maxCount);
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Take a buffer from the pool, or allocate one if the pool is empty.
+     * Call {@link #release(byte[])} after using it.
+     */
+    @NonNull
+    public byte[] acquire() {
+        byte[] buffer;
+        synchronized (this) {
+            mAcquireCount++;
+            buffer = mBuffers.poll();
+            if (buffer == null) {
+                mAllocationCount++;
+            }
+        }
+        if (buffer == null) {
+            buffer = new byte[mBufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Put the buffer back to the pool. It is dropped
+     * if the pool is full or the size doesn't match.
+     */
+    public void release(@NonNull byte[] buffer) {
+        if (buffer.length != mBufferSize) {
+            return;
+        }
+        synchronized (this) {
+            if (mBuffers.size() < mMaxCount) {
+                mBuffers.offer(buffer);
+            }
+        }
+    }
+
+    /**
+     * Return how many times {@link #acquire()} is called.
+     */
+    public synchronized long getAcquireCount() {
+        return mAcquireCount;
+    }
+
+    /**
+     * Return how many buffers are allocated. It stops growing
+     * when the pool is warmed up and the pool is large enough.
+     */
+    public synchronized long getAllocationCount() {
+        return mAllocationCount;
+    }
+
+    /**
+     * Return the count of buffers in the pool now.
+     */
+    public synchronized int getPooledCount() {
+        return mBuffers.size();
+    }
+}
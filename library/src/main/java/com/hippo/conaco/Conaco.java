@@ -16,17 +16,25 @@
 
 package com.hippo.conaco;
 
-import android.os.Process;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.IntDef;
-import android.util.Log;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.hippo.beerbelly.BeerBelly;
-import com.hippo.yorozuya.thread.PriorityThreadFactory;
-import com.hippo.yorozuya.thread.SerialThreadExecutor;
+import com.hippo.streampipe.InputStreamPipe;
 
+import java.io.File;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -38,6 +46,53 @@ public class Conaco<V> {
 
     private static final String TAG = Conaco.class.getSimpleName();
 
+    /**
+     * Holds the handler of UI thread. It is created when it is
+     * first used, so Conaco can be used on a JVM without Looper.
+     */
+    private static class MainHandlerHolder {
+        static final Handler INSTANCE = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Runs commands in UI thread. A command runs at once
+     * if it is UI thread now, otherwise it is posted.
+     */
+    public static final Executor UI_THREAD_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                command.run();
+            } else {
+                MainHandlerHolder.INSTANCE.post(command);
+            }
+        }
+    };
+
+    // About one frame
+    private static final long FRAME_DELAY_MS = 16L;
+    private static final int TRIM_ENTRIES_PER_FRAME = 4;
+
+    /**
+     * Runs commands in UI thread in the next frame.
+     */
+    private static final Executor NEXT_FRAME_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            MainHandlerHolder.INSTANCE.postDelayed(command, FRAME_DELAY_MS);
+        }
+    };
+
+    /**
+     * Runs commands in the calling thread.
+     */
+    static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
     @IntDef({SOURCE_MEMORY, SOURCE_DISK, SOURCE_NETWORK})
     @Retention(RetentionPolicy.SOURCE)
     public @interface Source {}
@@ -46,36 +101,153 @@ public class Conaco<V> {
     public static final int SOURCE_DISK = 1;
     public static final int SOURCE_NETWORK = 2;
 
+    @IntDef({NETWORK_BACKEND_POOL, NETWORK_BACKEND_THREAD_PER_TASK})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface NetworkBackend {}
+
+    /**
+     * Network jobs run in a fixed-size {@link PriorityExecutor}.
+     */
+    public static final int NETWORK_BACKEND_POOL = 0;
+    /**
+     * Each network job runs in its own thread, a virtual thread if supported.
+     * See {@link ThreadPerTaskExecutor}.
+     */
+    public static final int NETWORK_BACKEND_THREAD_PER_TASK = 1;
+
+    @IntDef({MEMORY_POLICY_LRU, MEMORY_POLICY_TINY_LFU})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface MemoryPolicy {}
+
+    /**
+     * Evict the least recently used values from memory cache.
+     * See {@link LruMemoryCache}.
+     */
+    public static final int MEMORY_POLICY_LRU = 0;
+    /**
+     * Keep frequently used values in memory cache, a long scroll
+     * through new values doesn't flush them. See {@link TinyLfuMemoryCache}.
+     */
+    public static final int MEMORY_POLICY_TINY_LFU = 1;
+
     private ValueHelper<V> mHelper;
     private ValueCache<V> mCache;
+    @Nullable
+    private ValuePool<V> mValuePool;
+    @Nullable
+    private MemoryTrimmer mMemoryTrimmer;
     private OkHttpClient mOkHttpClient;
 
-    private Register<V> mRegister;
+    // Changed with mLock held, id lookups are lock-free
+    private final Register<V> mRegister;
 
-    private final SerialThreadExecutor mDiskExecutor;
-    private final ThreadPoolExecutor mNetworkExecutor;
+    private final StripedExecutor mDiskExecutor;
+    private final Executor mNetworkExecutor;
+    private final ThreadPoolExecutor mDecodeExecutor;
+    private final Executor mCallbackExecutor;
+    private final BufferPool mBufferPool;
+    private final HostLimiter mHostLimiter;
+    @Nullable
+    private final PartialStore mPartialStore;
+    private final Executor mSegmentExecutor;
+    private final File mSegmentDir;
+    @Nullable
+    private final MetricsListener mMetrics;
+    // Guarded by mLock
+    private final Map<Object, List<PrefetchUnikery>> mPrefetchGroups = new HashMap<>();
+    // Guarded by mLock
+    private final ArrayDeque<Callback> mCallbacks = new ArrayDeque<>();
+    // Guarded by mLock, true while a thread hands callbacks to executors
+    private boolean mDispatching;
+    // Guarded by mLock, tasks to check memory cache for after the lock is released
+    private final ArrayDeque<ConacoTask<V>> mMemoryChecks = new ArrayDeque<>();
     private final AtomicInteger mIdGenerator;
 
+    /**
+     * The lock for state of tasks, held when a task
+     * is loaded, cancelled or goes to its next step.
+     */
+    final Object mLock = new Object();
+
     boolean mDebug;
 
     private Conaco(Builder<V> builder) {
         mHelper = builder.valueHelper;
-        mCache = new ValueCache<>(builder, mHelper);
+        mValuePool = builder.valuePoolSize > 0 ? new ValuePool<V>(builder.valuePoolSize) : null;
+        mCache = new ValueCache<>(builder, mValuePool);
+        ShardedMemoryCache<V> memoryCache = mCache.getMemoryCache();
+        mMemoryTrimmer = memoryCache != null ?
+                new MemoryTrimmer(memoryCache, NEXT_FRAME_EXECUTOR, TRIM_ENTRIES_PER_FRAME) : null;
         mOkHttpClient = builder.okHttpClient;
 
         mRegister = new Register<>();
 
-        mDiskExecutor = new SerialThreadExecutor(3000L, new LinkedList<Runnable>(),
-                new PriorityThreadFactory(TAG + "-Disk", Process.THREAD_PRIORITY_BACKGROUND));
-        mNetworkExecutor = new ThreadPoolExecutor(3, 3, 5L, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>(),
-                new PriorityThreadFactory(TAG + "-Network", Process.THREAD_PRIORITY_BACKGROUND));
+        mDiskExecutor = new StripedExecutor(builder.diskConcurrency,
+                Platform.newBackgroundThreadFactory(TAG + "-Disk"));
+        if (builder.networkExecutor != null) {
+            mNetworkExecutor = builder.networkExecutor;
+        } else if (builder.networkBackend == NETWORK_BACKEND_THREAD_PER_TASK) {
+            mNetworkExecutor = new ThreadPerTaskExecutor(TAG + "-Network");
+        } else {
+            mNetworkExecutor = new PriorityExecutor(builder.networkThreadCount, builder.networkLifo,
+                    Platform.newBackgroundThreadFactory(TAG + "-Network"));
+        }
+
+        mDecodeExecutor = new ThreadPoolExecutor(builder.decodeThreadCount, builder.decodeThreadCount,
+                3L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                Platform.newBackgroundThreadFactory(TAG + "-Decode"));
+        mDecodeExecutor.allowCoreThreadTimeOut(true);
+
+        mCallbackExecutor = builder.callbackExecutor != null ?
+                builder.callbackExecutor : UI_THREAD_EXECUTOR;
+
+        mBufferPool = new BufferPool(builder.bufferSize, builder.bufferPoolSize);
+        mHostLimiter = newHostLimiter(builder);
+        mPartialStore = builder.partialDownloadDir != null ?
+                new PartialStore(builder.partialDownloadDir) : null;
+        if (builder.segmentExecutor != null) {
+            mSegmentExecutor = builder.segmentExecutor;
+        } else {
+            ThreadPoolExecutor segmentExecutor = new ThreadPoolExecutor(builder.segmentThreadCount,
+                    builder.segmentThreadCount, 3L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    Platform.newBackgroundThreadFactory(TAG + "-Segment"));
+            segmentExecutor.allowCoreThreadTimeOut(true);
+            mSegmentExecutor = segmentExecutor;
+        }
+        mSegmentDir = builder.hasDiskCache ? builder.diskCacheDir : null;
+        mMetrics = builder.metricsListener;
 
         mIdGenerator = new AtomicInteger();
 
         mDebug = builder.debug;
     }
 
+    private static HostLimiter newHostLimiter(Builder<?> builder) {
+        int maxPerHost;
+        int maxPerHttp2Host;
+        if (builder.networkExecutor != null) {
+            maxPerHost = 2;
+            maxPerHttp2Host = 8;
+        } else if (builder.networkBackend == NETWORK_BACKEND_THREAD_PER_TASK) {
+            maxPerHost = 6;
+            maxPerHttp2Host = 32;
+        } else {
+            // Don't leave threads of the pool idle if all tasks are of one host
+            maxPerHost = Math.max(2, builder.networkThreadCount);
+            maxPerHttp2Host = Math.max(8, builder.networkThreadCount);
+        }
+        if (builder.maxRequestsPerHost != 0) {
+            maxPerHost = builder.maxRequestsPerHost;
+        }
+        if (builder.maxRequestsPerHttp2Host != 0) {
+            maxPerHttp2Host = builder.maxRequestsPerHttp2Host;
+        }
+        boolean lifo = builder.networkExecutor instanceof PriorityExecutor ?
+                ((PriorityExecutor) builder.networkExecutor).isLifo() :
+                builder.networkExecutor == null && builder.networkLifo;
+        return new HostLimiter(maxPerHost, maxPerHttp2Host, lifo);
+    }
+
     /**
      * True to enable debug info
      */
@@ -91,12 +263,119 @@ public class Conaco<V> {
     }
 
     /**
-     * Don't use memory in non-UI thread!!!
+     * Release memory for the level from {@code ComponentCallbacks2.onTrimMemory(int)}.
+     * Memory cache and value pool are trimmed to a part of their max sizes,
+     * they are cleared if the app is in background. Memory cache is trimmed
+     * a few entries per frame while UI is visible, at once if UI is hidden.
+     */
+    public void trimMemory(int level) {
+        if (mMemoryTrimmer != null) {
+            mMemoryTrimmer.trim(level);
+        }
+        float ratio = MemoryTrimmer.getKeepRatio(level);
+        if (mValuePool != null && ratio < 1.0f) {
+            mValuePool.trimToSize((int) (mValuePool.maxSize() * ratio));
+        }
+    }
+
+    /**
+     * Change max size of memory cache. If it shrinks, entries are
+     * evicted a few per frame, then the new max size takes effect.
+     */
+    public void setMemoryCacheMaxSize(int maxSize) {
+        if (mMemoryTrimmer == null) {
+            throw new IllegalStateException("No memory cache");
+        }
+        mMemoryTrimmer.resize(maxSize);
+    }
+
+    /**
+     * Return the pool of values evicted from memory cache,
+     * null if it is disabled. See {@link Builder#valuePoolSize}.
      */
-    public BeerBelly getBeerBelly() {
+    @Nullable
+    public ValuePool<V> getValuePool() {
+        return mValuePool;
+    }
+
+    /**
+     * Return the cache. It is thread-safe.
+     */
+    public BeerBelly<V> getBeerBelly() {
         return mCache;
     }
 
+    /**
+     * Return the buffer pool used to copy streams.
+     */
+    public BufferPool getBufferPool() {
+        return mBufferPool;
+    }
+
+    /**
+     * Return the metrics listener set in builder, null if not set.
+     */
+    @Nullable
+    public MetricsListener getMetricsListener() {
+        return mMetrics;
+    }
+
+    /**
+     * Post the callback to run in the executor. It is handed to the executor
+     * by {@link #dispatchCallbacks()} after the lock is released, so the
+     * Unikery is never called with the lock held, even if the executor
+     * runs it at once.
+     * Lock must be held.
+     */
+    void postCallback(Executor executor, Runnable runnable) {
+        mCallbacks.offer(new Callback(executor, runnable));
+    }
+
+    /**
+     * Check memory cache for queued tasks, then hand posted callbacks
+     * to their executors in post order.
+     * Call it after the lock is released. If another thread is
+     * dispatching, it dispatches these callbacks too.
+     */
+    void dispatchCallbacks() {
+        if (Thread.holdsLock(mLock)) {
+            // The one holding the lock dispatches them
+            return;
+        }
+
+        checkMemory();
+
+        synchronized (mLock) {
+            if (mDispatching || mCallbacks.isEmpty()) {
+                return;
+            }
+            mDispatching = true;
+        }
+
+        boolean done = false;
+        try {
+            for (;;) {
+                Callback callback;
+                synchronized (mLock) {
+                    callback = mCallbacks.poll();
+                    if (callback == null) {
+                        mDispatching = false;
+                        done = true;
+                        return;
+                    }
+                }
+                callback.executor.execute(callback.runnable);
+            }
+        } finally {
+            if (!done) {
+                // The callback throws, let the next call go on
+                synchronized (mLock) {
+                    mDispatching = false;
+                }
+            }
+        }
+    }
+
     private void startSameKeyTask(ConacoTask<V> task) {
         // Start another task with the same key
         ConacoTask<V> next = mRegister.getByKey(task.getKey());
@@ -105,57 +384,135 @@ public class Conaco<V> {
         }
     }
 
+    /**
+     * Queue the task to check memory cache. It is started
+     * if it misses, by the thread releasing the lock.
+     * Lock must be held.
+     */
     private void startConacoTask(ConacoTask<V> task) {
-        Unikery<V> unikery = task.getUnikery();
+        if (!task.isStarted()) {
+            mMemoryChecks.offer(task);
+        }
+    }
+
+    /**
+     * Check memory cache for queued tasks. The cache is read without
+     * the lock, the lock is only held to deliver the result.
+     */
+    private void checkMemory() {
+        for (;;) {
+            ConacoTask<V> task;
+            synchronized (mLock) {
+                task = mMemoryChecks.poll();
+            }
+            if (task == null) {
+                return;
+            }
 
+            V value = getFromMemory(task);
+            synchronized (mLock) {
+                if (onMemoryChecked(task, value)) {
+                    task.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deliver the value got from memory cache, or the miss.
+     * Lock must be held.
+     *
+     * @return true if the task need to be started
+     */
+    private boolean onMemoryChecked(ConacoTask<V> task, @Nullable V value) {
+        if (mRegister.get(task.getId()) != task || task.isStarted()) {
+            // Cancelled or checked by another thread
+            return false;
+        }
+
+        Unikery<V> unikery = task.getUnikery();
         if (unikery == null) {
             // Unikery is gone, finish the task
             finishConacoTask(task);
-            return;
+            return false;
         }
 
-        if (task.skipDecode()) {
-            // We need InputStreamPipe, no need to check memory cache
-            unikery.onMiss(SOURCE_MEMORY);
-            task.start();
-        } else {
-            String key = task.getKey();
-            V value = null;
+        if (value != null) {
+            // Get the object, finish the task
+            task.deliverValue(unikery, value, SOURCE_MEMORY, false);
+            shareValue(task, value, SOURCE_MEMORY);
+            finishConacoTask(task);
+            return false;
+        }
 
-            // Get from memory
-            if (key != null && task.useMemoryCache() && mHelper.useMemoryCache(key, null)) {
-                value = mCache.getFromMemory(key);
+        ConacoTask<V> loading = mRegister.getByKey(task.getKey());
+        if (loading != null && loading != task) {
+            if (!loading.canUpgradeTo(task)) {
+                // The prefetch task went too far to take over, wait
+                task.deliverWait(unikery);
+                return false;
             }
 
-            if (value != null) {
-                // Get the object, finish the task
-                unikery.onGetValue(value, SOURCE_MEMORY);
-                finishConacoTask(task);
-            } else {
-                // Can't get value from memory cache, start the task
-                unikery.onMiss(SOURCE_MEMORY);
-                task.start();
+            // Take over the prefetch task, it keeps running for this one
+            mRegister.unregister(task.getId());
+            Unikery<V> prefetchUnikery = loading.getUnikery();
+            if (prefetchUnikery != null) {
+                prefetchUnikery.setTaskId(Unikery.INVALID_ID);
             }
+            unikery.setTaskId(loading.getId());
+            loading.upgradeTo(task, unikery);
+            return false;
         }
+
+        // Can't get value from memory cache, start the task
+        task.deliverMiss(unikery, SOURCE_MEMORY);
+        return true;
     }
 
     /**
-     * Load the Conaco task from the build.
+     * Return the value of the task in memory cache, null if not found.
+     * Call it without the lock.
+     */
+    @Nullable
+    private V getFromMemory(ConacoTask<V> task) {
+        if (task.skipDecode()) {
+            // We need InputStreamPipe, no need to check memory cache
+            return null;
+        }
+
+        String key = task.getKey();
+        V value = null;
+
+        // Get from memory
+        if (key != null && task.useMemoryCache() && mHelper.useMemoryCache(key, null)) {
+            value = mCache.getFromMemory(key);
+        }
+
+        if (mMetrics != null && key != null && task.useMemoryCache()) {
+            mMetrics.onLookup(SOURCE_MEMORY, value != null);
+        }
+
+        return value;
+    }
+
+    /**
+     * Build and register the task.
+     * Lock must be held.
      *
-     * Call it in Ui thread only.
+     * @return the task, null if it waits for another task with the same key
      */
-    public void load(ConacoTask.Builder<V> builder) {
+    private ConacoTask<V> registerConacoTask(ConacoTask.Builder<V> builder) {
         builder.isValid();
 
         if (mDebug) {
-            Log.d(TAG, "Key " + builder.key);
-            Log.d(TAG, "Url " + builder.url);
+            Platform.d(TAG, "Key " + builder.key);
+            Platform.d(TAG, "Url " + builder.url);
         }
 
         Unikery<V> unikery = builder.unikery;
 
         // Cancel first
-        cancel(unikery);
+        cancelLocked(unikery);
 
         // Build conaco task
         int id;
@@ -169,65 +526,372 @@ public class Conaco<V> {
         if (builder.okHttpClient == null) builder.okHttpClient = mOkHttpClient;
         if (builder.diskExecutor == null) builder.diskExecutor = mDiskExecutor;
         if (builder.networkExecutor == null) builder.networkExecutor = mNetworkExecutor;
+        if (builder.decodeExecutor == null) builder.decodeExecutor = mDecodeExecutor;
+        if (builder.bufferPool == null) builder.bufferPool = mBufferPool;
+        if (builder.metricsListener == null) builder.metricsListener = mMetrics;
+        if (builder.callbackExecutor == null) builder.callbackExecutor = mCallbackExecutor;
+        builder.hostLimiter = mHostLimiter;
+        builder.partialStore = mPartialStore;
+        builder.segmentExecutor = mSegmentExecutor;
+        builder.segmentDir = mSegmentDir;
         ConacoTask<V> task = builder.build();
 
+        ConacoTask<V> loading = mRegister.getByKey(task.getKey());
         if (!mRegister.register(id, task)) {
-            startConacoTask(task);
+            return task;
+        } else if (loading.canUpgradeTo(task)) {
+            // The prefetch task might have put the value to memory already,
+            // check memory first. It is taken over if it misses.
+            return task;
         } else {
             // The key is repeated, wait
-            unikery.onWait();
+            task.deliverWait(unikery);
+            // Someone else wants it too, hurry up the loading one
+            loading.reprioritize(task.getPriority());
+            return null;
         }
     }
 
+    /**
+     * Load the Conaco task from the build.
+     *
+     * Call it in any thread. It runs in the calling thread, nothing is posted
+     * to UI thread. The lock of Conaco is only held to register the task and
+     * deliver the result, memory cache is read without it. Only Unikery callbacks
+     * go to the callback executor, it is UI thread by default. Call it in
+     * the thread of the callback executor if the Unikery isn't thread-safe.
+     */
+    public void load(ConacoTask.Builder<V> builder) {
+        synchronized (mLock) {
+            loadLocked(builder);
+        }
+        dispatchCallbacks();
+    }
+
+    private void loadLocked(ConacoTask.Builder<V> builder) {
+        ConacoTask<V> task = registerConacoTask(builder);
+        if (task != null) {
+            startConacoTask(task);
+        }
+    }
+
+    /**
+     * Load many Conaco tasks at once. All memory cache hits are
+     * delivered in one pass, the misses are loaded from disk
+     * in a few batched disk jobs instead of one job for each.
+     * <p>
+     * All builders are checked first, nothing is loaded if one of them is invalid.
+     *
+     * Call it in any thread, see {@link #load(ConacoTask.Builder)}.
+     */
+    public void loadAll(Collection<ConacoTask.Builder<V>> builders) {
+        for (ConacoTask.Builder<V> builder : builders) {
+            builder.isValid();
+        }
+
+        List<ConacoTask<V>> tasks = new ArrayList<>(builders.size());
+        try {
+            synchronized (mLock) {
+                for (ConacoTask.Builder<V> builder : builders) {
+                    ConacoTask<V> task = registerConacoTask(builder);
+                    if (task != null) {
+                        tasks.add(task);
+                    }
+                }
+            }
+        } finally {
+            try {
+                // Registered tasks must run even if a later one fails
+                checkMemoryAll(tasks);
+            } finally {
+                dispatchCallbacks();
+            }
+        }
+    }
+
+    /**
+     * Check memory cache for the tasks without the lock,
+     * then start the misses in a few batched disk jobs.
+     */
+    private void checkMemoryAll(List<ConacoTask<V>> tasks) {
+        List<V> values = new ArrayList<>(tasks.size());
+        for (int i = 0, n = tasks.size(); i < n; i++) {
+            values.add(getFromMemory(tasks.get(i)));
+        }
+
+        synchronized (mLock) {
+            List<ConacoTask<V>> misses = new ArrayList<>(tasks.size());
+            for (int i = 0, n = tasks.size(); i < n; i++) {
+                ConacoTask<V> task = tasks.get(i);
+                if (onMemoryChecked(task, values.get(i))) {
+                    misses.add(task);
+                }
+            }
+            ConacoTask.startAll(misses, mDiskExecutor.getConcurrency());
+        }
+    }
+
+    /**
+     * Fill caches for the task without a Unikery. The {@code unikery} of the builder
+     * is ignored. If {@code useMemoryCache} of the builder is true, the value
+     * is decoded and put to memory cache, otherwise only disk cache and
+     * data container are filled.
+     * <p>
+     * Prefetch runs at {@link ConacoTask#PRIORITY_LOW} or lower. If a task with
+     * the same key is loaded while the prefetch is running, the prefetch task
+     * keeps running for the task. Callbacks of prefetch only drop it from its
+     * group, they run in the thread which dispatches queued callbacks after the
+     * lock is released. It is usually a job thread, but it may be UI thread
+     * when it calls {@link #load(ConacoTask.Builder)} or {@link #cancel(Unikery)}.
+     * The builder is copied, it is not changed.
+     *
+     * Call it in any thread.
+     *
+     * @param group the group to cancel with {@link #cancelPrefetch(Object)}, can be null
+     */
+    public void prefetch(ConacoTask.Builder<V> builder, @Nullable Object group) {
+        // Don't touch the builder of the caller
+        builder = builder.copy();
+        PrefetchUnikery unikery = new PrefetchUnikery(group);
+        builder.unikery = unikery;
+        builder.prefetch = true;
+        builder.skipDecode = !builder.useMemoryCache;
+        builder.priority = Math.min(builder.priority, ConacoTask.PRIORITY_LOW);
+        builder.callbackExecutor = DIRECT_EXECUTOR;
+
+        synchronized (mLock) {
+            List<PrefetchUnikery> list = mPrefetchGroups.get(group);
+            if (list == null) {
+                list = new ArrayList<>();
+                mPrefetchGroups.put(group, list);
+            }
+            list.add(unikery);
+
+            loadLocked(builder);
+        }
+        dispatchCallbacks();
+    }
+
+    /**
+     * Cancel all prefetch tasks in the group.
+     *
+     * Call it in any thread.
+     */
+    public void cancelPrefetch(@Nullable Object group) {
+        synchronized (mLock) {
+            List<PrefetchUnikery> list = mPrefetchGroups.remove(group);
+            if (list != null) {
+                for (int i = 0, n = list.size(); i < n; i++) {
+                    cancelLocked(list.get(i));
+                }
+            }
+        }
+        dispatchCallbacks();
+    }
+
     /**
      * Cancel the task associated with the Unikery.
      *
-     * Call it in Ui thread only.
+     * Call it in any thread, see {@link #load(ConacoTask.Builder)}.
      */
     public void cancel(Unikery<V> unikery) {
+        int id = unikery.getTaskId();
+        if (id == Unikery.INVALID_ID) {
+            return;
+        }
+        if (!mRegister.contain(id)) {
+            // The task is done, but the result is not delivered yet.
+            // No need to take the lock to drop it.
+            unikery.setTaskId(Unikery.INVALID_ID);
+            return;
+        }
+
+        synchronized (mLock) {
+            cancelLocked(unikery);
+        }
+        dispatchCallbacks();
+    }
+
+    private void cancelLocked(Unikery<V> unikery) {
         int id = unikery.getTaskId();
         if (id != Unikery.INVALID_ID) {
             unikery.setTaskId(Unikery.INVALID_ID);
-            ConacoTask<V> task = mRegister.unregister(id);
-            if (task != null) {
+            ConacoTask<V> task = mRegister.get(id);
+            if (task == null) {
+                // The task is done, but the result is not delivered yet.
+                // It is dropped as the id is reset.
+                return;
+            }
+
+            if (mMetrics != null) {
+                mMetrics.onCancelled();
+            }
+
+            if (!task.isStarted() || !handOverLocked(task, id)) {
+                mRegister.unregister(id);
                 task.stop();
                 // Don't need unikery anymore
                 task.clearUnikery();
                 // Check another task with the same key
                 startSameKeyTask(task);
-            } else {
-                Log.e(TAG, "Can't find conaco task by id " + id);
             }
         }
     }
 
+    /**
+     * Someone else is waiting for the same key, keep the task running for it.
+     * Lock must be held.
+     *
+     * @return false if no one is waiting
+     */
+    private boolean handOverLocked(ConacoTask<V> task, int id) {
+        for (ConacoTask<V> heir : mRegister.getAllByKey(task.getKey())) {
+            if (heir == task || !heir.canShareWith(task)) {
+                continue;
+            }
+            // Unikery is weakly referenced, get it only once
+            Unikery<V> heirUnikery = heir.getUnikery();
+            if (heirUnikery != null) {
+                mRegister.unregister(heir.getId());
+                heir.clearUnikery();
+                heirUnikery.setTaskId(id);
+                task.handOver(heir, heirUnikery);
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Return return true if the conaco is loading the unikery.
      *
-     * Call it in Ui thread only.
+     * Call it in any thread.
      */
     public boolean isLoading(Unikery<V> unikery) {
         int id = unikery.getTaskId();
-        return id != Unikery.INVALID_ID && mRegister.contain(id);
+        if (id == Unikery.INVALID_ID) {
+            return false;
+        }
+        return mRegister.contain(id);
     }
 
+    /**
+     * Give the value got by the task to all tasks
+     * waiting for the same key in one pass.
+     * Lock must be held.
+     */
+    void shareValue(ConacoTask<V> task, V value, @Source int source) {
+        List<ConacoTask<V>> tasks = mRegister.getAllByKey(task.getKey());
+        for (int i = 0, n = tasks.size(); i < n; i++) {
+            ConacoTask<V> t = tasks.get(i);
+            if (t == task || t.isStarted() || !t.canShareWith(task)) {
+                continue;
+            }
+
+            mRegister.unregister(t.getId());
+            Unikery<V> unikery = t.getUnikery();
+            t.clearUnikery();
+            if (unikery != null) {
+                t.deliverValue(unikery, value, source, true);
+                if (mMetrics != null) {
+                    mMetrics.onCoalesced();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lock must be held.
+     */
     void finishConacoTask(ConacoTask<V> task) {
-        // Unregister task, reset unikery id, clear unikery in task, call next
+        // Unregister task, clear unikery in task, call next.
+        // Unikery id is reset by the last callback.
         mRegister.unregister(task.getId());
-        Unikery unikery = task.getUnikery();
-        if (unikery != null) {
-            unikery.setTaskId(Unikery.INVALID_ID);
-        }
         task.clearUnikery();
         // Check another task with the same key
         startSameKeyTask(task);
     }
 
+    private static class Callback {
+
+        private final Executor executor;
+        private final Runnable runnable;
+
+        public Callback(Executor executor, Runnable runnable) {
+            this.executor = executor;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * The Unikery of a prefetch task. It is held by its group
+     * until the task is done.
+     */
+    private class PrefetchUnikery implements Unikery<V> {
+
+        private final Object mGroup;
+        private volatile int mTaskId = Unikery.INVALID_ID;
+
+        public PrefetchUnikery(Object group) {
+            mGroup = group;
+        }
+
+        private void onDone() {
+            synchronized (mLock) {
+                List<PrefetchUnikery> list = mPrefetchGroups.get(mGroup);
+                if (list != null) {
+                    list.remove(this);
+                    if (list.isEmpty()) {
+                        mPrefetchGroups.remove(mGroup);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void setTaskId(int id) {
+            mTaskId = id;
+        }
+
+        @Override
+        public int getTaskId() {
+            return mTaskId;
+        }
+
+        @Override
+        public void onMiss(@Source int source) {}
+
+        @Override
+        public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {}
+
+        @Override
+        public void onWait() {}
+
+        @Override
+        public void onGetValue(@NonNull V value, @Source int source) {
+            onDone();
+        }
+
+        @Override
+        public void onGetPipe(@NonNull InputStreamPipe pipe) {
+            onDone();
+        }
+
+        @Override
+        public void onFailure() {
+            onDone();
+        }
+
+        @Override
+        public void onCancel() {
+            onDone();
+        }
+    }
+
     /**
      * A builder to create Conaco.
      * <p>
-     * For Conaco, memory cache is only accessed is UI thread,
-     * so it is safe to use non-thread-safe memory cache.
+     * Memory cache is accessed in job threads too, all access to it is synchronized.
      */
     public static class Builder<T> extends BeerBelly.BeerBellyParams {
 
@@ -241,6 +905,152 @@ public class Conaco<V> {
          */
         public ValueHelper<T> valueHelper = null;
 
+        /**
+         * How memory cache chooses values to evict,
+         * {@link #MEMORY_POLICY_LRU} or {@link #MEMORY_POLICY_TINY_LFU}.
+         */
+        @MemoryPolicy
+        public int memoryPolicy = MEMORY_POLICY_LRU;
+
+        /**
+         * True to keep weak references of values evicted from memory cache.
+         * A value still held by others, like a view on screen, is got from
+         * memory again without decoding. Evicted values might come back,
+         * so don't recycle them in {@link ValueHelper#onRemoveFromMemoryCache(String, Object)}.
+         */
+        public boolean weakMemoryCache = false;
+
+        /**
+         * Max count of shards of memory cache. Each shard has its own lock and
+         * a part of {@link #memoryCacheMaxSize}, so memory cache can be used by
+         * many threads at the same time. A value larger than the part of a shard
+         * is kept in an overflow shared by all shards. See {@link ShardedMemoryCache}.
+         */
+        public int memoryCacheShardCount = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Max total size of the {@link ValuePool}, 0 to disable it. Values evicted
+         * from memory cache are put to it if {@link #valueHelper} is a
+         * {@link ReusableValueHelper} and it marks them reusable. Those values skip
+         * {@link ValueHelper#onRemoveFromMemoryCache(String, Object)} and
+         * {@link #weakMemoryCache}, other values go on to them as usual.
+         */
+        public int valuePoolSize = 0;
+
+        /**
+         * Max count of disk tasks running at the same time.
+         * Tasks with the same key always run one by one.
+         */
+        public int diskConcurrency = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+
+        /**
+         * The executor to run network tasks. Task priority only works
+         * with {@link PriorityExecutor}. Null for the one of {@link #networkBackend}.
+         */
+        public Executor networkExecutor = null;
+
+        /**
+         * The backend of network tasks if {@link #networkExecutor} is null.
+         * {@link #NETWORK_BACKEND_POOL} for a {@link PriorityExecutor} created with
+         * {@link #networkThreadCount} and {@link #networkLifo}.
+         * {@link #NETWORK_BACKEND_THREAD_PER_TASK} for a {@link ThreadPerTaskExecutor},
+         * it suits a JVM service with many slow downloads at the same time.
+         * Requests to one host are still capped by {@link #maxRequestsPerHost}.
+         */
+        @NetworkBackend
+        public int networkBackend = NETWORK_BACKEND_POOL;
+
+        /**
+         * Thread count of the default network executor
+         */
+        public int networkThreadCount = 3;
+
+        /**
+         * True to run the newest network task first in the default network executor.
+         * It helps to load visible items first when scrolling a long list.
+         */
+        public boolean networkLifo = false;
+
+        /**
+         * Max count of requests to one host in flight at the same time,
+         * segments of segmented downloads included. Other tasks of the host
+         * wait without holding a network thread, so one slow host can't
+         * take all network threads.
+         * <p>
+         * Waiting tasks start by priority, like in {@link PriorityExecutor}.
+         * <p>
+         * 0 for the default of {@link #networkBackend}. It is
+         * {@link #networkThreadCount}, at least 2, for {@link #NETWORK_BACKEND_POOL},
+         * so tasks of one host can use all threads. It is 2 for a custom
+         * {@link #networkExecutor}. It is 6 for {@link #NETWORK_BACKEND_THREAD_PER_TASK},
+         * the backend itself has no limit, so this is the only cap of requests
+         * to a host there.
+         */
+        public int maxRequestsPerHost = 0;
+
+        /**
+         * Same as {@link #maxRequestsPerHost}, but for hosts which have answered
+         * with HTTP/2. Requests to them share one connection, so more of them
+         * can be in flight. Use {@link #NETWORK_BACKEND_THREAD_PER_TASK} to have
+         * more requests in flight than {@link #networkThreadCount}.
+         * <p>
+         * 0 for the default of {@link #networkBackend}, 8 or {@link #networkThreadCount}
+         * if it is larger for {@link #NETWORK_BACKEND_POOL}, 8 for a custom
+         * {@link #networkExecutor} and 32 for {@link #NETWORK_BACKEND_THREAD_PER_TASK}.
+         */
+        public int maxRequestsPerHttp2Host = 0;
+
+        /**
+         * The directory to keep partial downloads. A large download to disk cache
+         * which fails or is cancelled is kept there, the next load of the key and
+         * the url resumes it with a {@code Range} request if the response is not changed.
+         * It is moved to disk cache when it is complete. Null to disable it.
+         * Don't use the disk cache directory.
+         */
+        public File partialDownloadDir = null;
+
+        /**
+         * The executor to download segments of segmented downloads in, see
+         * {@link ConacoTask.Builder#segments}. A network job waits for its
+         * segments, so don't use the network executor. Null for one with
+         * {@link #segmentThreadCount} threads.
+         */
+        public Executor segmentExecutor = null;
+
+        /**
+         * Thread count of the default segment executor. Requests of segments
+         * are limited by {@link #maxRequestsPerHost} too.
+         */
+        public int segmentThreadCount = 4;
+
+        /**
+         * Thread count of the decode executor. Disk and network executors
+         * only do I/O, decoding runs in the decode executor.
+         */
+        public int decodeThreadCount = Runtime.getRuntime().availableProcessors();
+
+        /**
+         * Size of each buffer for copying streams
+         */
+        public int bufferSize = 64 * 1024;
+
+        /**
+         * Max count of buffers kept in the buffer pool
+         */
+        public int bufferPoolSize = 8;
+
+        /**
+         * Receives metrics of loading, null to disable it.
+         * Use {@link ConacoMetrics} to aggregate them.
+         */
+        public MetricsListener metricsListener = null;
+
+        /**
+         * The executor to call Unikery in, it can be changed for each task.
+         * Null for {@link #UI_THREAD_EXECUTOR}. It should run commands in order.
+         */
+        public Executor callbackExecutor = null;
+
         public boolean debug = false;
 
         @Override
@@ -250,6 +1060,39 @@ public class Conaco<V> {
             if (okHttpClient == null) {
                 throw new IllegalStateException("No http client? How can I load image via url?");
             }
+            if (diskConcurrency <= 0) {
+                throw new IllegalStateException("Disk concurrency must be positive");
+            }
+            if (maxRequestsPerHost < 0 || maxRequestsPerHttp2Host < 0) {
+                throw new IllegalStateException("Max requests per host must not be negative");
+            }
+            if (segmentThreadCount <= 0) {
+                throw new IllegalStateException("Segment thread count must be positive");
+            }
+            if (decodeThreadCount <= 0) {
+                throw new IllegalStateException("Decode thread count must be positive");
+            }
+            if (bufferSize <= 0) {
+                throw new IllegalStateException("Buffer size must be positive");
+            }
+            if (memoryCacheShardCount <= 0) {
+                throw new IllegalStateException("Memory cache shard count must be positive");
+            }
+            if (valuePoolSize < 0) {
+                throw new IllegalStateException("Value pool size must not be negative");
+            }
+            if (bufferPoolSize < 0) {
+                throw new IllegalStateException("Buffer pool size must not be negative");
+            }
+            if (networkBackend != NETWORK_BACKEND_POOL && networkBackend != NETWORK_BACKEND_THREAD_PER_TASK) {
+                throw new IllegalStateException("Invalid network backend " + networkBackend);
+            }
+            if (memoryPolicy != MEMORY_POLICY_LRU && memoryPolicy != MEMORY_POLICY_TINY_LFU) {
+                throw new IllegalStateException("Invalid memory policy " + memoryPolicy);
+            }
+            if (networkExecutor == null && networkBackend == NETWORK_BACKEND_POOL && networkThreadCount <= 0) {
+                throw new IllegalStateException("Network thread count must be positive");
+            }
         }
 
         public Conaco<T> build() {
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link MetricsListener} which aggregates metrics in histograms
+ * and counters. All of them are updated lock-free.
+ * Use {@link #snapshot()} to export them.
+ */
+public class ConacoMetrics implements MetricsListener {
+
+    private static final int SOURCE_COUNT = 3;
+
+    private final Histogram mDiskQueueWait = new Histogram();
+    private final Histogram mNetworkQueueWait = new Histogram();
+    private final Histogram mDecodeQueueWait = new Histogram();
+    private final Histogram mDiskRead = new Histogram();
+    private final Histogram mDecode = new Histogram();
+    private final Histogram mNetworkFirstByte = new Histogram();
+    private final AtomicLong mDownloadBytes = new AtomicLong();
+    private final AtomicLong mDownloadNanos = new AtomicLong();
+    private final AtomicLongArray mLookups = new AtomicLongArray(SOURCE_COUNT);
+    private final AtomicLongArray mHits = new AtomicLongArray(SOURCE_COUNT);
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    @Override
+    public void onQueueWait(@Stage int stage, long nanos) {
+        switch (stage) {
+            case STAGE_DISK:
+                mDiskQueueWait.record(nanos);
+                break;
+            case STAGE_NETWORK:
+                mNetworkQueueWait.record(nanos);
+                break;
+            case STAGE_DECODE:
+                mDecodeQueueWait.record(nanos);
+                break;
+        }
+    }
+
+    @Override
+    public void onDiskRead(long nanos) {
+        mDiskRead.record(nanos);
+    }
+
+    @Override
+    public void onDecode(long nanos) {
+        mDecode.record(nanos);
+    }
+
+    @Override
+    public void onNetworkFirstByte(long nanos) {
+        mNetworkFirstByte.record(nanos);
+    }
+
+    @Override
+    public void onDownload(long bytes, long nanos) {
+        mDownloadBytes.addAndGet(bytes);
+        mDownloadNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public void onLookup(@Conaco.Source int source, boolean hit) {
+        mLookups.incrementAndGet(source);
+        if (hit) {
+            mHits.incrementAndGet(source);
+        }
+    }
+
+    @Override
+    public void onCoalesced() {
+        mCoalesced.incrementAndGet();
+    }
+
+    @Override
+    public void onCancelled() {
+        mCancelled.incrementAndGet();
+    }
+
+    @Override
+    public void onFailed() {
+        mFailed.incrementAndGet();
+    }
+
+    /**
+     * Return a copy of current metrics. Metrics updated while
+     * taking the snapshot might be partly included.
+     */
+    @NonNull
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.diskQueueWait = mDiskQueueWait.snapshot();
+        snapshot.networkQueueWait = mNetworkQueueWait.snapshot();
+        snapshot.decodeQueueWait = mDecodeQueueWait.snapshot();
+        snapshot.diskRead = mDiskRead.snapshot();
+        snapshot.decode = mDecode.snapshot();
+        snapshot.networkFirstByte = mNetworkFirstByte.snapshot();
+        snapshot.downloadBytes = mDownloadBytes.get();
+        snapshot.downloadNanos = mDownloadNanos.get();
+        snapshot.lookups = new long[SOURCE_COUNT];
+        snapshot.hits = new long[SOURCE_COUNT];
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            snapshot.lookups[i] = mLookups.get(i);
+            snapshot.hits[i] = mHits.get(i);
+        }
+        snapshot.coalesced = mCoalesced.get();
+        snapshot.cancelled = mCancelled.get();
+        snapshot.failed = mFailed.get();
+        return snapshot;
+    }
+
+    /**
+     * A histogram of durations in nanoseconds. Bucket i holds durations
+     * in [2^i, 2^(i+1)), bucket 0 holds 0 too. Negative durations count as 0.
+     * Percentiles are accurate within 2x.
+     */
+    public static class Histogram {
+
+        private static final int BUCKET_COUNT = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int index = 63 - Long.numberOfLeadingZeros(value | 1);
+            mBuckets.incrementAndGet(index);
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+        }
+
+        @NonNull
+        public HistogramSnapshot snapshot() {
+            long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return new HistogramSnapshot(buckets, mCount.get(), mSum.get());
+        }
+    }
+
+    public static class HistogramSnapshot {
+
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+
+        HistogramSnapshot(long[] buckets, long count, long sum) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /**
+         * Return the upper bound of the bucket where the percentile falls.
+         *
+         * @param percentile in [0, 1]
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (long bucket : mBuckets) {
+                total += bucket;
+            }
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank && mBuckets[i] != 0) {
+                    return i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /**
+         * Return a copy of buckets, bucket i holds values in [2^i, 2^(i+1)).
+         */
+        public long[] getBuckets() {
+            return mBuckets.clone();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "count=%d mean=%dns p50=%dns p99=%dns",
+                    mCount, getMean(), getPercentile(0.5), getPercentile(0.99));
+        }
+    }
+
+    public static class Snapshot {
+
+        public HistogramSnapshot diskQueueWait;
+        public HistogramSnapshot networkQueueWait;
+        public HistogramSnapshot decodeQueueWait;
+        public HistogramSnapshot diskRead;
+        public HistogramSnapshot decode;
+        public HistogramSnapshot networkFirstByte;
+        public long downloadBytes;
+        public long downloadNanos;
+        /**
+         * Lookup count, indexed by {@link Conaco.Source}
+         */
+        public long[] lookups;
+        /**
+         * Hit count, indexed by {@link Conaco.Source}
+         */
+        public long[] hits;
+        public long coalesced;
+        public long cancelled;
+        public long failed;
+
+        /**
+         * Return hit ratio of the source, 0 if no lookup.
+         */
+        public double getHitRatio(@Conaco.Source int source) {
+            long lookup = lookups[source];
+            return lookup == 0 ? 0.0 : (double) hits[source] / lookup;
+        }
+
+        /**
+         * Return download throughput in bytes per second.
+         */
+        public double getDownloadThroughput() {
+            return downloadNanos == 0 ? 0.0 : downloadBytes * 1e9 / downloadNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "diskQueueWait{" + diskQueueWait + "}\n" +
+                    "networkQueueWait{" + networkQueueWait + "}\n" +
+                    "decodeQueueWait{" + decodeQueueWait + "}\n" +
+                    "diskRead{" + diskRead + "}\n" +
+                    "decode{" + decode + "}\n" +
+                    "networkFirstByte{" + networkFirstByte + "}\n" +
+                    String.format(Locale.US, "download=%.0fB/s\n", getDownloadThroughput()) +
+                    String.format(Locale.US, "hitRatio memory=%.3f disk=%.3f network=%.3f\n",
+                            getHitRatio(Conaco.SOURCE_MEMORY), getHitRatio(Conaco.SOURCE_DISK),
+                            getHitRatio(Conaco.SOURCE_NETWORK)) +
+                    "coalesced=" + coalesced + " cancelled=" + cancelled + " failed=" + failed;
+        }
+    }
+}
@@ -16,58 +16,120 @@
 
 package com.hippo.conaco;
 
-import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.util.Log;
 
 import com.hippo.beerbelly.SimpleDiskCache;
 import com.hippo.streampipe.InputStreamPipe;
 import com.hippo.streampipe.OutputStreamPipe;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import okhttp3.Call;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
 
+/**
+ * A loading task. It runs on plain executors: disk jobs, network jobs
+ * and decode jobs. When a job is done, the next step is decided in the
+ * job thread with the lock of Conaco held. The Unikery is called in
+ * the callback executor of the task, never with the lock held.
+ */
 public class ConacoTask<V> {
 
     private static final String TAG = ConacoTask.class.getSimpleName();
 
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+
+    /**
+     * Min length of each segment of a segmented download.
+     */
+    private static final long MIN_SEGMENT_LENGTH = 512 * 1024;
+
+    private static final int STAGE_NONE = 0;
+    private static final int STAGE_DISK = 1;
+    private static final int STAGE_NETWORK = 2;
+    private static final int STAGE_DECODE = 3;
+
     private final int mId;
-    private final WeakReference<Unikery<V>> mUnikeryWeakReference;
+    private volatile WeakReference<Unikery<V>> mUnikeryWeakReference;
     private final String mKey;
     private final String mUrl;
     private final DataContainer mDataContainer;
-    private boolean mUseMemoryCache;
-    private boolean mUseDiskCache;
-    private boolean mUseNetwork;
-    private boolean mSkipDecode;
+    private volatile boolean mUseMemoryCache;
+    private final boolean mUseDiskCache;
+    private final boolean mUseNetwork;
+    private volatile boolean mSkipDecode;
+    private volatile boolean mStreamDecode;
+    private volatile boolean mPrefetch;
+    private volatile int mPriority;
+    private final long mMaxAge;
+    private final int mSegments;
+    private final long mProgressInterval;
+    private final int mProgressStep;
+    private final int[] mProgressiveSteps;
     private final ValueHelper<V> mHelper;
     private final ValueCache<V> mCache;
     private final OkHttpClient mOkHttpClient;
     private final Executor mDiskExecutor;
     private final Executor mNetworkExecutor;
+    private final Executor mDecodeExecutor;
+    private volatile Executor mCallbackExecutor;
+    private final BufferPool mBufferPool;
+    private final HostLimiter mHostLimiter;
+    @Nullable
+    private final PartialStore mPartialStore;
+    private final Executor mSegmentExecutor;
+    private final File mSegmentDir;
+    @Nullable
+    private final MetricsListener mMetrics;
     private final Conaco<V> mConaco;
+    private final Object mLock;
 
+    // Guarded by mLock
     private boolean mDiskMiss;
+    private boolean mStart;
+    private int mStage = STAGE_NONE;
+
+    private boolean mFromDataContainer;
+    // The stale disk cache entry to check with the server
+    private Validators mRevalidate;
 
-    private DiskLoadTask mDiskLoadTask;
-    private NetworkLoadTask mNetworkLoadTask;
     @NonNull
     private AtomicReference<Call> mCall = new AtomicReference<>();
-    private boolean mStart;
+    // Calls of segments except the first one
+    @NonNull
+    private List<Call> mSegmentCalls = new CopyOnWriteArrayList<>();
     @NonNull
     private AtomicBoolean mStop = new AtomicBoolean();
 
@@ -81,12 +143,29 @@ public class ConacoTask<V> {
         mUseDiskCache = builder.useDiskCache;
         mUseNetwork = builder.useNetwork;
         mSkipDecode = builder.skipDecode;
+        mStreamDecode = builder.streamDecode;
+        mPrefetch = builder.prefetch;
+        mPriority = builder.priority;
+        mMaxAge = builder.maxAge;
+        mSegments = builder.segments;
+        mProgressInterval = builder.progressInterval;
+        mProgressStep = builder.progressStep;
+        mProgressiveSteps = builder.progressiveSteps;
         mHelper = builder.helper;
         mCache = builder.cache;
         mOkHttpClient = builder.okHttpClient;
         mDiskExecutor = builder.diskExecutor;
         mNetworkExecutor = builder.networkExecutor;
+        mDecodeExecutor = builder.decodeExecutor;
+        mCallbackExecutor = builder.callbackExecutor;
+        mBufferPool = builder.bufferPool;
+        mHostLimiter = builder.hostLimiter;
+        mPartialStore = builder.partialStore;
+        mSegmentExecutor = builder.segmentExecutor;
+        mSegmentDir = builder.segmentDir;
+        mMetrics = builder.metricsListener;
         mConaco = builder.conaco;
+        mLock = mConaco.mLock;
     }
 
     int getId() {
@@ -105,6 +184,10 @@ public class ConacoTask<V> {
         return mSkipDecode;
     }
 
+    int getPriority() {
+        return mPriority;
+    }
+
     @Nullable
     Unikery<V> getUnikery() {
         return mUnikeryWeakReference.get();
@@ -114,7 +197,48 @@ public class ConacoTask<V> {
         mUnikeryWeakReference.clear();
     }
 
-    // Ui thread
+    // Lock held
+    boolean isStarted() {
+        return mStart;
+    }
+
+    boolean isPrefetch() {
+        return mPrefetch;
+    }
+
+    /**
+     * Return true if the prefetch task can be upgraded to the task.
+     */
+    // Lock held
+    boolean canUpgradeTo(ConacoTask<V> task) {
+        return mPrefetch && mStart && mHelper == task.mHelper &&
+                // Pipe to value is always fine, value to pipe is fine before decoding
+                (mSkipDecode || !task.mSkipDecode || mStage == STAGE_DISK);
+    }
+
+    /**
+     * Turn the prefetch task to the task. It keeps running
+     * with options, Unikery, priority and callback executor of the task.
+     * The id of the Unikery must be set to the id of this task.
+     * The Unikery gets the memory miss, and the disk miss if any.
+     */
+    // Lock held
+    void upgradeTo(ConacoTask<V> task, @NonNull Unikery<V> unikery) {
+        mPrefetch = false;
+        mSkipDecode = task.mSkipDecode;
+        mStreamDecode = task.mStreamDecode;
+        mUseMemoryCache = task.mUseMemoryCache;
+        handOver(task, unikery, true);
+    }
+
+    /**
+     * Return true if the task can take the result of the other task.
+     */
+    boolean canShareWith(ConacoTask<V> task) {
+        return mSkipDecode == task.mSkipDecode && mHelper == task.mHelper;
+    }
+
+    // Lock held
     private void onFinish() {
         if (!mStop.get()) {
             mConaco.finishConacoTask(this);
@@ -123,85 +247,346 @@ public class ConacoTask<V> {
         }*/
     }
 
-    // Ui thread
+    // Lock held
     void start() {
-        if (mStop.get() || mStart) {
+        if (prepareDiskLoad()) {
+            mStage = STAGE_DISK;
+            getDiskExecutor().execute(new DiskLoadJob());
+        }
+    }
+
+    /**
+     * Start the tasks. Disk loading of them is done in a few
+     * disk jobs, one job loads many keys in a row. With a
+     * {@link StripedExecutor}, there is one job for each stripe
+     * of the keys, so jobs of the same key are still one by one.
+     *
+     * @param jobCount max count of disk jobs if the disk executor isn't striped
+     */
+    // Lock held
+    static <V> void startAll(List<ConacoTask<V>> tasks, int jobCount) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+
+        Executor executor = tasks.get(0).mDiskExecutor;
+        List<ConacoTask<V>> diskTasks = new ArrayList<>(tasks.size());
+        for (int i = 0, n = tasks.size(); i < n; i++) {
+            ConacoTask<V> task = tasks.get(i);
+            if (task.mDiskExecutor != executor) {
+                // Custom disk executor, start it alone
+                task.start();
+            } else if (task.prepareDiskLoad()) {
+                task.mStage = STAGE_DISK;
+                diskTasks.add(task);
+            }
+        }
+
+        int size = diskTasks.size();
+        if (size == 0) {
+            return;
+        }
+
+        if (executor instanceof StripedExecutor) {
+            StripedExecutor striped = (StripedExecutor) executor;
+            Map<Executor, List<ConacoTask<V>>> batches = new LinkedHashMap<>();
+            for (int i = 0; i < size; i++) {
+                ConacoTask<V> task = diskTasks.get(i);
+                Executor stripe = striped.forKey(task.mKey);
+                List<ConacoTask<V>> batch = batches.get(stripe);
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    batches.put(stripe, batch);
+                }
+                batch.add(task);
+            }
+            for (Map.Entry<Executor, List<ConacoTask<V>>> entry : batches.entrySet()) {
+                entry.getKey().execute(new DiskBatchJob<>(entry.getValue()));
+            }
             return;
         }
 
+        jobCount = Math.max(1, Math.min(jobCount, size));
+        int start = 0;
+        for (int i = 0; i < jobCount; i++) {
+            int end = start + (size - start) / (jobCount - i);
+            executor.execute(new DiskBatchJob<>(diskTasks.subList(start, end)));
+            start = end;
+        }
+    }
+
+    /**
+     * Return true if it needs to load from disk.
+     */
+    // Lock held
+    private boolean prepareDiskLoad() {
+        if (mStop.get() || mStart) {
+            return false;
+        }
+
         mStart = true;
 
-        Unikery unikery = mUnikeryWeakReference.get();
+        Unikery<V> unikery = mUnikeryWeakReference.get();
         if (unikery != null && unikery.getTaskId() == mId) {
             if ((mUseDiskCache && mKey != null) || mDataContainer != null) {
-                mDiskLoadTask = new DiskLoadTask();
-                mDiskLoadTask.executeOnExecutor(mDiskExecutor);
-                return;
+                return true;
             } else {
                 // No disk support, no network support
                 mDiskMiss = true;
-                unikery.onMiss(Conaco.SOURCE_DISK);
-                unikery.onMiss(Conaco.SOURCE_NETWORK);
-                unikery.onFailure();
+                deliverFailure(unikery, true);
             }
         }
 
         onFinish();
+        return false;
     }
 
-    // Ui thread
+    // Lock held
     void stop() {
         if (mStop.get()) {
             return;
         }
 
-        mStop.lazySet(true);
+        mStop.set(true);
 
-        // Stop jobs
-        if (mDiskLoadTask != null) { // Getting from disk
-            mDiskLoadTask.cancel(false);
-        } else if (mNetworkLoadTask != null) { // Getting from network
-            mNetworkLoadTask.cancel(false);
-            Call call = mCall.get();
-            if (call != null) {
-                call.cancel();
-                mCall.lazySet(null);
-            }
+        // Running jobs check mStop, only the http call needs to be cancelled
+        Call call = mCall.getAndSet(null);
+        if (call != null) {
+            call.cancel();
         }
+        for (Call segmentCall : mSegmentCalls) {
+            segmentCall.cancel();
+        }
+
+        notifyCancel(mUnikeryWeakReference.get());
 
-        Unikery unikery = mUnikeryWeakReference.get();
+        // Conaco handle the clean up
+    }
+
+    /**
+     * Keep the task running for the Unikery of the heir, the current Unikery
+     * is cancelled. The task goes on with priority and callback executor
+     * of the heir. The id of the Unikery must be set to the id of this task.
+     * If disk cache is missed already, the Unikery gets the miss here.
+     */
+    // Lock held
+    void handOver(@NonNull ConacoTask<V> heir, @NonNull Unikery<V> unikery) {
+        handOver(heir, unikery, false);
+    }
+
+    // Lock held
+    private void handOver(ConacoTask<V> heir, Unikery<V> unikery, boolean missMemory) {
+        notifyCancel(mUnikeryWeakReference.get());
+        mUnikeryWeakReference = new WeakReference<>(unikery);
+        mCallbackExecutor = heir.mCallbackExecutor;
+        setPriority(heir.mPriority);
+        if (missMemory) {
+            deliverMiss(unikery, Conaco.SOURCE_MEMORY);
+        }
+        if (mDiskMiss) {
+            deliverMiss(unikery, Conaco.SOURCE_DISK);
+        }
+    }
+
+    // Lock held
+    private void notifyCancel(final Unikery<V> unikery) {
         if (unikery != null) {
             // Id of unikery has been set to invalid in Conaco.cancel(),
             // so no need to worry callback called twice.
-            if (!mDiskMiss) {
-                unikery.onMiss(Conaco.SOURCE_DISK);
+            final boolean diskMiss = mDiskMiss;
+            mConaco.postCallback(mCallbackExecutor, new Runnable() {
+                @Override
+                public void run() {
+                    if (!diskMiss) {
+                        unikery.onMiss(Conaco.SOURCE_DISK);
+                    }
+                    unikery.onMiss(Conaco.SOURCE_MEMORY);
+                    unikery.onCancel();
+                }
+            });
+        }
+    }
+
+    // Lock held
+    void reprioritize(int priority) {
+        if (priority > mPriority) {
+            setPriority(priority);
+        }
+    }
+
+    // Lock held
+    private void setPriority(int priority) {
+        if (priority == mPriority) {
+            // Don't move the waiting job, it would lose its place
+            return;
+        }
+        mPriority = priority;
+
+        // Move the waiting network job
+        if (mStage == STAGE_NETWORK) {
+            mHostLimiter.reprioritize(getHost(mUrl), this, mPriority);
+            if (mNetworkExecutor instanceof PriorityExecutor) {
+                ((PriorityExecutor) mNetworkExecutor).reprioritize(this, mPriority);
             }
-            unikery.onMiss(Conaco.SOURCE_MEMORY);
-            unikery.onCancel();
         }
+    }
 
-        // Conaco handle the clean up
+    private Executor getDiskExecutor() {
+        if (mDiskExecutor instanceof StripedExecutor) {
+            return ((StripedExecutor) mDiskExecutor).forKey(mKey);
+        } else {
+            return mDiskExecutor;
+        }
     }
 
-    private boolean isNotNecessary(AsyncTask asyncTask) {
-        Unikery unikery = mUnikeryWeakReference.get();
-        return mStop.get() || asyncTask.isCancelled() || unikery == null || unikery.getTaskId() != mId;
+    /**
+     * Return host and port of the url, null if it is not a valid http url.
+     */
+    @Nullable
+    private static String getHost(String url) {
+        HttpUrl httpUrl = HttpUrl.parse(url);
+        return httpUrl != null ? httpUrl.host() + ':' + httpUrl.port() : null;
     }
 
-    private void putFromDiskCacheToDataContainer(String key, ValueCache cache, DataContainer container) {
+    private Executor getNetworkExecutor() {
+        if (mNetworkExecutor instanceof PriorityExecutor) {
+            return ((PriorityExecutor) mNetworkExecutor).withPriority(mPriority, this);
+        } else {
+            return mNetworkExecutor;
+        }
+    }
+
+    private boolean isNotNecessary() {
+        Unikery<V> unikery = mUnikeryWeakReference.get();
+        return mStop.get() || unikery == null || unikery.getTaskId() != mId;
+    }
+
+    /**
+     * A callback to the Unikery, it runs in the callback executor. It is
+     * posted with the lock held, then handed to the executor after the lock
+     * is released, see {@link Conaco#postCallback(Executor, Runnable)}.
+     * It is dropped if the Unikery is cancelled or loads another task
+     * by then. The last callback of the task resets the id of the Unikery.
+     */
+    private abstract class Delivery implements Runnable {
+
+        private final Unikery<V> mUnikery;
+        private final boolean mLast;
+
+        public Delivery(Unikery<V> unikery, boolean last) {
+            mUnikery = unikery;
+            mLast = last;
+        }
+
+        @Override
+        public final void run() {
+            if (mUnikery.getTaskId() != mId) {
+                return;
+            }
+            if (mLast) {
+                mUnikery.setTaskId(Unikery.INVALID_ID);
+            }
+            deliver(mUnikery);
+        }
+
+        abstract void deliver(Unikery<V> unikery);
+    }
+
+    void deliverMiss(Unikery<V> unikery, final int source) {
+        mConaco.postCallback(mCallbackExecutor, new Delivery(unikery, false) {
+            @Override
+            void deliver(Unikery<V> unikery) {
+                unikery.onMiss(source);
+            }
+        });
+    }
+
+    void deliverWait(Unikery<V> unikery) {
+        mConaco.postCallback(mCallbackExecutor, new Delivery(unikery, false) {
+            @Override
+            void deliver(Unikery<V> unikery) {
+                unikery.onWait();
+            }
+        });
+    }
+
+    /**
+     * Give the value to the Unikery, it is the last callback.
+     *
+     * @param missMemory true to call {@link Unikery#onMiss(int)}
+     *                   with {@link Conaco#SOURCE_MEMORY} first
+     */
+    void deliverValue(Unikery<V> unikery, final V value, final int source, final boolean missMemory) {
+        mConaco.postCallback(mCallbackExecutor, new Delivery(unikery, true) {
+            @Override
+            void deliver(Unikery<V> unikery) {
+                if (missMemory) {
+                    unikery.onMiss(Conaco.SOURCE_MEMORY);
+                }
+                unikery.onGetValue(value, source);
+            }
+        });
+    }
+
+    // Lock held
+    private void deliverPartialValue(Unikery<V> unikery, final V value) {
+        mConaco.postCallback(mCallbackExecutor, new Delivery(unikery, false) {
+            @Override
+            void deliver(Unikery<V> unikery) {
+                ((ProgressiveUnikery<V>) unikery).onGetPartialValue(value);
+            }
+        });
+    }
+
+    private void deliverPipe(Unikery<V> unikery, final InputStreamPipe pipe) {
+        mConaco.postCallback(mCallbackExecutor, new Delivery(unikery, true) {
+            @Override
+            void deliver(Unikery<V> unikery) {
+                unikery.onGetPipe(pipe);
+            }
+        });
+    }
+
+    private void deliverFailure(Unikery<V> unikery, final boolean missDisk) {
+        if (mMetrics != null) {
+            mMetrics.onFailed();
+        }
+        mConaco.postCallback(mCallbackExecutor, new Delivery(unikery, true) {
+            @Override
+            void deliver(Unikery<V> unikery) {
+                if (missDisk) {
+                    unikery.onMiss(Conaco.SOURCE_DISK);
+                }
+                unikery.onMiss(Conaco.SOURCE_NETWORK);
+                unikery.onFailure();
+            }
+        });
+    }
+
+    private void putFromDiskCacheToDataContainer(String key, ValueCache<V> cache, DataContainer container) {
         SimpleDiskCache diskCache = cache.getDiskCache();
         if (diskCache != null) {
             InputStreamPipe pipe = diskCache.getInputStreamPipe(key);
             if (pipe != null) {
+                File file = container instanceof FileDataContainer ?
+                        ((FileDataContainer) container).getFile() : null;
+                OutputStream os = null;
                 try {
                     pipe.obtain();
-                    container.save(pipe.open(), -1L, null, null);
+                    if (file != null) {
+                        // Copy file to file directly
+                        os = new FileOutputStream(file);
+                        IOUtils.copy(pipe.open(), os, mBufferPool);
+                    } else {
+                        container.save(pipe.open(), -1L, null, null);
+                    }
                 } catch (IOException e) {
                     if (mConaco.mDebug) {
-                        Log.e(TAG, "Can't save value from disk cache to data container", e);
+                        Platform.e(TAG, "Can't save value from disk cache to data container", e);
                     }
                     container.remove();
                 } finally {
+                    closeQuietly(os);
                     pipe.close();
                     pipe.release();
                 }
@@ -209,165 +594,764 @@ public class ConacoTask<V> {
         }
     }
 
-    private void putFromDataContainerToDiskCache(String key, ValueCache cache, DataContainer container) {
+    private void putFromDataContainerToDiskCache(String key, ValueCache<V> cache, DataContainer container) {
+        SimpleDiskCache diskCache = cache.getDiskCache();
+        if (diskCache == null) {
+            return;
+        }
+
         InputStreamPipe pipe = container.get();
         if (pipe != null) {
+            OutputStreamPipe osPipe = diskCache.getOutputStreamPipe(key);
+            boolean failed = false;
             try {
                 pipe.obtain();
-                cache.pushRawToDisk(key, pipe.open());
+                osPipe.obtain();
+                IOUtils.copy(pipe.open(), osPipe.open(), mBufferPool);
             } catch (IOException e) {
                 if (mConaco.mDebug) {
-                    Log.w(TAG, "Can't save value from data container to disk cache", e);
+                    Platform.w(TAG, "Can't save value from data container to disk cache", e);
                 }
-                cache.removeFromDisk(key);
+                failed = true;
             } finally {
+                osPipe.close();
+                osPipe.release();
                 pipe.close();
                 pipe.release();
             }
+            if (failed) {
+                cache.removeFromDisk(key);
+            }
         }
     }
 
-    private class DiskLoadTask extends AsyncTask<Void, Void, Object> {
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
 
-        private V getValue() {
-            V value = null;
+    private boolean canGetFromNetwork() {
+        return mUseNetwork && mUrl != null && ((mUseDiskCache && mKey != null) || mDataContainer != null);
+    }
+
+    // Lock held
+    private void startNetworkLoad() {
+        mStage = STAGE_NETWORK;
+        final NetworkLoadJob job = new NetworkLoadJob();
+        mHostLimiter.execute(job.mHost, mPriority, this, new Runnable() {
+            @Override
+            public void run() {
+                // Get executor now, priority might be changed while waiting
+                job.mSubmitTime = System.nanoTime();
+                getNetworkExecutor().execute(job);
+            }
+        });
+    }
+
+    // Lock held
+    private void onDiskMiss(Unikery<V> unikery) {
+        mDiskMiss = true;
+        if (canGetFromNetwork()) {
+            // Try to get value from network
+            deliverMiss(unikery, Conaco.SOURCE_DISK);
+            startNetworkLoad();
+        } else {
+            // Failed
+            mStage = STAGE_NONE;
+            deliverFailure(unikery, true);
+            onFinish();
+        }
+    }
 
-            // First check data container
-            if (mDataContainer != null && mDataContainer.isEnabled()) {
-                InputStreamPipe isp = mDataContainer.get();
-                if (isp != null) {
-                    value = mHelper.decode(isp);
+    private void onLookup(int source, boolean hit) {
+        if (mMetrics != null) {
+            mMetrics.onLookup(source, hit);
+        }
+    }
+
+    private void onQueueWait(int stage, long submitTime) {
+        if (mMetrics != null) {
+            mMetrics.onQueueWait(stage, System.nanoTime() - submitTime);
+        }
+    }
+
+    // Lock held
+    private void decode(InputStreamPipe pipe, int source, boolean fromDataContainer) {
+        mStage = STAGE_DECODE;
+        mDecodeExecutor.execute(new DecodeJob(pipe, source, fromDataContainer));
+    }
+
+    /**
+     * Put value to memory cache. It is done in the job thread,
+     * memory cache is thread-safe.
+     */
+    private void putToMemory(V value) {
+        if (value != null && mKey != null && mUseMemoryCache && mHelper.useMemoryCache(mKey, value)) {
+            mCache.putToMemory(mKey, value);
+        }
+    }
+
+    // Lock held
+    private void postValue(V value, int source) {
+        mStage = STAGE_NONE;
+        if (mStop.get()) {
+            onFinish();
+        } else {
+            Unikery<V> unikery = mUnikeryWeakReference.get();
+            if (unikery != null && unikery.getTaskId() == mId) {
+                onLookup(source, value != null);
+                if (value != null) {
+                    // Get the value
+                    deliverValue(unikery, value, source, false);
+                    mConaco.shareValue(this, value, source);
+                    onFinish();
+                } else if (source == Conaco.SOURCE_DISK) {
+                    onDiskMiss(unikery);
+                } else {
+                    // Failed
+                    deliverFailure(unikery, false);
+                    onFinish();
                 }
+            } else {
+                onFinish();
             }
+        }
+    }
+
+    /**
+     * Load {@code InputStreamPipe} from data container or disk cache.
+     * It only does I/O, decoding is done in {@link DecodeJob}.
+     */
+    // Disk thread
+    private InputStreamPipe loadFromDisk() {
+        long start = mMetrics != null ? System.nanoTime() : 0;
+        InputStreamPipe isp = null;
+        mFromDataContainer = false;
+
+        // First check data container
+        if (mDataContainer != null && mDataContainer.isEnabled()) {
+            isp = mDataContainer.get();
+            mFromDataContainer = isp != null;
+        }
 
-            // Then check disk cache
-            if (value == null && mUseDiskCache && mKey != null) {
-                value = mCache.getFromDisk(mKey);
-                // Put back to data container
-                if (value != null && mDataContainer != null && mDataContainer.isEnabled()) {
-                    putFromDiskCacheToDataContainer(mKey, mCache, mDataContainer);
+        // Then check disk cache
+        if (isp == null && mUseDiskCache && mKey != null && mCache.hasDiskCache()) {
+            SimpleDiskCache diskCache = mCache.getDiskCache();
+            isp = diskCache.getInputStreamPipe(mKey);
+            // Check freshness
+            if (isp != null && mMaxAge >= 0 && canGetFromNetwork()) {
+                Validators validators = Validators.read(diskCache, mKey);
+                if (validators != null && validators.isStale(mMaxAge, System.currentTimeMillis())) {
+                    mRevalidate = validators;
+                    isp = null;
                 }
             }
+            // Put back to data container
+            if (isp != null && mDataContainer != null && mDataContainer.isEnabled()) {
+                putFromDiskCacheToDataContainer(mKey, mCache, mDataContainer);
+            }
+        }
 
-            return value;
+        if (mMetrics != null) {
+            mMetrics.onDiskRead(System.nanoTime() - start);
         }
 
-        private InputStreamPipe getPipe() {
-            InputStreamPipe isp = null;
+        return isp;
+    }
 
-            // First check data container
-            if (mDataContainer != null && mDataContainer.isEnabled()) {
-                isp = mDataContainer.get();
+    // Lock held
+    private void onDiskLoaded(InputStreamPipe pipe) {
+        mStage = STAGE_NONE;
+        Unikery<V> unikery = mUnikeryWeakReference.get();
+        if (unikery != null && unikery.getTaskId() == mId) {
+            if (pipe == null && mRevalidate != null) {
+                // Stale, it is still a disk hit if the server says not modified
+                startNetworkLoad();
+                return;
+            }
+            if (pipe == null || mSkipDecode) {
+                onLookup(Conaco.SOURCE_DISK, pipe != null);
+            }
+            if (pipe == null) {
+                onDiskMiss(unikery);
+            } else if (mSkipDecode) {
+                // Get the pipe
+                deliverPipe(unikery, pipe);
+                onFinish();
+            } else {
+                decode(pipe, Conaco.SOURCE_DISK, mFromDataContainer);
             }
+        } else {
+            onFinish();
+        }
+    }
+
+    /**
+     * Load {@code InputStreamPipe} from data container or disk cache.
+     * It only does I/O, decoding is done in {@link DecodeJob}.
+     */
+    private class DiskLoadJob implements Runnable {
+
+        private final long mSubmitTime = System.nanoTime();
 
-            // Then check disk cache
-            if (isp == null && mUseDiskCache && mKey != null && mCache.hasDiskCache()) {
-                isp = mCache.getDiskCache().getInputStreamPipe(mKey);
-                // Put back to data container
-                if (isp != null && mDataContainer != null && mDataContainer.isEnabled()) {
-                    putFromDiskCacheToDataContainer(mKey, mCache, mDataContainer);
+        @Override
+        public void run() {
+            onQueueWait(MetricsListener.STAGE_DISK, mSubmitTime);
+            InputStreamPipe pipe = isNotNecessary() ? null : loadFromDisk();
+            synchronized (mLock) {
+                if (mStop.get()) {
+                    onFinish();
+                } else {
+                    onDiskLoaded(pipe);
                 }
             }
+            mConaco.dispatchCallbacks();
+        }
+    }
 
-            return isp;
+    /**
+     * Load {@code InputStreamPipe} for many tasks in one disk job.
+     */
+    private static class DiskBatchJob<V> implements Runnable {
+
+        private final List<ConacoTask<V>> mTasks;
+        private final long mSubmitTime = System.nanoTime();
+
+        public DiskBatchJob(List<ConacoTask<V>> tasks) {
+            mTasks = tasks;
         }
 
         @Override
-        protected Object doInBackground(Void... params) {
-            if (isNotNecessary(this)) {
-                return null;
-            } else if (mSkipDecode) {
-                return getPipe();
-            } else {
-                return getValue();
+        public void run() {
+            mTasks.get(0).onQueueWait(MetricsListener.STAGE_DISK, mSubmitTime);
+            InputStreamPipe[] pipes = new InputStreamPipe[mTasks.size()];
+            for (int i = 0, n = mTasks.size(); i < n; i++) {
+                ConacoTask<V> task = mTasks.get(i);
+                if (!task.isNotNecessary()) {
+                    pipes[i] = task.loadFromDisk();
+                }
             }
+
+            Conaco<V> conaco = mTasks.get(0).mConaco;
+            synchronized (conaco.mLock) {
+                for (int i = 0, n = mTasks.size(); i < n; i++) {
+                    ConacoTask<V> task = mTasks.get(i);
+                    if (!task.mStop.get()) {
+                        task.onDiskLoaded(pipes[i]);
+                    }
+                }
+            }
+            conaco.dispatchCallbacks();
+        }
+    }
+
+    /**
+     * Decode value from the {@code InputStreamPipe} which
+     * is got by {@link DiskLoadJob} or {@link NetworkLoadJob}.
+     */
+    private class DecodeJob implements Runnable {
+
+        private final InputStreamPipe mPipe;
+        private final int mSource;
+        private final boolean mFromDataContainer;
+        private final long mSubmitTime = System.nanoTime();
+
+        public DecodeJob(InputStreamPipe pipe, int source, boolean fromDataContainer) {
+            mPipe = pipe;
+            mSource = source;
+            mFromDataContainer = fromDataContainer;
+        }
+
+        private V decode() {
+            long start = mMetrics != null ? System.nanoTime() : 0;
+            V value = mCache.decode(mHelper, mPipe);
+            if (mMetrics != null) {
+                mMetrics.onDecode(System.nanoTime() - start);
+            }
+
+            if (mSource == Conaco.SOURCE_DISK) {
+                // Data container might be broken, check disk cache
+                if (value == null && mFromDataContainer && mUseDiskCache && mKey != null) {
+                    value = mCache.getFromDisk(mKey);
+                }
+            } else if (value == null) {
+                // Maybe bad download, remove it
+                if (mFromDataContainer) {
+                    mDataContainer.remove();
+                }
+                if (mUseDiskCache && mKey != null) {
+                    mCache.removeFromDisk(mKey);
+                }
+            }
+
+            putToMemory(value);
+            return value;
         }
 
-        private void postValue(V value) {
-            // Put value to memory cache
-            if (value != null && mKey != null && mUseMemoryCache && mHelper.useMemoryCache(mKey, value)) {
-                mCache.putToMemory(mKey, value);
+        @Override
+        public void run() {
+            onQueueWait(MetricsListener.STAGE_DECODE, mSubmitTime);
+            V value = isNotNecessary() ? null : decode();
+            synchronized (mLock) {
+                postValue(value, mSource);
+            }
+            mConaco.dispatchCallbacks();
+        }
+    }
+
+    /**
+     * Download to data container or disk cache, then get
+     * {@code InputStreamPipe} from it. Decoding is done in {@link DecodeJob},
+     * or in this job when decoding while downloading.
+     */
+    private class NetworkLoadJob implements Runnable, ProgressNotifier {
+
+        private final String mHost = getHost(mUrl);
+        private boolean mStreamed;
+        private ProgressiveInputStream mProgressiveStream;
+        // The stale disk cache entry is checked with the server
+        private boolean mRevalidated;
+        // The stale disk cache entry is not modified, or the server can't be reached or fails
+        private boolean mNotModified;
+        private V mValue;
+        // Set when the job gets a slot of the host
+        private long mSubmitTime;
+
+        // Guarded by mProgressLock
+        private final Object mProgressLock = new Object();
+        private long mLastPostTime;
+        private long mLastPostSize;
+        private long mSingleReceivedSize;
+        private long mReceivedSize;
+        private long mTotalSize;
+        private long mDeliveredSize;
+        private boolean mProgressPosted;
+        private boolean mProgressQueued;
+        // The task clears its Unikery when it is done, the posted progress
+        // might still run before the value. It is dropped when it runs.
+        private Unikery<V> mProgressUnikery;
+
+        private final Runnable mProgressRunnable = new Runnable() {
+            @Override
+            public void run() {
+                long singleReceivedSize;
+                long receivedSize;
+                long totalSize;
+                Unikery<V> unikery;
+                synchronized (mProgressLock) {
+                    singleReceivedSize = mSingleReceivedSize;
+                    receivedSize = mReceivedSize;
+                    totalSize = mTotalSize;
+                    unikery = mProgressUnikery;
+                    mSingleReceivedSize = 0;
+                    mDeliveredSize = receivedSize;
+                    mProgressPosted = false;
+                    mProgressUnikery = null;
+                }
+
+                if (!mStop.get() && unikery != null && unikery.getTaskId() == mId) {
+                    unikery.onProgress(singleReceivedSize, receivedSize, totalSize);
+                }
+            }
+        };
+
+        /**
+         * Progress is coalesced, it is posted to the callback executor at most
+         * once every {@link Builder#progressInterval} ms, or when it grows
+         * by {@link Builder#progressStep} percent, or when it is done.
+         * The last progress is always delivered.
+         */
+        @Override
+        public void notifyProgress(long singleReceivedSize, long receivedSize, long totalSize) {
+            boolean post;
+            // Segments of a download notify in different threads
+            synchronized (mProgressLock) {
+                mSingleReceivedSize += singleReceivedSize;
+                mReceivedSize = Math.max(mReceivedSize, receivedSize);
+                mTotalSize = totalSize;
+
+                long now = Platform.uptimeMillis();
+                post = receivedSize == totalSize || now - mLastPostTime >= mProgressInterval ||
+                        (mProgressStep > 0 && totalSize > 0 &&
+                                (receivedSize - mLastPostSize) * 100 >= mProgressStep * totalSize);
+                if (post) {
+                    mLastPostTime = now;
+                    mLastPostSize = receivedSize;
+                }
             }
 
-            if (isCancelled() || mStop.get()) {
-                onCancelled(value);
+            if (post) {
+                postProgress();
+            }
+        }
+
+        /**
+         * The first progress goes through the callback queue of Conaco, so it
+         * can't run before the misses queued earlier, even if another thread
+         * is still dispatching them. Later ones go to the callback executor.
+         */
+        private void postProgress() {
+            boolean queue;
+            synchronized (mProgressLock) {
+                if (mProgressPosted) {
+                    // The posted one takes the latest progress
+                    return;
+                }
+                mProgressPosted = true;
+                mProgressUnikery = mUnikeryWeakReference.get();
+                queue = !mProgressQueued;
+                mProgressQueued = true;
+            }
+            if (queue) {
+                synchronized (mLock) {
+                    mConaco.postCallback(mCallbackExecutor, mProgressRunnable);
+                }
+                mConaco.dispatchCallbacks();
             } else {
-                Unikery<V> unikery = mUnikeryWeakReference.get();
-                if (unikery != null && unikery.getTaskId() == mId) {
-                    if (value != null) {
-                        // Get the value
-                        unikery.onGetValue(value, Conaco.SOURCE_DISK);
-                        onFinish();
-                    } else if (mUseNetwork && mUrl != null &&
-                            ((mUseDiskCache && mKey != null) || mDataContainer != null)) {
-                        // Try to get value from network
-                        mDiskMiss = true;
-                        unikery.onMiss(Conaco.SOURCE_DISK);
-                        mNetworkLoadTask = new NetworkLoadTask();
-                        mNetworkLoadTask.executeOnExecutor(mNetworkExecutor);
-                    } else {
-                        // Failed
-                        mDiskMiss = true;
-                        unikery.onMiss(Conaco.SOURCE_DISK);
-                        unikery.onMiss(Conaco.SOURCE_NETWORK);
-                        unikery.onFailure();
-                        onFinish();
+                mCallbackExecutor.execute(mProgressRunnable);
+            }
+        }
+
+        // Make sure the last progress is delivered
+        private void flushProgress() {
+            synchronized (mProgressLock) {
+                if (mReceivedSize == mDeliveredSize) {
+                    return;
+                }
+            }
+            postProgress();
+        }
+
+        /**
+         * Return a progressive decoder for the response, null if not supported.
+         */
+        private ProgressiveDecoder<V> newProgressiveDecoder(Response response) {
+            if (!(mHelper instanceof ProgressiveValueHelper) || mSkipDecode || mStreamDecode ||
+                    mProgressiveSteps == null || mProgressiveSteps.length == 0 ||
+                    !(mUnikeryWeakReference.get() instanceof ProgressiveUnikery) ||
+                    response.code() != 200 || response.body().contentLength() <= 0) {
+                return null;
+            }
+            return ((ProgressiveValueHelper<V>) mHelper).newProgressiveDecoder(getMediaType(response.body()));
+        }
+
+        /**
+         * Return true if the download can be kept in partial store.
+         * It only works for download to disk cache without stream decoding.
+         */
+        private boolean canResume(Validators revalidate) {
+            return mPartialStore != null && revalidate == null && mUseDiskCache && mKey != null &&
+                    (mDataContainer == null || !mDataContainer.isEnabled()) &&
+                    !(mStreamDecode && !mSkipDecode);
+        }
+
+        /**
+         * Return the partial download to write the body to,
+         * null to write to disk cache directly.
+         */
+        private PartialStore.Partial openPartial(Response response, PartialStore.Partial partial)
+                throws IOException {
+            if (partial != null) {
+                if (response.code() == 206) {
+                    if (PartialStore.getRangeStart(response) != partial.length()) {
+                        mPartialStore.remove(mKey);
+                        throw new IOException("Unexpected content range " + response.header("Content-Range"));
                     }
+                    return partial;
                 }
+                // Modified or range is not supported, start again
+                mPartialStore.remove(mKey);
             }
+
+            String validator = PartialStore.getValidator(response);
+            long length = response.body().contentLength();
+            if (response.code() != 200 || validator == null || length < PartialStore.MIN_LENGTH) {
+                return null;
+            }
+            return mPartialStore.begin(mKey, mUrl, validator, length);
         }
 
-        private void postPipe(InputStreamPipe pipe) {
-            if (isCancelled() || mStop.get()) {
-                onCancelled(pipe);
+        /**
+         * Append the body to the partial download.
+         *
+         * @return true if it is complete
+         */
+        private boolean putToPartial(InputStream is, PartialStore.Partial partial) {
+            long receivedSize = partial.length();
+            OutputStream os = null;
+            final byte buffer[] = mBufferPool.acquire();
+            try {
+                os = new FileOutputStream(partial.file, true);
+                int bytesRead;
+                while ((bytesRead = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, bytesRead);
+                    receivedSize += bytesRead;
+                    notifyProgress((long) bytesRead, receivedSize, partial.total);
+                }
+            } catch (IOException e) {
+                // Keep it for next time
+                if (mConaco.mDebug) {
+                    Platform.d(TAG, "Partial download kept, " + receivedSize + "/" + partial.total);
+                }
+                return false;
+            } finally {
+                mBufferPool.release(buffer);
+                closeQuietly(os);
+            }
+            return partial.length() == partial.total;
+        }
+
+        /**
+         * Move the complete partial download to disk cache.
+         */
+        private boolean promote(PartialStore.Partial partial) {
+            if (putFileToDiskCache(partial.file)) {
+                mPartialStore.remove(mKey);
+                return true;
             } else {
-                Unikery<V> unikery = mUnikeryWeakReference.get();
-                if (unikery != null && unikery.getTaskId() == mId) {
-                    if (pipe != null) {
-                        // Get the pipe
-                        unikery.onGetPipe(pipe);
-                        onFinish();
-                    } else if (mUseNetwork && mUrl != null &&
-                            ((mUseDiskCache && mKey != null) || mDataContainer != null)) {
-                        // Try to get value from network
-                        mDiskMiss = true;
-                        unikery.onMiss(Conaco.SOURCE_DISK);
-                        mNetworkLoadTask = new NetworkLoadTask();
-                        mNetworkLoadTask.executeOnExecutor(mNetworkExecutor);
-                    } else {
-                        // Failed
-                        mDiskMiss = true;
-                        unikery.onMiss(Conaco.SOURCE_DISK);
-                        unikery.onMiss(Conaco.SOURCE_NETWORK);
-                        unikery.onFailure();
-                        onFinish();
+                return false;
+            }
+        }
+
+        /**
+         * Copy the complete file to disk cache.
+         */
+        private boolean putFileToDiskCache(File file) {
+            SimpleDiskCache diskCache = mCache.getDiskCache();
+            if (diskCache == null) {
+                return false;
+            }
+
+            OutputStreamPipe pipe = diskCache.getOutputStreamPipe(mKey);
+            InputStream is = null;
+            boolean failed = false;
+            try {
+                pipe.obtain();
+                is = new FileInputStream(file);
+                IOUtils.copy(is, pipe.open(), mBufferPool);
+            } catch (IOException e) {
+                failed = true;
+            } finally {
+                pipe.close();
+                pipe.release();
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        // Ignore
                     }
                 }
             }
+
+            if (failed) {
+                mCache.removeFromDisk(mKey);
+            }
+            return !failed;
         }
 
-        @Override
-        protected void onPostExecute(Object obj) {
-            mDiskLoadTask = null;
-            if (mSkipDecode) {
-                postPipe((InputStreamPipe) obj);
-            } else {
-                postValue((V) obj);
+        /**
+         * Return the count of segments for the response, 1 for no segmented download.
+         */
+        private int getSegmentCount(Response response) {
+            if (mSegments <= 1 || getSegmentDir() == null || response.code() != 200 ||
+                    !"bytes".equalsIgnoreCase(response.header("Accept-Ranges"))) {
+                return 1;
             }
+            long length = response.body().contentLength();
+            return (int) Math.max(1, Math.min(mSegments, length / MIN_SEGMENT_LENGTH));
         }
 
-        @Override
-        protected void onCancelled(Object obj) {
-            onFinish();
+        /**
+         * Return the directory for the file of segments, the one of the data
+         * container file or disk cache, null if there is none.
+         */
+        @Nullable
+        private File getSegmentDir() {
+            if (mDataContainer instanceof FileDataContainer) {
+                File file = ((FileDataContainer) mDataContainer).getFile();
+                if (file != null && file.getParentFile() != null) {
+                    return file.getParentFile();
+                }
+            }
+            return mUseDiskCache && mKey != null ? mSegmentDir : null;
         }
-    }
 
-    private class NetworkLoadTask extends AsyncTask<Void, Long, Object> implements ProgressNotifier {
+        /**
+         * Take slots of the host limiter for segments except the first one,
+         * the first one uses the slot of this job. Return the count of segments
+         * which got a slot, 1 for no segmented download.
+         */
+        private int acquireSegments(int count) {
+            int acquired = 1;
+            while (acquired < count && mHostLimiter.tryAcquire(mHost)) {
+                acquired++;
+            }
+            return acquired;
+        }
 
-        @Override
-        public void notifyProgress(long singleReceivedSize, long receivedSize, long totalSize) {
-            if (!isNotNecessary(this)) {
-                publishProgress(singleReceivedSize, receivedSize, totalSize);
+        /**
+         * Read {@code count} bytes from the stream to the file channel at the position.
+         */
+        private void readRange(InputStream is, FileChannel channel, long position, long count,
+                AtomicLong receivedSize, long totalSize) throws IOException {
+            final byte buffer[] = mBufferPool.acquire();
+            try {
+                while (count > 0) {
+                    if (mStop.get()) {
+                        throw new IOException("Stopped");
+                    }
+                    int bytesRead = is.read(buffer, 0, (int) Math.min(buffer.length, count));
+                    if (bytesRead == -1) {
+                        throw new EOFException("Segment is not complete");
+                    }
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while (bb.hasRemaining()) {
+                        position += channel.write(bb, position);
+                    }
+                    count -= bytesRead;
+                    notifyProgress((long) bytesRead, receivedSize.addAndGet(bytesRead), totalSize);
+                }
+            } finally {
+                mBufferPool.release(buffer);
+            }
+        }
+
+        /**
+         * Download the rest of segments in segment executor. The first segment
+         * is read from the response. They are written to a preallocated file
+         * at the same time, then it is put to data container or disk cache.
+         * The file is in the directory of them, see {@link #getSegmentDir()}.
+         * Each segment except the first one holds a slot got in
+         * {@link #acquireSegments(int)}, it is released when it is done.
+         */
+        private InputStreamPipe loadSegments(Response response, InputStream is, final int count)
+                throws IOException {
+            final long length = response.body().contentLength();
+            final long segmentLength = (length + count - 1) / count;
+            final Request request = response.request();
+            final String validator = PartialStore.getValidator(response);
+
+            File file;
+            try {
+                file = File.createTempFile("conaco", ".segments", getSegmentDir());
+            } catch (IOException e) {
+                for (int i = 1; i < count; i++) {
+                    mHostLimiter.finish(mHost);
+                }
+                throw e;
+            }
+            // The file is deleted in any case, it is as large as the whole body
+            try {
+                RandomAccessFile raf = null;
+                int started = 1;
+                try {
+                    raf = new RandomAccessFile(file, "rw");
+                    raf.setLength(length);
+                    final FileChannel channel = raf.getChannel();
+                    final AtomicLong receivedSize = new AtomicLong();
+                    final AtomicBoolean failed = new AtomicBoolean();
+                    final CountDownLatch latch = new CountDownLatch(count - 1);
+
+                    for (int i = 1; i < count; i++) {
+                        final long start = i * segmentLength;
+                        final long end = Math.min(length, start + segmentLength) - 1;
+                        mSegmentExecutor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                InputStream segmentIs = null;
+                                Call call = null;
+                                try {
+                                    Request.Builder builder = request.newBuilder()
+                                            .header("Range", "bytes=" + start + "-" + end);
+                                    if (validator != null) {
+                                        builder.header("If-Range", validator);
+                                    }
+                                    call = mOkHttpClient.newCall(builder.build());
+                                    mSegmentCalls.add(call);
+                                    if (mStop.get() || failed.get()) {
+                                        return;
+                                    }
+                                    Response segment = call.execute();
+                                    segmentIs = segment.body().byteStream();
+                                    if (segment.code() != 206 || PartialStore.getRangeStart(segment) != start) {
+                                        throw new IOException("Range is not supported");
+                                    }
+                                    readRange(segmentIs, channel, start, end - start + 1, receivedSize, length);
+                                } catch (IOException e) {
+                                    failed.set(true);
+                                } finally {
+                                    if (call != null) {
+                                        mSegmentCalls.remove(call);
+                                    }
+                                    if (segmentIs != null) {
+                                        try {
+                                            segmentIs.close();
+                                        } catch (IOException e) {
+                                            // Ignore
+                                        }
+                                    }
+                                    mHostLimiter.finish(mHost);
+                                    latch.countDown();
+                                }
+                            }
+                        });
+                        started++;
+                    }
+
+                    // The first segment
+                    try {
+                        readRange(is, channel, 0, Math.min(length, segmentLength), receivedSize, length);
+                    } catch (IOException e) {
+                        failed.set(true);
+                        for (Call call : mSegmentCalls) {
+                            call.cancel();
+                        }
+                    }
+
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        failed.set(true);
+                    }
+                    if (failed.get() || mStop.get()) {
+                        return null;
+                    }
+                } finally {
+                    // Release slots of segments which never started
+                    for (; started < count; started++) {
+                        mHostLimiter.finish(mHost);
+                    }
+                    closeQuietly(raf);
+                }
+
+                if (mDataContainer != null && mDataContainer.isEnabled()) {
+                    InputStream fis = new FileInputStream(file);
+                    try {
+                        if (!mDataContainer.save(fis, length, getMediaType(response.body()), null)) {
+                            mDataContainer.remove();
+                            return null;
+                        }
+                    } finally {
+                        fis.close();
+                    }
+                    if (!mSkipDecode && mUseDiskCache && mKey != null) {
+                        putFileToDiskCache(file);
+                        putValidators(response);
+                    }
+                    return mDataContainer.get();
+                } else if (putFileToDiskCache(file)) {
+                    putValidators(response);
+                    return mCache.getDiskCache().getInputStreamPipe(mKey);
+                } else {
+                    return null;
+                }
+            } finally {
+                file.delete();
             }
         }
 
@@ -378,11 +1362,11 @@ public class ConacoTask<V> {
             }
 
             OutputStreamPipe pipe = diskCache.getOutputStreamPipe(mKey);
+            final byte buffer[] = mBufferPool.acquire();
             try {
                 pipe.obtain();
                 OutputStream os = pipe.open();
 
-                final byte buffer[] = new byte[1024 * 4];
                 long receivedSize = 0;
                 int bytesRead;
 
@@ -395,48 +1379,160 @@ public class ConacoTask<V> {
                 return true;
             } catch (IOException e) {
                 if (mConaco.mDebug) {
-                    Log.e(TAG, "Failed to write to disk cache", e);
+                    Platform.e(TAG, "Failed to write to disk cache", e);
                 }
                 return false;
             } finally {
+                mBufferPool.release(buffer);
                 pipe.close();
                 pipe.release();
             }
         }
 
-        private boolean putToDataContainer(InputStream is, ResponseBody body) {
-            // Get media type
-            String mediaType;
+        private V decodeWhileDownloading(InputStream is, long length) {
+            SimpleDiskCache diskCache = mCache.getDiskCache();
+            if (diskCache == null) {
+                return null;
+            }
+
+            TeeInputStreamPipe pipe = new TeeInputStreamPipe(is, mCache.getDiskOutputStreamPipe(mKey),
+                    diskCache, mKey, length, this, mBufferPool);
+            V value = null;
+            long start = mMetrics != null ? System.nanoTime() : 0;
+            try {
+                value = mCache.decode(mHelper, pipe);
+                if (mMetrics != null) {
+                    mMetrics.onDecode(System.nanoTime() - start);
+                }
+            } finally {
+                // Complete the disk cache entry, drop it if anything is wrong
+                if (!pipe.finish() || value == null) {
+                    mCache.removeFromDisk(mKey);
+                }
+            }
+            putToMemory(value);
+            return value;
+        }
+
+        private String getMediaType(ResponseBody body) {
             MediaType mt = body.contentType();
             if (mt != null) {
-                mediaType = mt.type() + '/' + mt.subtype();
+                return mt.type() + '/' + mt.subtype();
             } else {
-                mediaType = null;
+                return null;
             }
-            return mDataContainer.save(is, body.contentLength(), mediaType, this);
         }
 
-        @Override
-        protected Object doInBackground(Void... params) {
-            if (isNotNecessary(this)) {
-                return null;
+        private boolean putToDataContainer(InputStream is, ResponseBody body) {
+            return mDataContainer.save(is, body.contentLength(), getMediaType(body), this);
+        }
+
+        /**
+         * Keep validators of the response for the disk cache entry.
+         * A response without validators can't be checked, it has none,
+         * validators of the old entry are removed.
+         */
+        private void putValidators(Response response) {
+            if (mMaxAge >= 0 && response.isSuccessful()) {
+                SimpleDiskCache diskCache = mCache.getDiskCache();
+                if (diskCache != null) {
+                    Validators validators = Validators.from(response);
+                    if (validators.canRevalidate()) {
+                        validators.write(diskCache, mKey);
+                    } else {
+                        Validators.remove(diskCache, mKey);
+                    }
+                }
             }
+        }
 
+        private InputStreamPipe load() {
             InputStream is = null;
+            long downloadStart = 0;
+            Validators revalidate = mRevalidate;
+            mRevalidate = null;
+            mRevalidated = revalidate != null;
+            boolean responded = false;
+            // A stopped task with the same key might still be using it
+            boolean resume = canResume(revalidate) && mPartialStore.reserve(mKey);
             try {
-                // Load it from internet
-                Request request = new Request.Builder().url(mUrl).build();
-                Call call = mOkHttpClient.newCall(request);
-                mCall.lazySet(call);
+                PartialStore.Partial partial = resume ? mPartialStore.get(mKey, mUrl) : null;
+                Request request;
+                Response response;
+                long requestStart;
+                for (;;) {
+                    // Load it from internet
+                    Request.Builder requestBuilder = new Request.Builder().url(mUrl);
+                    if (revalidate != null) {
+                        revalidate.addTo(requestBuilder);
+                    }
+                    if (partial != null) {
+                        partial.addRangeTo(requestBuilder);
+                    }
+                    request = requestBuilder.build();
+                    Call call = mOkHttpClient.newCall(request);
+                    mCall.set(call);
+                    if (mStop.get()) {
+                        // Stopped before the call is set
+                        return null;
+                    }
 
-                Response response = call.execute();
+                    requestStart = System.nanoTime();
+                    response = call.execute();
+                    if (partial != null && response.code() == 416) {
+                        // The partial download is not a part of it, maybe it is
+                        // the whole body already, start again without range
+                        response.body().close();
+                        mPartialStore.remove(mKey);
+                        partial = null;
+                        continue;
+                    }
+                    break;
+                }
+                if (mMetrics != null) {
+                    downloadStart = System.nanoTime();
+                    mMetrics.onNetworkFirstByte(downloadStart - requestStart);
+                }
+                if (response.protocol() == Protocol.HTTP_2 && mHost != null) {
+                    mHostLimiter.setHttp2(mHost);
+                }
+                responded = true;
                 ResponseBody body = response.body();
                 is = body.byteStream();
 
-                if (isNotNecessary(this)) {
+                if (partial != null && !response.isSuccessful()) {
+                    // Don't put an error to disk cache. The partial download
+                    // is kept for a server error, the resource might be gone otherwise.
+                    if (response.code() < 500) {
+                        mPartialStore.remove(mKey);
+                    }
                     return null;
                 }
 
+                if (isNotNecessary()) {
+                    return null;
+                }
+
+                ProgressiveDecoder<V> decoder = newProgressiveDecoder(response);
+                if (decoder != null) {
+                    mProgressiveStream = new ProgressiveInputStream(is, decoder, body.contentLength());
+                    is = mProgressiveStream;
+                }
+
+                if (revalidate != null) {
+                    if (response.code() == 304) {
+                        // Not modified, use the disk cache entry
+                        SimpleDiskCache diskCache = mCache.getDiskCache();
+                        revalidate.renew(response).write(diskCache, mKey);
+                        mNotModified = true;
+                        return diskCache.getInputStreamPipe(mKey);
+                    } else if (!response.isSuccessful()) {
+                        // Don't overwrite the entry with an error, stale is better than nothing
+                        mNotModified = true;
+                        return mCache.getDiskCache().getInputStreamPipe(mKey);
+                    }
+                }
+
                 if (mDataContainer != null && mDataContainer.isEnabled()) {
                     // Check url Moved
                     HttpUrl requestHttpUrl = request.url();
@@ -445,47 +1541,57 @@ public class ConacoTask<V> {
                         mDataContainer.onUrlMoved(mUrl, responseHttpUrl.url().toString());
                     }
 
+                    int segmentCount = acquireSegments(getSegmentCount(response));
+                    if (segmentCount > 1) {
+                        return loadSegments(response, is, segmentCount);
+                    }
+
                     // Put to data container
                     if (!putToDataContainer(is, body)) {
                         mDataContainer.remove();
                         return null;
                     }
 
-                    // Get value from data container
-                    InputStreamPipe isp = mDataContainer.get();
-                    if (isp == null) {
-                        return null;
+                    // Put to disk cache, it is removed if failed to decode
+                    if (!mSkipDecode && mUseDiskCache && mKey != null) {
+                        putFromDataContainerToDiskCache(mKey, mCache, mDataContainer);
+                        putValidators(response);
                     }
 
-                    if (mSkipDecode) {
-                        // Need InputStreamPipe
-                        return isp;
-                    } else {
-                        // Need value
-                        V value = mHelper.decode(isp);
-                        if (value == null) {
-                            mDataContainer.remove();
-                        } else if (mUseDiskCache && mKey != null) {
-                            // Put to disk cache
-                            putFromDataContainerToDiskCache(mKey, mCache, mDataContainer);
+                    // Get pipe from data container
+                    return mDataContainer.get();
+                } else if (mUseDiskCache && mKey != null) {
+                    int segmentCount = !(mStreamDecode && !mSkipDecode) ?
+                            acquireSegments(getSegmentCount(response)) : 1;
+                    if (segmentCount > 1) {
+                        if (partial != null) {
+                            // Not resumed
+                            mPartialStore.remove(mKey);
                         }
-                        return value;
+                        return loadSegments(response, is, segmentCount);
                     }
-                } else if (mUseDiskCache && mKey != null) {
-                    if (putToDiskCache(is, body.contentLength())) {
-                        if (mSkipDecode) {
-                            // Need InputStreamPipe
+
+                    PartialStore.Partial target = resume ? openPartial(response, partial) : null;
+                    if (target != null) {
+                        // Download to partial store, move it to disk cache when it is complete
+                        if (putToPartial(is, target) && promote(target)) {
+                            putValidators(response);
                             return mCache.getDiskCache().getInputStreamPipe(mKey);
                         } else {
-                            // Need value
-                            // Get object from disk cache
-                            V value = mCache.getFromDisk(mKey);
-                            if (value == null) {
-                                // Maybe bad download, remove it from disk cache
-                                mCache.removeFromDisk(mKey);
-                            }
-                            return value;
+                            return null;
                         }
+                    } else if (mStreamDecode && !mSkipDecode) {
+                        // Decode and write to disk cache at the same time
+                        mStreamed = true;
+                        mValue = decodeWhileDownloading(is, body.contentLength());
+                        if (mValue != null) {
+                            putValidators(response);
+                        }
+                        return null;
+                    } else if (putToDiskCache(is, body.contentLength())) {
+                        putValidators(response);
+                        // Get pipe from disk cache
+                        return mCache.getDiskCache().getInputStreamPipe(mKey);
                     } else {
                         // Maybe bad download, remove it from disk cache
                         mCache.removeFromDisk(mKey);
@@ -496,11 +1602,24 @@ public class ConacoTask<V> {
                 }
             } catch (Exception e) {
                 if (mConaco.mDebug) {
-                    e.printStackTrace();
+                    Platform.w(TAG, "Failed to load " + mUrl, e);
+                }
+                if (revalidate != null && !responded && !mStop.get()) {
+                    // Can't reach the server, stale is better than nothing
+                    mNotModified = true;
+                    return mCache.getDiskCache().getInputStreamPipe(mKey);
                 }
                 return null;
             } finally {
-                mCall.lazySet(null);
+                flushProgress();
+                if (mMetrics != null && downloadStart != 0) {
+                    long receivedSize;
+                    synchronized (mProgressLock) {
+                        receivedSize = mReceivedSize;
+                    }
+                    mMetrics.onDownload(receivedSize, System.nanoTime() - downloadStart);
+                }
+                mCall.set(null);
                 try {
                     if (is != null) {
                         is.close();
@@ -508,70 +1627,214 @@ public class ConacoTask<V> {
                 } catch (IOException e) {
                     // Ignore
                 }
+                if (mProgressiveStream != null) {
+                    mProgressiveStream.closeDecoder();
+                    mProgressiveStream = null;
+                }
+                if (resume) {
+                    mPartialStore.release(mKey);
+                }
             }
         }
 
-        private void postValue(V value) {
-            // Put value to memory cache
-            if (value != null && mKey != null && mUseMemoryCache && mHelper.useMemoryCache(mKey, value)) {
-                mCache.putToMemory(mKey, value);
+        @Override
+        public void run() {
+            onQueueWait(MetricsListener.STAGE_NETWORK, mSubmitTime);
+            InputStreamPipe pipe;
+            try {
+                pipe = isNotNecessary() ? null : load();
+            } finally {
+                mHostLimiter.finish(mHost);
             }
+            synchronized (mLock) {
+                onNetworkLoaded(pipe);
+            }
+            mConaco.dispatchCallbacks();
+        }
 
-            if (isCancelled() || mStop.get()) {
-                onCancelled(value);
+        // Lock held
+        private void onNetworkLoaded(InputStreamPipe pipe) {
+            mStage = STAGE_NONE;
+            Unikery<V> current = mUnikeryWeakReference.get();
+            if (mRevalidated && !mNotModified && !mStop.get() &&
+                    current != null && current.getTaskId() == mId) {
+                // The stale entry is replaced or gone, it is a disk miss after all
+                mDiskMiss = true;
+                deliverMiss(current, Conaco.SOURCE_DISK);
+            }
+            if (mStreamed) {
+                postValue(mValue, Conaco.SOURCE_NETWORK);
+            } else if (mStop.get()) {
+                onFinish();
             } else {
                 Unikery<V> unikery = mUnikeryWeakReference.get();
                 if (unikery != null && unikery.getTaskId() == mId) {
-                    if (value != null) {
-                        unikery.onGetValue(value, Conaco.SOURCE_NETWORK);
+                    if (mNotModified) {
+                        // Same as a disk hit, a miss if the entry is gone
+                        onDiskLoaded(pipe);
+                        return;
+                    }
+                    if (pipe == null || mSkipDecode) {
+                        onLookup(Conaco.SOURCE_NETWORK, pipe != null);
+                    }
+                    if (pipe == null) {
+                        deliverFailure(unikery, false);
+                        onFinish();
+                    } else if (mSkipDecode) {
+                        deliverPipe(unikery, pipe);
+                        onFinish();
                     } else {
-                        unikery.onMiss(Conaco.SOURCE_NETWORK);
-                        unikery.onFailure();
+                        decode(pipe, Conaco.SOURCE_NETWORK, mDataContainer != null && mDataContainer.isEnabled());
                     }
+                } else {
+                    onFinish();
                 }
-                onFinish();
             }
         }
+    }
 
-        private void postPipe(InputStreamPipe pipe) {
-            if (isCancelled() || mStop.get()) {
-                onCancelled(pipe);
-            } else {
-                Unikery<V> unikery = mUnikeryWeakReference.get();
-                if (unikery != null && unikery.getTaskId() == mId) {
-                    if (pipe != null) {
-                        unikery.onGetPipe(pipe);
-                    } else {
-                        unikery.onMiss(Conaco.SOURCE_NETWORK);
-                        unikery.onFailure();
+    /**
+     * Feeds bytes read to the progressive decoder, and decodes a partial
+     * value in the decode executor each time a step of
+     * {@link Builder#progressiveSteps} is passed. The network thread never
+     * waits for decoding. Bytes read while decoding are kept and fed after it,
+     * a step passed while decoding is skipped.
+     */
+    private class ProgressiveInputStream extends FilterInputStream {
+
+        private final ProgressiveDecoder<V> mDecoder;
+        private final long mTotalSize;
+        private final byte[] mSingle = new byte[1];
+        private long mReceivedSize;
+        private int mNextStep;
+
+        private final Object mDecoderLock = new Object();
+        // Guarded by mDecoderLock, the decoder is only used by the decode job if true
+        private boolean mDecoding;
+        // Guarded by mDecoderLock, bytes read while decoding
+        private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+        // Guarded by mDecoderLock
+        private boolean mClosed;
+
+        private final Runnable mDecodeJob = new Runnable() {
+            @Override
+            public void run() {
+                V value = mStop.get() ? null : mDecoder.decodePartial();
+                boolean closed;
+                synchronized (mDecoderLock) {
+                    closed = mClosed;
+                    if (closed) {
+                        mDecoder.close();
+                    } else if (mPending.size() > 0) {
+                        mDecoder.write(mPending.toByteArray(), 0, mPending.size());
+                        mPending.reset();
                     }
+                    mDecoding = false;
+                }
+                if (value != null && !closed) {
+                    onPartialValue(value);
+                }
+            }
+        };
+
+        public ProgressiveInputStream(InputStream in, ProgressiveDecoder<V> decoder, long totalSize) {
+            super(in);
+            mDecoder = decoder;
+            mTotalSize = totalSize;
+        }
+
+        private void onRead(byte[] b, int off, int len) {
+            mReceivedSize += len;
+
+            boolean passed = false;
+            while (mNextStep < mProgressiveSteps.length &&
+                    mReceivedSize * 100 >= mProgressiveSteps[mNextStep] * mTotalSize) {
+                mNextStep++;
+                passed = true;
+            }
+
+            synchronized (mDecoderLock) {
+                if (mDecoding) {
+                    mPending.write(b, off, len);
+                    return;
+                }
+                mDecoder.write(b, off, len);
+                // The whole value is decoded later
+                if (!passed || mReceivedSize >= mTotalSize || mStop.get()) {
+                    return;
+                }
+                mDecoding = true;
+            }
+            mDecodeExecutor.execute(mDecodeJob);
+        }
+
+        private void onPartialValue(V value) {
+            synchronized (mLock) {
+                // Not after the whole value
+                Unikery<V> unikery = mUnikeryWeakReference.get();
+                if (mStage == STAGE_NETWORK && !mStop.get() &&
+                        unikery != null && unikery.getTaskId() == mId) {
+                    deliverPartialValue(unikery, value);
+                }
+            }
+            mConaco.dispatchCallbacks();
+        }
+
+        /**
+         * The download is done or failed. Close the decoder now,
+         * or after the running decode job.
+         */
+        public void closeDecoder() {
+            synchronized (mDecoderLock) {
+                mClosed = true;
+                if (!mDecoding) {
+                    mDecoder.close();
                 }
-                onFinish();
             }
         }
 
         @Override
-        protected void onPostExecute(Object obj) {
-            mNetworkLoadTask = null;
-            if (mSkipDecode) {
-                postPipe((InputStreamPipe) obj);
-            } else {
-                postValue((V) obj);
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                mSingle[0] = (byte) b;
+                onRead(mSingle, 0, 1);
             }
+            return b;
         }
 
         @Override
-        protected void onCancelled(Object value) {
-            onFinish();
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                onRead(b, off, n);
+            }
+            return n;
         }
 
         @Override
-        protected void onProgressUpdate(Long... values) {
-            Unikery unikery = mUnikeryWeakReference.get();
-            if (!mStop.get() && !isCancelled() && unikery != null && unikery.getTaskId() == mId) {
-                unikery.onProgress(values[0], values[1], values[2]);
+        public long skip(long n) throws IOException {
+            // Skipped bytes must be fed too
+            byte[] buffer = mBufferPool.acquire();
+            try {
+                long skipped = 0;
+                while (skipped < n) {
+                    int read = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+                    if (read == -1) {
+                        break;
+                    }
+                    skipped += read;
+                }
+                return skipped;
+            } finally {
+                mBufferPool.release(buffer);
             }
         }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
     }
 
     public static class Builder<T> {
@@ -591,21 +1854,128 @@ public class ConacoTask<V> {
          * Default value is false.
          */
         public boolean skipDecode;
+        /**
+         * {@code true} to decode the value while downloading it to disk cache,
+         * instead of reading it back from disk cache after downloading.
+         * Decoding runs in the network thread. It doesn't work with data container.
+         * Default value is false.
+         */
+        public boolean streamDecode;
+        /**
+         * Higher priority task gets network first. It only works
+         * when network executor is {@link PriorityExecutor}.
+         * Default value is {@link ConacoTask#PRIORITY_NORMAL}.
+         */
+        public int priority = PRIORITY_NORMAL;
+        /**
+         * Min interval in ms between two {@link Unikery#onProgress(long, long, long)}.
+         * Default value is 100.
+         */
+        public long progressInterval = 100L;
+        /**
+         * Call {@link Unikery#onProgress(long, long, long)} when progress grows by
+         * the percent even if {@link #progressInterval} is not passed. 0 to disable it.
+         * Default value is 0.
+         */
+        public int progressStep = 0;
+        /**
+         * Percents of download to decode partial values at. It only works with
+         * {@link ProgressiveValueHelper} and {@link ProgressiveUnikery}. Partial
+         * values are decoded in the decode executor. A segmented download only
+         * reads its first segment in order, so steps past it are skipped.
+         * Null to disable it. Default value is {25, 50, 75}.
+         */
+        public int[] progressiveSteps = {25, 50, 75};
+        /**
+         * Max age in ms of a disk cache entry. An older entry is checked with
+         * the server by {@code If-None-Match} or {@code If-Modified-Since} first,
+         * it is a disk hit if not modified, or if the server fails or can't be reached.
+         * Otherwise {@link Unikery#onMiss(int)} is called with {@link Conaco#SOURCE_DISK}
+         * and the new response replaces the entry. Validators of responses are kept
+         * in disk cache only if it is not negative, an entry whose response has
+         * neither {@code ETag} nor {@code Last-Modified} never gets old.
+         * Data container is never checked.
+         * Default value is -1, disk cache entries never get old.
+         */
+        public long maxAge = -1L;
+        /**
+         * Max count of byte ranges to download at the same time. A large download
+         * which supports ranges is split to segments of at least 512 KB after the
+         * first response, they are fetched in parallel. Each segment is a request
+         * limited by {@link Conaco.Builder#maxRequestsPerHost}, fewer segments are
+         * used if the host is busy. Default value is 1, disabled.
+         */
+        public int segments = 1;
         public ValueHelper<T> helper;
         public ValueCache<T> cache;
         public OkHttpClient okHttpClient;
         public Executor diskExecutor;
         public Executor networkExecutor;
+        public Executor decodeExecutor;
+        /**
+         * The executor to call the Unikery in. Null for the one of Conaco,
+         * it is UI thread by default. It should run commands in order.
+         */
+        public Executor callbackExecutor;
+        public BufferPool bufferPool;
+        public MetricsListener metricsListener;
+        HostLimiter hostLimiter;
+        PartialStore partialStore;
+        Executor segmentExecutor;
+        File segmentDir;
+        boolean prefetch;
 
         public void isValid() {
             if (unikery == null) {
                 throw new IllegalStateException("Must set unikery");
             }
+            if (segments < 1) {
+                throw new IllegalStateException("Segments must be positive");
+            }
             if (key == null && url == null && dataContainer == null) {
                 throw new IllegalStateException("At least one of mKey and mUrl and mDataContainer have to not be null");
             }
         }
 
+        /**
+         * Return a builder with the same fields.
+         */
+        Builder<T> copy() {
+            Builder<T> builder = new Builder<>();
+            builder.id = id;
+            builder.conaco = conaco;
+            builder.unikery = unikery;
+            builder.key = key;
+            builder.url = url;
+            builder.dataContainer = dataContainer;
+            builder.useMemoryCache = useMemoryCache;
+            builder.useDiskCache = useDiskCache;
+            builder.useNetwork = useNetwork;
+            builder.skipDecode = skipDecode;
+            builder.streamDecode = streamDecode;
+            builder.priority = priority;
+            builder.progressInterval = progressInterval;
+            builder.progressStep = progressStep;
+            builder.progressiveSteps = progressiveSteps;
+            builder.maxAge = maxAge;
+            builder.segments = segments;
+            builder.helper = helper;
+            builder.cache = cache;
+            builder.okHttpClient = okHttpClient;
+            builder.diskExecutor = diskExecutor;
+            builder.networkExecutor = networkExecutor;
+            builder.decodeExecutor = decodeExecutor;
+            builder.callbackExecutor = callbackExecutor;
+            builder.bufferPool = bufferPool;
+            builder.metricsListener = metricsListener;
+            builder.hostLimiter = hostLimiter;
+            builder.partialStore = partialStore;
+            builder.segmentExecutor = segmentExecutor;
+            builder.segmentDir = segmentDir;
+            builder.prefetch = prefetch;
+            return builder;
+        }
+
         public ConacoTask<T> build() {
             return new ConacoTask<>(this);
         }
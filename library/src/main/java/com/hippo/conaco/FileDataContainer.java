@@ -0,0 +1,38 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * A {@link DataContainer} which saves data in a local file.
+ * <p>
+ * Conaco copies data between the file and disk cache with
+ * {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * instead of copying through {@link #save(java.io.InputStream, long, String, ProgressNotifier)}.
+ */
+public interface FileDataContainer extends DataContainer {
+
+    /**
+     * Get the file to save data. {@link #get()} must read the same file.
+     * Return null to use {@link #save(java.io.InputStream, long, String, ProgressNotifier)}.
+     */
+    @Nullable
+    File getFile();
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A count-min sketch which estimates how often keys are seen, it is
+ * the frequency filter of {@link TinyLfuMemoryCache}. Each key has 4
+ * counters of 4 bits, packed in longs, the estimate is the min of them.
+ * All counters are halved after {@code 10 * capacity} increments,
+ * so old popularity fades.
+ */
+class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long HALF_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {
+            0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L };
+
+    private long[] mTable;
+    private int mWidthMask;
+    private int mSampleSize;
+    private int mAdditions;
+
+    public FrequencySketch(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Resize it for the count of keys. Counts are dropped if it is resized.
+     */
+    public void ensureCapacity(int capacity) {
+        int width = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+        if (mTable != null && mWidthMask + 1 >= width) {
+            return;
+        }
+        // Each long holds 16 counters
+        mTable = new long[Math.max(1, width * DEPTH / 16)];
+        mWidthMask = width - 1;
+        mSampleSize = 10 * Math.max(capacity, 16);
+        mAdditions = 0;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 17;
+        h *= 0xed5ad4bb;
+        h ^= h >>> 11;
+        h *= 0xac4c1b51;
+        h ^= h >>> 15;
+        return h;
+    }
+
+    /**
+     * Return the index of the counter of the row in all counters.
+     */
+    private int counterIndex(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        int column = (int) (h >>> 32) & mWidthMask;
+        return row * (mWidthMask + 1) + column;
+    }
+
+    private int getCount(int index) {
+        return (int) (mTable[index >>> 4] >>> ((index & 15) << 2)) & 0xF;
+    }
+
+    /**
+     * Return the estimated count of the key, from 0 to 15.
+     */
+    public int frequency(@NonNull Object key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int row = 0; row < DEPTH; row++) {
+            min = Math.min(min, getCount(counterIndex(hash, row)));
+        }
+        return min;
+    }
+
+    /**
+     * Count the key once.
+     */
+    public void increment(@NonNull Object key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = counterIndex(hash, row);
+            if (getCount(index) < MAX_COUNT) {
+                mTable[index >>> 4] += 1L << ((index & 15) << 2);
+                added = true;
+            }
+        }
+        if (added && ++mAdditions >= mSampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Halve all counters.
+     */
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & HALF_MASK;
+        }
+        mAdditions /= 2;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Limits in-flight network jobs for each host. Jobs over the limit wait
+ * in the queue of their host without holding a network thread, so jobs
+ * of other hosts go on while one host is slow. The queue is ordered like
+ * {@link PriorityExecutor}, by priority, then in FIFO or LIFO order.
+ * <p>
+ * A host which has answered with HTTP/2 gets a higher limit, as its
+ * requests share one multiplexed connection instead of opening more.
+ */
+class HostLimiter {
+
+    private static final int MAX_HTTP2_HOSTS = 64;
+
+    private final int mMaxPerHost;
+    private final int mMaxPerHttp2Host;
+    private final boolean mLifo;
+    // Guarded by this
+    private long mSequence;
+
+    // Guarded by this
+    private final Map<String, Host> mHosts = new HashMap<>();
+    // Guarded by this, in access order, the eldest is dropped first
+    private final Set<String> mHttp2Hosts = new LinkedHashSet<>();
+
+    /**
+     * @param lifo true to start the newest waiting job of a priority first
+     */
+    public HostLimiter(int maxPerHost, int maxPerHttp2Host, boolean lifo) {
+        mMaxPerHost = maxPerHost;
+        mMaxPerHttp2Host = maxPerHttp2Host;
+        mLifo = lifo;
+    }
+
+    private int getLimit(String host) {
+        return mHttp2Hosts.contains(host) ? mMaxPerHttp2Host : mMaxPerHost;
+    }
+
+    /**
+     * Run {@code start} now if the host is under its limit, otherwise
+     * run it after a job of the host is done. {@code start} should
+     * only hand the job to an executor.
+     * {@link #finish(String)} must be called when the job is done.
+     *
+     * @param host the host, null for no limit
+     */
+    public void execute(@Nullable String host, @NonNull Runnable start) {
+        execute(host, 0, null, start);
+    }
+
+    /**
+     * Same as {@link #execute(String, Runnable)}, higher priority starts first.
+     *
+     * @param tag the tag for {@link #reprioritize(String, Object, int)}, can be null
+     */
+    public void execute(@Nullable String host, int priority, @Nullable Object tag,
+            @NonNull Runnable start) {
+        if (host != null) {
+            synchronized (this) {
+                Host h = mHosts.get(host);
+                if (h == null) {
+                    h = new Host();
+                    mHosts.put(host, h);
+                }
+                if (h.running >= getLimit(host)) {
+                    h.waiting.offer(new Waiting(start, priority, tag, mSequence++));
+                    return;
+                }
+                h.running++;
+            }
+        }
+        start.run();
+    }
+
+    /**
+     * Take a slot of the host if it is under its limit, never wait.
+     * {@link #finish(String)} must be called if it returns true.
+     *
+     * @param host the host, null for no limit
+     */
+    public boolean tryAcquire(@Nullable String host) {
+        if (host == null) {
+            return true;
+        }
+
+        synchronized (this) {
+            Host h = mHosts.get(host);
+            if (h == null) {
+                h = new Host();
+                mHosts.put(host, h);
+            }
+            if (h.running >= getLimit(host)) {
+                return false;
+            }
+            h.running++;
+            return true;
+        }
+    }
+
+    /**
+     * A job of the host is done, start waiting ones if possible.
+     *
+     * @param host the host passed to {@link #execute(String, Runnable)}
+     *             or {@link #tryAcquire(String)}
+     */
+    public void finish(@Nullable String host) {
+        if (host == null) {
+            return;
+        }
+
+        ArrayDeque<Runnable> starts = null;
+        synchronized (this) {
+            Host h = mHosts.get(host);
+            if (h == null) {
+                return;
+            }
+            h.running--;
+            int limit = getLimit(host);
+            while (h.running < limit && !h.waiting.isEmpty()) {
+                if (starts == null) {
+                    starts = new ArrayDeque<>();
+                }
+                starts.offer(h.waiting.poll().start);
+                h.running++;
+            }
+            if (h.running == 0) {
+                mHosts.remove(host);
+            }
+        }
+
+        if (starts != null) {
+            for (Runnable start : starts) {
+                start.run();
+            }
+        }
+    }
+
+    /**
+     * Move waiting jobs of the host with the tag to the new priority.
+     * They keep their order among waiting jobs of the new priority.
+     *
+     * @return true if any job is moved
+     */
+    public boolean reprioritize(@Nullable String host, @NonNull Object tag, int priority) {
+        if (host == null) {
+            return false;
+        }
+
+        synchronized (this) {
+            Host h = mHosts.get(host);
+            if (h == null) {
+                return false;
+            }
+            List<Waiting> moved = null;
+            for (Iterator<Waiting> iterator = h.waiting.iterator(); iterator.hasNext();) {
+                Waiting waiting = iterator.next();
+                if (tag.equals(waiting.tag)) {
+                    iterator.remove();
+                    if (moved == null) {
+                        moved = new ArrayList<>();
+                    }
+                    moved.add(new Waiting(waiting.start, priority, tag, waiting.sequence));
+                }
+            }
+            if (moved == null) {
+                return false;
+            }
+            h.waiting.addAll(moved);
+            return true;
+        }
+    }
+
+    /**
+     * The host answers with HTTP/2, raise its limit.
+     */
+    public void setHttp2(@NonNull String host) {
+        synchronized (this) {
+            // Move it to the tail
+            mHttp2Hosts.remove(host);
+            mHttp2Hosts.add(host);
+            if (mHttp2Hosts.size() > MAX_HTTP2_HOSTS) {
+                Iterator<String> iterator = mHttp2Hosts.iterator();
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Return the count of running jobs of the host.
+     */
+    public synchronized int getRunningCount(@NonNull String host) {
+        Host h = mHosts.get(host);
+        return h != null ? h.running : 0;
+    }
+
+    private static class Host {
+        private int running;
+        private final PriorityQueue<Waiting> waiting = new PriorityQueue<>();
+    }
+
+    private class Waiting implements Comparable<Waiting> {
+
+        private final Runnable start;
+        private final int priority;
+        private final Object tag;
+        private final long sequence;
+
+        public Waiting(Runnable start, int priority, Object tag, long sequence) {
+            this.start = start;
+            this.priority = priority;
+            this.tag = tag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(@NonNull Waiting another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            if (sequence == another.sequence) {
+                return 0;
+            }
+            boolean earlier = sequence < another.sequence;
+            return earlier != mLifo ? -1 : 1;
+        }
+    }
+}
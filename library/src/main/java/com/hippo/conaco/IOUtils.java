@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+final class IOUtils {
+    private IOUtils() {}
+
+    /**
+     * Copy all bytes from the {@code InputStream} to the {@code OutputStream}.
+     * If both of them are file streams, the bytes are copied by {@code FileChannel}
+     * without passing through user space buffers. If the channel stops
+     * transferring, the rest is copied with a buffer.
+     *
+     * @return the count of bytes copied
+     */
+    static long copy(@NonNull InputStream is, @NonNull OutputStream os,
+            @NonNull BufferPool pool) throws IOException {
+        long count = 0;
+        if (is instanceof FileInputStream && os instanceof FileOutputStream) {
+            FileChannel in = ((FileInputStream) is).getChannel();
+            count = transfer(in, ((FileOutputStream) os).getChannel());
+            if (in.position() >= in.size()) {
+                return count;
+            }
+        }
+
+        final byte buffer[] = pool.acquire();
+        try {
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                os.write(buffer, 0, bytesRead);
+                count += bytesRead;
+            }
+            return count;
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Transfer bytes from the position of {@code in} to the end. It stops
+     * if {@code transferTo} returns 0, the position of {@code in} tells
+     * where it stops.
+     */
+    private static long transfer(FileChannel in, FileChannel out) throws IOException {
+        long position = in.position();
+        long size = in.size();
+        long count = 0;
+        while (position < size) {
+            long n = in.transferTo(position, size - position, out);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
+            count += n;
+        }
+        // Keep stream position in sync
+        in.position(position);
+        return count;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link MemoryCache} which evicts the least recently used entries.
+ */
+public class LruMemoryCache<V> extends MemoryCache<V> {
+
+    private final LinkedHashMap<String, Entry<V>> mMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    public LruMemoryCache(int maxSize, @NonNull Callback<V> callback) {
+        super(maxSize, callback);
+    }
+
+    @Override
+    public V get(@NonNull String key) {
+        Entry<V> entry = mMap.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    @Override
+    public V put(@NonNull String key, @NonNull V value) {
+        Entry<V> entry = new Entry<>(value, safeSizeOf(key, value));
+        Entry<V> previous = mMap.put(key, entry);
+        mSize += entry.size;
+        if (previous != null) {
+            mSize -= previous.size;
+            mCallback.onEntryRemoved(false, key, previous.value, value);
+        }
+        mCallback.onEntryAdded(key, value);
+        trimToSize(mMaxSize, Integer.MAX_VALUE);
+        return previous != null ? previous.value : null;
+    }
+
+    @Override
+    public V remove(@NonNull String key) {
+        Entry<V> entry = mMap.remove(key);
+        if (entry != null) {
+            mSize -= entry.size;
+            mCallback.onEntryRemoved(false, key, entry.value, null);
+            return entry.value;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public void clear() {
+        Iterator<Map.Entry<String, Entry<V>>> iterator = mMap.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry<V>> e = iterator.next();
+            iterator.remove();
+            mSize -= e.getValue().size;
+            mCallback.onEntryRemoved(false, e.getKey(), e.getValue().value, null);
+        }
+    }
+
+    @Override
+    public int count() {
+        return mMap.size();
+    }
+
+    /**
+     * Evict the least recently used entry.
+     */
+    @Override
+    protected boolean evictOne() {
+        Iterator<Map.Entry<String, Entry<V>>> iterator = mMap.entrySet().iterator();
+        if (!iterator.hasNext()) {
+            return false;
+        }
+        Map.Entry<String, Entry<V>> e = iterator.next();
+        iterator.remove();
+        mSize -= e.getValue().size;
+        mCallback.onEntryRemoved(true, e.getKey(), e.getValue().value, null);
+        return true;
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+        private final int size;
+
+        public Entry(V value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
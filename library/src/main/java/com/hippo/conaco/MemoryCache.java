@@ -0,0 +1,142 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * The memory tier of {@link ValueCache}. It is bounded by the total size
+ * of values, the size of each value is got from {@link Callback#sizeOf(String, Object)}.
+ * Subclasses decide which entries to keep when it is full.
+ * <p>
+ * It is not thread-safe.
+ */
+public abstract class MemoryCache<V> {
+
+    /**
+     * Size and events of entries.
+     */
+    public interface Callback<V> {
+
+        int sizeOf(@NonNull String key, @NonNull V value);
+
+        void onEntryAdded(@NonNull String key, @NonNull V value);
+
+        /**
+         * @param evicted true if it is removed to make space,
+         *                false if it is removed or replaced by user
+         * @param newValue the new value if it is replaced, otherwise null
+         */
+        void onEntryRemoved(boolean evicted, @NonNull String key, @NonNull V oldValue, @Nullable V newValue);
+    }
+
+    protected final Callback<V> mCallback;
+    protected int mMaxSize;
+    protected int mSize;
+
+    public MemoryCache(int maxSize, @NonNull Callback<V> callback) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        mCallback = callback;
+    }
+
+    /**
+     * Return the value of the key and record the access, null if not found.
+     */
+    @Nullable
+    public abstract V get(@NonNull String key);
+
+    /**
+     * Put the value, entries might be evicted.
+     *
+     * @return the previous value of the key
+     */
+    @Nullable
+    public abstract V put(@NonNull String key, @NonNull V value);
+
+    /**
+     * Remove the value of the key.
+     *
+     * @return the removed value
+     */
+    @Nullable
+    public abstract V remove(@NonNull String key);
+
+    /**
+     * Remove all entries.
+     */
+    public abstract void clear();
+
+    /**
+     * Return the count of entries.
+     */
+    public abstract int count();
+
+    /**
+     * Evict one entry, the one the policy values least.
+     *
+     * @return false if it is empty
+     */
+    protected abstract boolean evictOne();
+
+    /**
+     * Evict entries until the size is not larger than {@code size},
+     * but evict at most {@code maxCount} entries.
+     *
+     * @return the count of evicted entries
+     */
+    public int trimToSize(int size, int maxCount) {
+        int count = 0;
+        while (mSize > size && count < maxCount && evictOne()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Change max size. Entries are not evicted at once,
+     * they are evicted by the next put or {@link #trimToSize(int, int)}.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive: " + maxSize);
+        }
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Return the total size of all values.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    protected int safeSizeOf(String key, V value) {
+        int size = mCallback.sizeOf(key, value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return size;
+    }
+}
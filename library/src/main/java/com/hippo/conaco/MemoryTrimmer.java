@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Trims a thread-safe {@link MemoryCache} for memory pressure and resizing.
+ * <p>
+ * While the UI is visible, a few entries are evicted in each frame, so
+ * evicting many entries doesn't drop frames. Once the UI is hidden,
+ * it is trimmed at once.
+ */
+class MemoryTrimmer implements Runnable {
+
+    // Same as levels in ComponentCallbacks2
+    static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    static final int TRIM_MEMORY_BACKGROUND = 40;
+
+    private static final int NONE = -1;
+
+    private final MemoryCache<?> mCache;
+    private final Executor mFrameExecutor;
+    private final int mEntriesPerFrame;
+
+    // Guarded by this
+    private int mTrimSize = NONE;
+    private int mPendingMaxSize = NONE;
+    private boolean mScheduled;
+
+    /**
+     * @param frameExecutor runs a command in the next frame
+     * @param entriesPerFrame max count of entries to evict in each frame
+     */
+    public MemoryTrimmer(@NonNull MemoryCache<?> cache, @NonNull Executor frameExecutor,
+            int entriesPerFrame) {
+        mCache = cache;
+        mFrameExecutor = frameExecutor;
+        mEntriesPerFrame = entriesPerFrame;
+    }
+
+    /**
+     * Return how much of max size is kept for the trim level.
+     */
+    static float getKeepRatio(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            return 0.0f;
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 0.5f;
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            return 0.75f;
+        } else {
+            return 1.0f;
+        }
+    }
+
+    /**
+     * Evict entries down to a part of max size for the level.
+     */
+    public void trim(int level) {
+        float ratio = getKeepRatio(level);
+        if (ratio >= 1.0f) {
+            return;
+        }
+        synchronized (this) {
+            int maxSize = mPendingMaxSize != NONE ? mPendingMaxSize : mCache.maxSize();
+            int size = (int) (maxSize * ratio);
+            if (level >= TRIM_MEMORY_UI_HIDDEN) {
+                // No frame to drop
+                mCache.trimToSize(size, Integer.MAX_VALUE);
+            } else {
+                mTrimSize = mTrimSize != NONE ? Math.min(mTrimSize, size) : size;
+                scheduleLocked();
+            }
+        }
+    }
+
+    /**
+     * Change max size. If it shrinks, the new max size
+     * takes effect after entries are evicted down to it.
+     */
+    public synchronized void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive: " + maxSize);
+        }
+        if (maxSize >= mCache.maxSize()) {
+            mPendingMaxSize = NONE;
+            mCache.setMaxSize(maxSize);
+        } else {
+            mPendingMaxSize = maxSize;
+            scheduleLocked();
+        }
+    }
+
+    /**
+     * Return true if entries are evicted in frames.
+     */
+    public synchronized boolean isTrimming() {
+        return mScheduled;
+    }
+
+    private int getTargetLocked() {
+        if (mTrimSize == NONE) {
+            return mPendingMaxSize;
+        } else if (mPendingMaxSize == NONE) {
+            return mTrimSize;
+        } else {
+            return Math.min(mTrimSize, mPendingMaxSize);
+        }
+    }
+
+    private void scheduleLocked() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mFrameExecutor.execute(this);
+        }
+    }
+
+    /**
+     * Evict some entries in this frame.
+     */
+    @Override
+    public synchronized void run() {
+        int target = getTargetLocked();
+        if (target != NONE) {
+            mCache.trimToSize(target, mEntriesPerFrame);
+            if (mCache.size() > target) {
+                mFrameExecutor.execute(this);
+                return;
+            }
+        }
+
+        // Done
+        if (mPendingMaxSize != NONE) {
+            mCache.setMaxSize(mPendingMaxSize);
+            mPendingMaxSize = NONE;
+        }
+        mTrimSize = NONE;
+        mScheduled = false;
+    }
+}
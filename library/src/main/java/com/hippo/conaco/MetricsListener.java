@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.IntDef;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+/**
+ * Receives metrics of Conaco. It is called in many threads.
+ * Keep it fast, or it slows down loading.
+ *
+ * @see ConacoMetrics
+ */
+public interface MetricsListener {
+
+    @IntDef({STAGE_DISK, STAGE_NETWORK, STAGE_DECODE})
+    @Retention(RetentionPolicy.SOURCE)
+    @interface Stage {}
+
+    int STAGE_DISK = 0;
+    int STAGE_NETWORK = 1;
+    int STAGE_DECODE = 2;
+
+    /**
+     * Time between a stage is submitted to its executor and it starts running.
+     * A network stage is submitted when it gets a slot of the host,
+     * the wait for the slot is not counted.
+     */
+    void onQueueWait(@Stage int stage, long nanos);
+
+    /**
+     * Time to find the value in data container or disk cache.
+     */
+    void onDiskRead(long nanos);
+
+    /**
+     * Time to decode a value. If it is decoded while downloading,
+     * the time includes the wait for the response body.
+     */
+    void onDecode(long nanos);
+
+    /**
+     * Time between a http request is sent and the response header is received.
+     */
+    void onNetworkFirstByte(long nanos);
+
+    /**
+     * A response body is downloaded.
+     */
+    void onDownload(long bytes, long nanos);
+
+    /**
+     * The value is looked up in the source.
+     */
+    void onLookup(@Conaco.Source int source, boolean hit);
+
+    /**
+     * A request gets the value of another request with the same key.
+     */
+    void onCoalesced();
+
+    /**
+     * A request is cancelled.
+     */
+    void onCancelled();
+
+    /**
+     * A request is failed.
+     */
+    void onFailed();
+}
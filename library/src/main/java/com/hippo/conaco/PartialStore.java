@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Keeps partial downloads in a directory, keyed by cache key. A task
+ * reserves the key before it uses the partial download, so a stopped task
+ * still writing it can't clash with the next one. Each one has a data file
+ * and a meta file with the key, the url, the validator of the response and
+ * the total length. A later download of the same url resumes it with a
+ * {@code Range} request, it is used only if the validator still matches.
+ */
+class PartialStore {
+
+    /**
+     * Smaller downloads are not worth to resume.
+     */
+    static final long MIN_LENGTH = 256 * 1024;
+
+    private static final int MAX_PARTIALS = 16;
+    private static final int VERSION = 2;
+    private static final String DATA_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+
+    private final File mDir;
+    // Guarded by this, names of reserved partial downloads
+    private final Set<String> mReserved = new HashSet<>();
+
+    public PartialStore(@NonNull File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Reserve the partial download of the key. Only the task
+     * which reserves it can use it until it is released.
+     *
+     * @return false if it is reserved by another task
+     */
+    public synchronized boolean reserve(@NonNull String key) {
+        return mReserved.add(hash(key));
+    }
+
+    public synchronized void release(@NonNull String key) {
+        mReserved.remove(hash(key));
+    }
+
+    private static String hash(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(bytes.length * 2);
+            for (byte b : bytes) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+                sb.append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+
+    /**
+     * Return the validator for {@code If-Range}, a strong ETag or
+     * Last-Modified, null if the response has none.
+     */
+    @Nullable
+    static String getValidator(@NonNull Response response) {
+        String eTag = response.header("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return response.header("Last-Modified");
+    }
+
+    /**
+     * Return the first byte position of {@code Content-Range}, -1 if not found.
+     */
+    static long getRangeStart(@NonNull Response response) {
+        // bytes 100-199/200
+        String range = response.header("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1L;
+        }
+        int end = range.indexOf('-', 6);
+        if (end < 0) {
+            return -1L;
+        }
+        try {
+            return Long.parseLong(range.substring(6, end).trim());
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    /**
+     * Return the partial download of the key, null if none or it is of another url.
+     */
+    @Nullable
+    public synchronized Partial get(@NonNull String key, @NonNull String url) {
+        String name = hash(key);
+        File data = new File(mDir, name + DATA_SUFFIX);
+        File meta = new File(mDir, name + META_SUFFIX);
+        if (!data.isFile() || !meta.isFile()) {
+            return null;
+        }
+
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new FileInputStream(meta));
+            if (dis.readInt() == VERSION && key.equals(dis.readUTF()) && url.equals(dis.readUTF())) {
+                String validator = dis.readUTF();
+                long total = dis.readLong();
+                if (data.length() < total) {
+                    return new Partial(key, url, data, validator, total);
+                }
+            }
+        } catch (IOException e) {
+            // Broken
+        } finally {
+            closeQuietly(dis);
+        }
+
+        remove(key);
+        return null;
+    }
+
+    /**
+     * Start a new partial download of the key, null if failed.
+     */
+    @Nullable
+    public synchronized Partial begin(@NonNull String key, @NonNull String url,
+            @NonNull String validator, long total) {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            return null;
+        }
+        trim();
+
+        String name = hash(key);
+        File data = new File(mDir, name + DATA_SUFFIX);
+        File meta = new File(mDir, name + META_SUFFIX);
+        DataOutputStream dos = null;
+        boolean failed = false;
+        try {
+            // Empty data first
+            new FileOutputStream(data).close();
+            dos = new DataOutputStream(new FileOutputStream(meta));
+            dos.writeInt(VERSION);
+            dos.writeUTF(key);
+            dos.writeUTF(url);
+            dos.writeUTF(validator);
+            dos.writeLong(total);
+            dos.flush();
+        } catch (IOException e) {
+            failed = true;
+        } finally {
+            closeQuietly(dos);
+        }
+
+        if (failed) {
+            remove(key);
+            return null;
+        } else {
+            return new Partial(key, url, data, validator, total);
+        }
+    }
+
+    public synchronized void remove(@NonNull String key) {
+        String name = hash(key);
+        new File(mDir, name + DATA_SUFFIX).delete();
+        new File(mDir, name + META_SUFFIX).delete();
+    }
+
+    /**
+     * Keep at most {@link #MAX_PARTIALS} - 1 partial downloads, drop the oldest ones.
+     * Reserved ones are kept.
+     */
+    private void trim() {
+        File[] metas = mDir.listFiles();
+        if (metas == null) {
+            return;
+        }
+
+        int count = 0;
+        for (File file : metas) {
+            String name = file.getName();
+            if (name.endsWith(META_SUFFIX) &&
+                    !mReserved.contains(name.substring(0, name.length() - META_SUFFIX.length()))) {
+                metas[count++] = file;
+            }
+        }
+        if (count < MAX_PARTIALS) {
+            return;
+        }
+
+        metas = Arrays.copyOf(metas, count);
+        Arrays.sort(metas, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i <= count - MAX_PARTIALS; i++) {
+            String name = metas[i].getName();
+            name = name.substring(0, name.length() - META_SUFFIX.length());
+            new File(mDir, name + DATA_SUFFIX).delete();
+            metas[i].delete();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    public static class Partial {
+
+        public final String key;
+        public final String url;
+        public final File file;
+        public final String validator;
+        public final long total;
+
+        private Partial(String key, String url, File file, String validator, long total) {
+            this.key = key;
+            this.url = url;
+            this.file = file;
+            this.validator = validator;
+            this.total = total;
+        }
+
+        public long length() {
+            return file.length();
+        }
+
+        /**
+         * Ask for the rest of it, the whole body is sent if the validator doesn't match.
+         */
+        public void addRangeTo(@NonNull Request.Builder builder) {
+            builder.header("Range", "bytes=" + length() + "-");
+            builder.header("If-Range", validator);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.hippo.yorozuya.thread.PriorityThreadFactory;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Calls to Android classes which Conaco needs out of UI thread. On a plain
+ * JVM, Android classes are not touched, logs go to {@code System.err},
+ * threads are daemon threads with a lower priority.
+ */
+final class Platform {
+
+    private static final boolean ANDROID = "Dalvik".equals(System.getProperty("java.vm.name"));
+
+    private Platform() {}
+
+    static void d(String tag, String msg) {
+        if (ANDROID) {
+            Log.d(tag, msg);
+        } else {
+            System.err.println("D/" + tag + ": " + msg);
+        }
+    }
+
+    static void w(String tag, String msg, Throwable tr) {
+        if (ANDROID) {
+            Log.w(tag, msg, tr);
+        } else {
+            System.err.println("W/" + tag + ": " + msg);
+            tr.printStackTrace();
+        }
+    }
+
+    static void e(String tag, String msg, Throwable tr) {
+        if (ANDROID) {
+            Log.e(tag, msg, tr);
+        } else {
+            System.err.println("E/" + tag + ": " + msg);
+            tr.printStackTrace();
+        }
+    }
+
+    /**
+     * Milliseconds since boot, not counting deep sleep.
+     */
+    static long uptimeMillis() {
+        if (ANDROID) {
+            return SystemClock.uptimeMillis();
+        } else {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    }
+
+    /**
+     * Return a factory of background threads named {@code name}.
+     */
+    static ThreadFactory newBackgroundThreadFactory(String name) {
+        if (ANDROID) {
+            return new PriorityThreadFactory(name, Process.THREAD_PRIORITY_BACKGROUND);
+        } else {
+            return new JvmThreadFactory(name);
+        }
+    }
+
+    private static class JvmThreadFactory implements ThreadFactory {
+
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        private JvmThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mName + "-" + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
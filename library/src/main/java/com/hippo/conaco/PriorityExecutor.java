@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size thread pool which runs queued jobs by priority.
+ * Jobs with the same priority run in FIFO order, or in LIFO order
+ * if {@code lifo} is true, so the newest request runs first.
+ * <p>
+ * A queued job can be tagged, and it can be moved to a new priority
+ * by the tag with {@link #reprioritize(Object, int)}.
+ */
+public class PriorityExecutor implements Executor {
+
+    private final ThreadPoolExecutor mExecutor;
+    private final boolean mLifo;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public PriorityExecutor(int threadCount, boolean lifo, @NonNull ThreadFactory threadFactory) {
+        mLifo = lifo;
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 5L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * Return true if jobs with the same priority run in LIFO order.
+     */
+    public boolean isLifo() {
+        return mLifo;
+    }
+
+    /**
+     * Execute the command with priority 0,
+     * same as {@link ConacoTask#PRIORITY_NORMAL}.
+     */
+    @Override
+    public void execute(@NonNull Runnable command) {
+        execute(command, 0, null);
+    }
+
+    /**
+     * Execute the command with the priority.
+     * Higher priority runs first.
+     *
+     * @param tag the tag for {@link #reprioritize(Object, int)}, can be null
+     */
+    public void execute(@NonNull Runnable command, int priority, @Nullable Object tag) {
+        mExecutor.execute(new Job(command, priority, tag, mSequence.getAndIncrement()));
+    }
+
+    /**
+     * Return an {@code Executor} which executes commands
+     * with the priority and the tag.
+     */
+    @NonNull
+    public Executor withPriority(final int priority, @Nullable final Object tag) {
+        return new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                PriorityExecutor.this.execute(command, priority, tag);
+            }
+        };
+    }
+
+    /**
+     * Move all queued jobs with the tag to the new priority.
+     * They keep their submit order among jobs of the new priority.
+     *
+     * @return true if any job is moved
+     */
+    public boolean reprioritize(@NonNull Object tag, int priority) {
+        BlockingQueue<Runnable> queue = mExecutor.getQueue();
+        List<Job> jobs = null;
+        for (Runnable runnable : queue) {
+            Job job = (Job) runnable;
+            if (tag.equals(job.tag)) {
+                if (jobs == null) {
+                    jobs = new ArrayList<>();
+                }
+                jobs.add(job);
+            }
+        }
+
+        if (jobs == null) {
+            return false;
+        }
+
+        boolean moved = false;
+        for (Job job : jobs) {
+            // The job might be taken by a worker thread now
+            if (queue.remove(job)) {
+                queue.add(new Job(job.command, priority, tag, job.sequence));
+                moved = true;
+            }
+        }
+        return moved;
+    }
+
+    private class Job implements Runnable, Comparable<Job> {
+
+        private final Runnable command;
+        private final int priority;
+        private final Object tag;
+        private final long sequence;
+
+        public Job(Runnable command, int priority, Object tag, long sequence) {
+            this.command = command;
+            this.priority = priority;
+            this.tag = tag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            command.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull Job another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            if (sequence == another.sequence) {
+                return 0;
+            }
+            boolean earlier = sequence < another.sequence;
+            return earlier != mLifo ? -1 : 1;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Decodes partial values of a download. {@link #write(byte[], int, int)}
+ * is called in the network thread, {@link #decodePartial()} in the decode
+ * executor, {@link #close()} in either of them. They are never called
+ * at the same time.
+ */
+public interface ProgressiveDecoder<V> {
+
+    /**
+     * Feed bytes of the download in order.
+     */
+    void write(@NonNull byte[] b, int off, int len);
+
+    /**
+     * Decode a value from all bytes fed so far.
+     *
+     * @return the partial value, null if not enough bytes
+     */
+    @Nullable
+    V decodePartial();
+
+    /**
+     * The download is done or failed, release resources.
+     */
+    void close();
+}
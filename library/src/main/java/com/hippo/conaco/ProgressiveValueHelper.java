@@ -0,0 +1,35 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A {@link ValueHelper} which can decode partial values while downloading,
+ * for progressive images. Partial values are given to {@link ProgressiveUnikery}.
+ */
+public interface ProgressiveValueHelper<V> extends ValueHelper<V> {
+
+    /**
+     * Create a decoder for a download.
+     *
+     * @param mediaType the media type of the response, null if unknown
+     * @return the decoder, null if it can't decode the download progressively
+     */
+    @Nullable
+    ProgressiveDecoder<V> newProgressiveDecoder(@Nullable String mediaType);
+}
@@ -16,45 +16,77 @@
 
 package com.hippo.conaco;
 
-import com.hippo.yorozuya.collect.Multimap;
-import com.hippo.yorozuya.collect.SparseILArray;
-
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Tasks by id and by key, both are looked up in O(1).
+ * <p>
+ * It is changed only with the lock of Conaco held, but it can be read
+ * in any thread. {@link Conaco#isLoading(Unikery)} and
+ * {@link Conaco#cancel(Unikery)} look up the id without the lock.
+ * <p>
+ * Tasks with the same key are kept in register order, the first one
+ * is the loading one. The list of a key is replaced on change,
+ * so it is never changed after it is read.
+ */
 class Register<V> {
 
-    private final SparseILArray<ConacoTask<V>> mIdMap = new SparseILArray<>();
-    private final Multimap<String, ConacoTask<V>> mKeyMap = Multimap.create();
+    private final Map<Integer, ConacoTask<V>> mIdMap = new ConcurrentHashMap<>();
+    private final Map<String, List<ConacoTask<V>>> mKeyMap = new ConcurrentHashMap<>();
 
     /**
      * Return true for the key is already registered.
      */
+    // Lock held
     public boolean register(int id, ConacoTask<V> task) {
-        boolean repeatedKey = false;
-        String taskKey = task.getKey();
+        mIdMap.put(id, task);
 
         // For no-key task, there no need to check
-        if (taskKey != null) {
-            repeatedKey = mKeyMap.countElements(taskKey) != 0;
+        String taskKey = task.getKey();
+        if (taskKey == null) {
+            return false;
         }
 
-        // Append task
-        mKeyMap.putElement(taskKey, task);
-        mIdMap.append(id, task);
-
-        return repeatedKey;
+        List<ConacoTask<V>> tasks = mKeyMap.get(taskKey);
+        if (tasks == null) {
+            mKeyMap.put(taskKey, Collections.singletonList(task));
+            return false;
+        }
+        List<ConacoTask<V>> newTasks = new ArrayList<>(tasks.size() + 1);
+        newTasks.addAll(tasks);
+        newTasks.add(task);
+        mKeyMap.put(taskKey, Collections.unmodifiableList(newTasks));
+        return true;
     }
 
+    // Lock held
     public ConacoTask<V> unregister(int id) {
         ConacoTask<V> task = mIdMap.remove(id);
-        if (task != null) {
-            mKeyMap.removeElement(task.getKey(), task);
+        if (task != null && task.getKey() != null) {
+            List<ConacoTask<V>> tasks = mKeyMap.get(task.getKey());
+            if (tasks != null && tasks.contains(task)) {
+                if (tasks.size() == 1) {
+                    mKeyMap.remove(task.getKey());
+                } else {
+                    List<ConacoTask<V>> newTasks = new ArrayList<>(tasks);
+                    newTasks.remove(task);
+                    mKeyMap.put(task.getKey(), Collections.unmodifiableList(newTasks));
+                }
+            }
         }
         return task;
     }
 
     public boolean contain(int id) {
-        return mIdMap.indexOfKey(id) >= 0;
+        return mIdMap.containsKey(id);
+    }
+
+    public ConacoTask<V> get(int id) {
+        return mIdMap.get(id);
     }
 
     public ConacoTask<V> getByKey(String key) {
@@ -62,11 +94,23 @@ class Register<V> {
             return null;
         }
 
-        List<ConacoTask<V>> list = mKeyMap.get(key);
-        if (list != null && list.size() > 0) {
-            return list.get(0);
-        } else {
-            return null;
+        List<ConacoTask<V>> tasks = mKeyMap.get(key);
+        return tasks != null ? tasks.get(0) : null;
+    }
+
+    /**
+     * Return all tasks with the key, in register order.
+     * The list is not changed by later register or unregister.
+     */
+    public List<ConacoTask<V>> getAllByKey(String key) {
+        if (key == null) {
+            return Collections.emptyList();
+        }
+
+        List<ConacoTask<V>> tasks = mKeyMap.get(key);
+        if (tasks == null) {
+            return Collections.emptyList();
         }
+        return tasks;
     }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.streampipe.InputStreamPipe;
+
+/**
+ * A {@link ValueHelper} which can decode into old values, like bitmaps
+ * with {@code inBitmap}. Values evicted from memory cache are put to
+ * the {@link ValuePool} of Conaco if {@link #canReuse(String, Object)}
+ * returns true, see {@link Conaco.Builder#valuePoolSize}.
+ */
+public interface ReusableValueHelper<V> extends ValueHelper<V> {
+
+    /**
+     * Called when the value is evicted from memory cache, before
+     * {@link #onRemoveFromMemoryCache(String, Object)}. If it returns true,
+     * the value is handed to the pool, {@code onRemoveFromMemoryCache}
+     * is not called for it and it is not kept in weak memory cache,
+     * so don't recycle it. It is called while a lock of memory cache is held.
+     *
+     * @return true if nothing uses it any more and it can be decoded into
+     */
+    boolean canReuse(@NonNull String key, @NonNull V value);
+
+    /**
+     * Decode object for the {@code InputStreamPipe}. Take a compatible value
+     * from the pool to decode into, put it back if it is not used.
+     * Sizes in the pool are got from {@link #sizeOf(String, Object)}.
+     *
+     * @param isPipe the {@code InputStreamPipe}
+     * @param pool the pool of old values
+     * @return the decoded object
+     */
+    @Nullable
+    V decode(@NonNull InputStreamPipe isPipe, @NonNull ValuePool<V> pool);
+}
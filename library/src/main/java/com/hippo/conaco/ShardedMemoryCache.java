@@ -0,0 +1,329 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe {@link MemoryCache} which splits keys to shards. Each shard
+ * is a {@code MemoryCache} with its own lock and its own part of max size,
+ * so threads which use different shards don't contend.
+ * <p>
+ * A shard is at least {@link #MIN_SHARD_SIZE}, so a small cache has less
+ * shards. A value larger than the max size of a shard is put to an overflow
+ * {@link LruMemoryCache} shared by all keys instead, it may be as large as
+ * the max size. Shards and the overflow share the max size, when the total
+ * exceeds it, entries of other shards are evicted first, starting from a
+ * different shard each time.
+ * <p>
+ * {@link Callback#sizeOf(String, Object)} is called once more for each put
+ * to choose between the shard and the overflow. All callbacks are called
+ * while the lock of a shard or the overflow is held. When both are held,
+ * the lock of the shard is taken first.
+ */
+public class ShardedMemoryCache<V> extends MemoryCache<V> {
+
+    /**
+     * Creates shards.
+     */
+    public interface ShardFactory<V> {
+
+        @NonNull
+        MemoryCache<V> create(int maxSize, @NonNull Callback<V> callback);
+    }
+
+    public static final int MIN_SHARD_SIZE = 4 * 1024 * 1024;
+
+    private final MemoryCache<V>[] mShards;
+    private final int mShift;
+    // Guarded by itself
+    private final LruMemoryCache<V> mOverflow;
+    private final AtomicInteger mShardsSize = new AtomicInteger();
+    private final AtomicInteger mEvictCursor = new AtomicInteger();
+    private volatile int mOverflowCount;
+    private volatile int mTotalMaxSize;
+
+    /**
+     * @param shardCount the max count of shards, rounded down to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedMemoryCache(int maxSize, int shardCount,
+            @NonNull Callback<V> callback, @NonNull ShardFactory<V> factory) {
+        super(maxSize, callback);
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+        }
+
+        int count = Math.min(Integer.highestOneBit(shardCount),
+                Integer.highestOneBit(Math.max(1, maxSize / MIN_SHARD_SIZE)));
+        mShift = 32 - Integer.numberOfTrailingZeros(count);
+        mShards = new MemoryCache[count];
+        for (int i = 0; i < count; i++) {
+            mShards[i] = factory.create(shardMaxSize(maxSize, i), callback);
+        }
+        mOverflow = new LruMemoryCache<>(maxSize, callback);
+        mTotalMaxSize = maxSize;
+    }
+
+    /**
+     * Return the part of max size for the shard.
+     */
+    private int shardMaxSize(int maxSize, int index) {
+        int count = mShards.length;
+        return Math.max(1, maxSize / count + (index < maxSize % count ? 1 : 0));
+    }
+
+    /**
+     * Return the count of shards.
+     */
+    public int getShardCount() {
+        return mShards.length;
+    }
+
+    private MemoryCache<V> shardFor(String key) {
+        if (mShards.length == 1) {
+            return mShards[0];
+        }
+        // High bits, low bits are used by hash maps in shards
+        return mShards[(key.hashCode() * 0x9E3779B9) >>> mShift];
+    }
+
+    @Override
+    public V get(@NonNull String key) {
+        MemoryCache<V> shard = shardFor(key);
+        V value;
+        synchronized (shard) {
+            value = shard.get(key);
+        }
+        if (value == null && mOverflowCount != 0) {
+            synchronized (mOverflow) {
+                value = mOverflow.get(key);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public V put(@NonNull String key, @NonNull V value) {
+        MemoryCache<V> shard = shardFor(key);
+        V previous;
+        boolean large;
+        // The shard lock is held for both the shard and the overflow, so a key
+        // is never in both. The lock of the shard is always taken first.
+        synchronized (shard) {
+            large = safeSizeOf(key, value) > shard.maxSize();
+            int size = shard.size();
+            if (large) {
+                previous = shard.remove(key);
+            } else {
+                previous = shard.put(key, value);
+            }
+            mShardsSize.addAndGet(shard.size() - size);
+            if (large) {
+                synchronized (mOverflow) {
+                    V p = mOverflow.put(key, value);
+                    previous = p != null ? p : previous;
+                    mOverflowCount = mOverflow.count();
+                }
+            } else if (mOverflowCount != 0) {
+                V p = removeFromOverflow(key);
+                previous = p != null ? p : previous;
+            }
+        }
+
+        if (large) {
+            // Make space in shards for it
+            while (isOverMaxSize() && evictFromShards(shard)) {}
+        } else if (mOverflowCount != 0) {
+            // Make space in overflow for it
+            synchronized (mOverflow) {
+                while (isOverMaxSize() && mOverflow.evictOne()) {}
+                mOverflowCount = mOverflow.count();
+            }
+        }
+        return previous;
+    }
+
+    private boolean isOverMaxSize() {
+        int overflowSize;
+        synchronized (mOverflow) {
+            overflowSize = mOverflow.size();
+        }
+        return mShardsSize.get() + overflowSize > mTotalMaxSize;
+    }
+
+    private V removeFromOverflow(String key) {
+        synchronized (mOverflow) {
+            V value = mOverflow.remove(key);
+            mOverflowCount = mOverflow.count();
+            return value;
+        }
+    }
+
+    @Override
+    public V remove(@NonNull String key) {
+        MemoryCache<V> shard = shardFor(key);
+        synchronized (shard) {
+            int size = shard.size();
+            V value = shard.remove(key);
+            mShardsSize.addAndGet(shard.size() - size);
+            // Puts of the key hold the lock of the shard, so the count is
+            // up to date for the key
+            if (mOverflowCount != 0) {
+                V p = removeFromOverflow(key);
+                value = p != null ? p : value;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Each shard is trimmed to its part of {@code size},
+     * then the overflow is trimmed to the rest of it.
+     */
+    @Override
+    public int trimToSize(int size, int maxCount) {
+        int maxSize = mTotalMaxSize;
+        int count = 0;
+        for (MemoryCache<V> shard : mShards) {
+            if (count >= maxCount) {
+                break;
+            }
+            synchronized (shard) {
+                int shardSize = (int) ((long) size * shard.maxSize() / maxSize);
+                int oldSize = shard.size();
+                count += shard.trimToSize(shardSize, maxCount - count);
+                mShardsSize.addAndGet(shard.size() - oldSize);
+            }
+        }
+        if (count < maxCount && mOverflowCount != 0) {
+            synchronized (mOverflow) {
+                count += mOverflow.trimToSize(Math.max(0, size - mShardsSize.get()), maxCount - count);
+                mOverflowCount = mOverflow.count();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Evict one entry of a shard, the first shard to try
+     * moves on each time, {@code last} is tried the last.
+     */
+    private boolean evictFromShards(MemoryCache<V> last) {
+        int count = mShards.length;
+        int start = mEvictCursor.getAndIncrement() & (count - 1);
+        for (int i = 0; i < count; i++) {
+            MemoryCache<V> shard = mShards[(start + i) & (count - 1)];
+            if (shard != last && evictFromShard(shard)) {
+                return true;
+            }
+        }
+        return last != null && evictFromShard(last);
+    }
+
+    private boolean evictFromShard(MemoryCache<V> shard) {
+        synchronized (shard) {
+            int size = shard.size();
+            if (shard.evictOne()) {
+                mShardsSize.addAndGet(shard.size() - size);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    protected boolean evictOne() {
+        if (evictFromShards(null)) {
+            return true;
+        }
+        synchronized (mOverflow) {
+            boolean evicted = mOverflow.evictOne();
+            mOverflowCount = mOverflow.count();
+            return evicted;
+        }
+    }
+
+    /**
+     * Change max size of each shard and the overflow.
+     */
+    @Override
+    public void setMaxSize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive: " + maxSize);
+        }
+        mTotalMaxSize = maxSize;
+        for (int i = 0; i < mShards.length; i++) {
+            MemoryCache<V> shard = mShards[i];
+            synchronized (shard) {
+                shard.setMaxSize(shardMaxSize(maxSize, i));
+            }
+        }
+        synchronized (mOverflow) {
+            mOverflow.setMaxSize(maxSize);
+        }
+    }
+
+    @Override
+    public int maxSize() {
+        return mTotalMaxSize;
+    }
+
+    @Override
+    public void clear() {
+        for (MemoryCache<V> shard : mShards) {
+            synchronized (shard) {
+                int size = shard.size();
+                shard.clear();
+                mShardsSize.addAndGet(shard.size() - size);
+            }
+        }
+        synchronized (mOverflow) {
+            mOverflow.clear();
+            mOverflowCount = 0;
+        }
+    }
+
+    @Override
+    public int count() {
+        int count = 0;
+        for (MemoryCache<V> shard : mShards) {
+            synchronized (shard) {
+                count += shard.count();
+            }
+        }
+        synchronized (mOverflow) {
+            count += mOverflow.count();
+        }
+        return count;
+    }
+
+    /**
+     * Return the sum of sizes of shards and the overflow. They
+     * might be changed by other threads while counting.
+     */
+    @Override
+    public int size() {
+        int size = mShardsSize.get();
+        synchronized (mOverflow) {
+            size += mOverflow.size();
+        }
+        return size;
+    }
+}
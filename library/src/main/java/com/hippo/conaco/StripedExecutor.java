@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A thread pool which runs jobs with different keys concurrently,
+ * but runs jobs with the same key one by one in order.
+ * <p>
+ * Keys are hashed to a fixed number of stripes, each stripe is
+ * a serial queue. Two keys in the same stripe are serialized too,
+ * it is rare as there are more stripes than threads.
+ */
+public class StripedExecutor implements Executor {
+
+    private static final int STRIPES_PER_THREAD = 4;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Stripe[] mStripes;
+
+    public StripedExecutor(int concurrency, @NonNull ThreadFactory threadFactory) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("Concurrency must be positive: " + concurrency);
+        }
+
+        mExecutor = new ThreadPoolExecutor(concurrency, concurrency, 3L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+
+        // Power of two for masking
+        int count = Integer.highestOneBit(concurrency * STRIPES_PER_THREAD - 1) << 1;
+        mStripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            mStripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Return the max count of jobs running at the same time.
+     */
+    public int getConcurrency() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    /**
+     * Execute the command without key. It may run
+     * at the same time with any other command.
+     */
+    @Override
+    public void execute(@NonNull Runnable command) {
+        mExecutor.execute(command);
+    }
+
+    /**
+     * Execute the command after all commands with the same key are done.
+     *
+     * @param key the key, null for no key
+     */
+    public void execute(@NonNull Runnable command, @Nullable Object key) {
+        if (key == null) {
+            mExecutor.execute(command);
+        } else {
+            mStripes[indexFor(key)].execute(command);
+        }
+    }
+
+    /**
+     * Return an {@code Executor} which executes commands with the key.
+     */
+    @NonNull
+    public Executor forKey(@Nullable Object key) {
+        if (key == null) {
+            return mExecutor;
+        } else {
+            return mStripes[indexFor(key)];
+        }
+    }
+
+    private int indexFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return h & (mStripes.length - 1);
+    }
+
+    private class Stripe implements Executor {
+
+        private final ArrayDeque<Runnable> mJobs = new ArrayDeque<>();
+        private Runnable mActive;
+
+        @Override
+        public synchronized void execute(@NonNull final Runnable command) {
+            mJobs.offer(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        scheduleNext();
+                    }
+                }
+            });
+            if (mActive == null) {
+                scheduleNext();
+            }
+        }
+
+        private synchronized void scheduleNext() {
+            if ((mActive = mJobs.poll()) != null) {
+                mExecutor.execute(mActive);
+            }
+        }
+    }
+}
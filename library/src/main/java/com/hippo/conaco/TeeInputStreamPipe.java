@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.beerbelly.SimpleDiskCache;
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@code InputStreamPipe} which writes all bytes read from
+ * the source to the disk cache at the same time.
+ * <p>
+ * The first {@link #open()} returns the tee stream. If it is opened again,
+ * the rest of the source is written to the disk cache and the
+ * {@code InputStream} of the disk cache entry is returned.
+ * <p>
+ * {@link #finish()} must be called after decoding.
+ */
+class TeeInputStreamPipe implements InputStreamPipe {
+
+    private final InputStream mSource;
+    private final SimpleDiskCache mDiskCache;
+    private final String mKey;
+    private final long mLength;
+    @Nullable
+    private final ProgressNotifier mNotifier;
+    private final BufferPool mBufferPool;
+
+    private final OutputStreamPipe mSink;
+    private OutputStream mSinkStream;
+    private boolean mBroken;
+    private long mReceivedSize;
+
+    private boolean mOpened;
+    private boolean mFinished;
+    private InputStreamPipe mCopy;
+
+    /**
+     * @param sink the pipe to write the disk cache entry of the key
+     */
+    public TeeInputStreamPipe(@NonNull InputStream source, @NonNull OutputStreamPipe sink,
+            @NonNull SimpleDiskCache diskCache, @NonNull String key, long length,
+            @Nullable ProgressNotifier notifier, @NonNull BufferPool bufferPool) {
+        mSource = source;
+        mDiskCache = diskCache;
+        mKey = key;
+        mLength = length;
+        mNotifier = notifier;
+        mBufferPool = bufferPool;
+
+        mSink = sink;
+        mSink.obtain();
+        try {
+            mSinkStream = mSink.open();
+        } catch (IOException e) {
+            mBroken = true;
+        }
+    }
+
+    private void onRead(byte[] b, int off, int len) {
+        if (!mBroken) {
+            try {
+                mSinkStream.write(b, off, len);
+            } catch (IOException e) {
+                // Keep feeding the decoder, the entry is discarded later
+                mBroken = true;
+            }
+        }
+
+        mReceivedSize += len;
+        if (mNotifier != null) {
+            mNotifier.notifyProgress((long) len, mReceivedSize, mLength);
+        }
+    }
+
+    /**
+     * Write the rest of the source to the disk cache and commit it.
+     *
+     * @return false if the disk cache entry is not complete
+     */
+    public boolean finish() {
+        if (mFinished) {
+            return !mBroken;
+        }
+        mFinished = true;
+
+        final byte buffer[] = mBufferPool.acquire();
+        try {
+            int bytesRead;
+            while ((bytesRead = mSource.read(buffer)) != -1) {
+                onRead(buffer, 0, bytesRead);
+            }
+        } catch (IOException e) {
+            mBroken = true;
+        } finally {
+            mBufferPool.release(buffer);
+            mSink.close();
+            mSink.release();
+        }
+
+        return !mBroken;
+    }
+
+    @Override
+    public void obtain() {}
+
+    @Override
+    public void release() {
+        if (mCopy != null) {
+            mCopy.release();
+            mCopy = null;
+        }
+    }
+
+    @NonNull
+    @Override
+    public InputStream open() throws IOException {
+        if (!mOpened) {
+            mOpened = true;
+            return new TeeInputStream();
+        }
+
+        // Opened again, read it from disk cache
+        if (mCopy == null) {
+            if (!finish()) {
+                throw new IOException("Can't write to disk cache");
+            }
+            mCopy = mDiskCache.getInputStreamPipe(mKey);
+            if (mCopy == null) {
+                throw new IOException("Can't find it in disk cache");
+            }
+            mCopy.obtain();
+        }
+        return mCopy.open();
+    }
+
+    @Override
+    public void close() {
+        if (mCopy != null) {
+            mCopy.close();
+        }
+    }
+
+    private class TeeInputStream extends InputStream {
+
+        private final byte[] mSingle = new byte[1];
+
+        @Override
+        public int read() throws IOException {
+            int b = mSource.read();
+            if (b != -1) {
+                mSingle[0] = (byte) b;
+                onRead(mSingle, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            int n = mSource.read(b, off, len);
+            if (n > 0) {
+                onRead(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mSource.available();
+        }
+
+        @Override
+        public void close() {
+            // The source is closed by the owner
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor which starts a new thread for each command, so a blocking
+ * command never waits for a free thread. On a JVM with virtual threads
+ * (Java 21 and later) they are virtual threads, otherwise they are
+ * daemon threads with a small stack.
+ * <p>
+ * There is no priority and no limit, use it for slow network jobs
+ * which spend most of their time waiting.
+ */
+public class ThreadPerTaskExecutor implements Executor {
+
+    private static final long STACK_SIZE = 128 * 1024;
+
+    private final String mName;
+    private final ThreadFactory mVirtualThreadFactory;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    public ThreadPerTaskExecutor(@NonNull String name) {
+        mName = name;
+        mVirtualThreadFactory = newVirtualThreadFactory(name + "-");
+    }
+
+    /**
+     * Return a factory of virtual threads, null if not supported.
+     * It is got by reflection to keep Java 7 compatibility.
+     */
+    private static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Return true if commands run in virtual threads.
+     */
+    public boolean isVirtual() {
+        return mVirtualThreadFactory != null;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        Thread thread;
+        if (mVirtualThreadFactory != null) {
+            thread = mVirtualThreadFactory.newThread(command);
+        } else {
+            thread = new Thread(null, command, mName + "-" + mCount.getAndIncrement(), STACK_SIZE);
+            thread.setDaemon(true);
+        }
+        thread.start();
+    }
+}
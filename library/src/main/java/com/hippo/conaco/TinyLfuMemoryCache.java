@@ -0,0 +1,305 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A {@link MemoryCache} with W-TinyLFU policy. It resists scans, one pass
+ * through many new keys doesn't evict keys which are used again and again.
+ * <p>
+ * New entries go to a small LRU window. Entries out of the window get into
+ * the main space only if they are used more often than the entry to evict
+ * from it, frequency is estimated by a {@link FrequencySketch}. The main
+ * space is a segmented LRU, entries used again in probation are moved to
+ * protected.
+ */
+public class TinyLfuMemoryCache<V> extends MemoryCache<V> {
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final HashMap<String, Node<V>> mMap = new HashMap<>();
+    private final FrequencySketch mSketch = new FrequencySketch(16);
+
+    private final Node<V> mWindow = Node.createQueue();
+    private final Node<V> mProbation = Node.createQueue();
+    private final Node<V> mProtected = Node.createQueue();
+    private int mWindowSize;
+    private int mProtectedSize;
+
+    private int mMaxWindowSize;
+    private int mMaxProtectedSize;
+
+    public TinyLfuMemoryCache(int maxSize, @NonNull Callback<V> callback) {
+        super(maxSize, callback);
+        updateMaxSizes();
+    }
+
+    @Override
+    public void setMaxSize(int maxSize) {
+        super.setMaxSize(maxSize);
+        updateMaxSizes();
+    }
+
+    private void updateMaxSizes() {
+        mMaxWindowSize = Math.max(1, (int) ((long) mMaxSize * WINDOW_PERCENT / 100));
+        mMaxProtectedSize = (int) ((long) (mMaxSize - mMaxWindowSize) * PROTECTED_PERCENT / 100);
+    }
+
+    @Override
+    public V get(@NonNull String key) {
+        // Misses are counted too, a key missed again and again is popular
+        mSketch.increment(key);
+        Node<V> node = mMap.get(key);
+        if (node == null) {
+            return null;
+        }
+        onAccess(node);
+        return node.value;
+    }
+
+    private void onAccess(Node<V> node) {
+        switch (node.queue) {
+            case WINDOW:
+                node.moveToTail(mWindow);
+                break;
+            case PROBATION:
+                // Used again, protect it
+                node.unlink();
+                node.queue = PROTECTED;
+                node.linkToTail(mProtected);
+                mProtectedSize += node.size;
+                demoteProtected();
+                break;
+            case PROTECTED:
+                node.moveToTail(mProtected);
+                break;
+        }
+    }
+
+    /**
+     * Move the least recently used protected entries to probation.
+     */
+    private void demoteProtected() {
+        while (mProtectedSize > mMaxProtectedSize) {
+            Node<V> node = mProtected.next;
+            node.unlink();
+            mProtectedSize -= node.size;
+            node.queue = PROBATION;
+            node.linkToTail(mProbation);
+        }
+    }
+
+    @Override
+    public V put(@NonNull String key, @NonNull V value) {
+        mSketch.increment(key);
+        int size = safeSizeOf(key, value);
+
+        Node<V> node = mMap.get(key);
+        if (node != null) {
+            V oldValue = node.value;
+            int delta = size - node.size;
+            node.value = value;
+            node.size = size;
+            mSize += delta;
+            if (node.queue == WINDOW) {
+                mWindowSize += delta;
+            } else if (node.queue == PROTECTED) {
+                mProtectedSize += delta;
+            }
+            mCallback.onEntryRemoved(false, key, oldValue, value);
+            mCallback.onEntryAdded(key, value);
+            onAccess(node);
+            evict();
+            return oldValue;
+        }
+
+        node = new Node<>(key, value, size);
+        node.queue = WINDOW;
+        node.linkToTail(mWindow);
+        mMap.put(key, node);
+        mWindowSize += size;
+        mSize += size;
+        // Keep enough counters for all keys
+        mSketch.ensureCapacity(mMap.size());
+        mCallback.onEntryAdded(key, value);
+        evict();
+        return null;
+    }
+
+    /**
+     * Move overflow of window to probation as candidates, then evict
+     * until it fits. A candidate and the oldest probation entry contest,
+     * the less frequent one is evicted.
+     */
+    private void evict() {
+        Node<V> candidate = null;
+        while (mWindowSize > mMaxWindowSize) {
+            Node<V> node = mWindow.next;
+            node.unlink();
+            mWindowSize -= node.size;
+            node.queue = PROBATION;
+            node.linkToTail(mProbation);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (mSize > mMaxSize) {
+            Node<V> victim = mProbation.next;
+            if (victim == mProbation) {
+                // Probation is empty
+                victim = mProtected.next != mProtected ? mProtected.next : mWindow.next;
+                evict(victim);
+                continue;
+            }
+
+            if (candidate == null || candidate == victim) {
+                if (candidate != null) {
+                    candidate = candidate.next != mProbation ? candidate.next : null;
+                }
+                evict(victim);
+                continue;
+            }
+
+            Node<V> next = candidate.next != mProbation ? candidate.next : null;
+            if (candidate.size > mMaxSize ||
+                    mSketch.frequency(candidate.key) <= mSketch.frequency(victim.key)) {
+                evict(candidate);
+            } else {
+                evict(victim);
+            }
+            candidate = next;
+        }
+    }
+
+    /**
+     * Evict the oldest probation entry, then the oldest window entry,
+     * protected entries are the last.
+     */
+    @Override
+    protected boolean evictOne() {
+        Node<V> node;
+        if (mProbation.next != mProbation) {
+            node = mProbation.next;
+        } else if (mWindow.next != mWindow) {
+            node = mWindow.next;
+        } else if (mProtected.next != mProtected) {
+            node = mProtected.next;
+        } else {
+            return false;
+        }
+        evict(node);
+        return true;
+    }
+
+    private void evict(Node<V> node) {
+        removeNode(node);
+        mCallback.onEntryRemoved(true, node.key, node.value, null);
+    }
+
+    private void removeNode(Node<V> node) {
+        mMap.remove(node.key);
+        node.unlink();
+        mSize -= node.size;
+        if (node.queue == WINDOW) {
+            mWindowSize -= node.size;
+        } else if (node.queue == PROTECTED) {
+            mProtectedSize -= node.size;
+        }
+    }
+
+    @Override
+    public V remove(@NonNull String key) {
+        Node<V> node = mMap.get(key);
+        if (node == null) {
+            return null;
+        }
+        removeNode(node);
+        mCallback.onEntryRemoved(false, key, node.value, null);
+        return node.value;
+    }
+
+    @Override
+    public void clear() {
+        for (Node<V> queue : Arrays.asList(mWindow, mProbation, mProtected)) {
+            while (queue.next != queue) {
+                Node<V> node = queue.next;
+                removeNode(node);
+                mCallback.onEntryRemoved(false, node.key, node.value, null);
+            }
+        }
+    }
+
+    @Override
+    public int count() {
+        return mMap.size();
+    }
+
+    /**
+     * An entry in a queue. A queue is a circular doubly linked list with a sentinel.
+     */
+    private static class Node<V> {
+
+        private final String key;
+        private V value;
+        private int size;
+        private int queue;
+        private Node<V> prev;
+        private Node<V> next;
+
+        public Node(String key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+
+        public static <V> Node<V> createQueue() {
+            Node<V> sentinel = new Node<>(null, null, 0);
+            sentinel.prev = sentinel;
+            sentinel.next = sentinel;
+            return sentinel;
+        }
+
+        public void linkToTail(Node<V> sentinel) {
+            prev = sentinel.prev;
+            next = sentinel;
+            sentinel.prev.next = this;
+            sentinel.prev = this;
+        }
+
+        public void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+
+        public void moveToTail(Node<V> sentinel) {
+            unlink();
+            linkToTail(sentinel);
+        }
+    }
+}
@@ -21,21 +21,27 @@ import android.support.annotation.NonNull;
 import com.hippo.streampipe.InputStreamPipe;
 
 /**
- * The receiver of Conaco. All methods called in UI thread except {@link #getTaskId()}.
+ * The receiver of Conaco. All methods called in the callback executor of the task,
+ * it is UI thread by default, except {@link #getTaskId()} and {@link #setTaskId(int)}.
+ * Callbacks are never called with a lock of Conaco held.
+ * <p>
+ * The task id is got and set in job threads and the thread calling Conaco too,
+ * keep it in a {@code volatile} field.
  */
 public interface Unikery<V> {
 
     int INVALID_ID = -1;
 
     /**
-     * Store the conaco task id.
+     * Store the conaco task id. It might be called in any thread.
      *
      * @param id the conaco task id
      */
     void setTaskId(int id);
 
     /**
-     * Get the conaco task id.
+     * Get the conaco task id. It might be called in any thread,
+     * it must return the last id set in any thread.
      *
      * @return the conaco task id
      */
@@ -54,6 +60,7 @@ public interface Unikery<V> {
     /**
      * There is already one Unikery with the same key
      * loading when try to load this Unikery.
+     * The value got by that one is given to this one too.
      */
     void onWait();
 
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.hippo.beerbelly.SimpleDiskCache;
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Response validators of a disk cache entry, {@code ETag} and
+ * {@code Last-Modified}, with the time the entry was checked last.
+ * They are kept in a small entry of the disk cache next to the entry,
+ * the key of it is the key of the entry with {@link #KEY_SUFFIX}.
+ */
+class Validators {
+
+    private static final String KEY_SUFFIX = ".validators";
+    private static final int VERSION = 1;
+
+    @Nullable
+    public final String eTag;
+    @Nullable
+    public final String lastModified;
+    public final long time;
+
+    public Validators(@Nullable String eTag, @Nullable String lastModified, long time) {
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.time = time;
+    }
+
+    /**
+     * Create validators from the response, checked now.
+     */
+    public static Validators from(@NonNull Response response) {
+        return new Validators(response.header("ETag"), response.header("Last-Modified"),
+                System.currentTimeMillis());
+    }
+
+    public boolean isStale(long maxAge, long now) {
+        return now - time > maxAge;
+    }
+
+    /**
+     * Return true if the entry can be checked with a conditional request.
+     * Validators are only kept if it is true.
+     */
+    public boolean canRevalidate() {
+        return eTag != null || lastModified != null;
+    }
+
+    /**
+     * Add conditional headers to the request.
+     */
+    public void addTo(@NonNull Request.Builder builder) {
+        if (eTag != null) {
+            builder.header("If-None-Match", eTag);
+        }
+        if (lastModified != null) {
+            builder.header("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * The entry is not modified, keep validators of the 304 response if any.
+     */
+    public Validators renew(@NonNull Response response) {
+        String eTag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        return new Validators(eTag != null ? eTag : this.eTag,
+                lastModified != null ? lastModified : this.lastModified,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Read validators of the key, null if not found or broken.
+     */
+    @Nullable
+    public static Validators read(@NonNull SimpleDiskCache diskCache, @NonNull String key) {
+        InputStreamPipe pipe = diskCache.getInputStreamPipe(key + KEY_SUFFIX);
+        if (pipe == null) {
+            return null;
+        }
+
+        try {
+            pipe.obtain();
+            DataInputStream dis = new DataInputStream(pipe.open());
+            if (dis.readInt() != VERSION) {
+                return null;
+            }
+            String eTag = dis.readBoolean() ? dis.readUTF() : null;
+            String lastModified = dis.readBoolean() ? dis.readUTF() : null;
+            long time = dis.readLong();
+            return new Validators(eTag, lastModified, time);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+    }
+
+    /**
+     * Write validators of the key.
+     */
+    public void write(@NonNull SimpleDiskCache diskCache, @NonNull String key) {
+        OutputStreamPipe pipe = diskCache.getOutputStreamPipe(key + KEY_SUFFIX);
+        boolean failed = false;
+        try {
+            pipe.obtain();
+            DataOutputStream dos = new DataOutputStream(pipe.open());
+            dos.writeInt(VERSION);
+            dos.writeBoolean(eTag != null);
+            if (eTag != null) {
+                dos.writeUTF(eTag);
+            }
+            dos.writeBoolean(lastModified != null);
+            if (lastModified != null) {
+                dos.writeUTF(lastModified);
+            }
+            dos.writeLong(time);
+            dos.flush();
+        } catch (IOException e) {
+            failed = true;
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+        if (failed) {
+            remove(diskCache, key);
+        }
+    }
+
+    /**
+     * Remove validators of the key. Call it when the entry is removed.
+     */
+    public static void remove(@NonNull SimpleDiskCache diskCache, @NonNull String key) {
+        diskCache.remove(key + KEY_SUFFIX);
+    }
+}
@@ -17,19 +17,220 @@
 package com.hippo.conaco;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.hippo.beerbelly.BeerBelly;
+import com.hippo.beerbelly.SimpleDiskCache;
 import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
 
 import java.io.OutputStream;
 
+/**
+ * The memory tier is a {@link ShardedMemoryCache}, shards are chosen by memory policy,
+ * BeerBelly only keeps the disk tier.
+ * <p>
+ * If weak memory cache is enabled, evicted values are kept in a
+ * {@link WeakValueMap}. A value still held by others, like a view
+ * on screen, is got from it and put back to memory cache.
+ * <p>
+ * If value pool is enabled, evicted values which the helper marks
+ * reusable are put to the {@link ValuePool} instead.
+ * <p>
+ * Helper callbacks of memory cache, {@code sizeOf}, {@code onAddToMemoryCache},
+ * {@code onRemoveFromMemoryCache} and {@code canReuse}, are called while the lock
+ * of a shard is held.
+ */
 class ValueCache<V> extends BeerBelly<V> {
 
     private final ValueHelper<V> mHelper;
 
-    public ValueCache(BeerBelly.BeerBellyParams params, ValueHelper<V> helper) {
-        super(params);
-        mHelper = helper;
+    // Thread-safe
+    @Nullable
+    private final ShardedMemoryCache<V> mMemoryCache;
+    // Guarded by itself
+    @Nullable
+    private final WeakValueMap<V> mWeakValues;
+    @Nullable
+    private final ValuePool<V> mValuePool;
+
+    public ValueCache(Conaco.Builder<V> params, @Nullable ValuePool<V> valuePool) {
+        super(diskOnly(params));
+        mHelper = params.valueHelper;
+        mWeakValues = params.hasMemoryCache && params.weakMemoryCache ? new WeakValueMap<V>() : null;
+        mValuePool = valuePool;
+
+        if (params.hasMemoryCache) {
+            MemoryCache.Callback<V> callback = new MemoryCache.Callback<V>() {
+                @Override
+                public int sizeOf(@NonNull String key, @NonNull V value) {
+                    return ValueCache.this.sizeOf(key, value);
+                }
+
+                @Override
+                public void onEntryAdded(@NonNull String key, @NonNull V value) {
+                    memoryEntryAdded(key, value);
+                }
+
+                @Override
+                public void onEntryRemoved(boolean evicted, @NonNull String key,
+                        @NonNull V oldValue, @Nullable V newValue) {
+                    memoryEntryRemoved(evicted, key, oldValue, newValue);
+                }
+            };
+            final int policy = params.memoryPolicy;
+            mMemoryCache = new ShardedMemoryCache<>(params.memoryCacheMaxSize,
+                    params.memoryCacheShardCount, callback, new ShardedMemoryCache.ShardFactory<V>() {
+                @NonNull
+                @Override
+                public MemoryCache<V> create(int maxSize, @NonNull MemoryCache.Callback<V> callback) {
+                    if (policy == Conaco.MEMORY_POLICY_TINY_LFU) {
+                        return new TinyLfuMemoryCache<>(maxSize, callback);
+                    } else {
+                        return new LruMemoryCache<>(maxSize, callback);
+                    }
+                }
+            });
+        } else {
+            mMemoryCache = null;
+        }
+    }
+
+    private static BeerBelly.BeerBellyParams diskOnly(BeerBelly.BeerBellyParams params) {
+        BeerBelly.BeerBellyParams diskParams = new BeerBelly.BeerBellyParams();
+        diskParams.hasMemoryCache = false;
+        diskParams.hasDiskCache = params.hasDiskCache;
+        diskParams.diskCacheDir = params.diskCacheDir;
+        diskParams.diskCacheMaxSize = params.diskCacheMaxSize;
+        return diskParams;
+    }
+
+    /**
+     * Return the memory tier, null if memory cache is disabled.
+     */
+    @Nullable
+    ShardedMemoryCache<V> getMemoryCache() {
+        return mMemoryCache;
+    }
+
+    @Override
+    public boolean hasMemoryCache() {
+        return mMemoryCache != null;
+    }
+
+    @Override
+    public V getFromMemory(@NonNull String key) {
+        if (mMemoryCache == null) {
+            return null;
+        }
+        V value = mMemoryCache.get(key);
+        if (value == null && mWeakValues != null) {
+            // Second chance
+            value = removeWeakValue(key);
+            if (value != null) {
+                mMemoryCache.put(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void putToMemory(@NonNull String key, @NonNull V value) {
+        if (mMemoryCache == null) {
+            return;
+        }
+        if (mWeakValues != null) {
+            removeWeakValue(key);
+        }
+        mMemoryCache.put(key, value);
+    }
+
+    @Override
+    public V removeFromMemory(@NonNull String key) {
+        if (mMemoryCache == null) {
+            return null;
+        }
+        V value = mMemoryCache.remove(key);
+        if (mWeakValues != null) {
+            V weakValue = removeWeakValue(key);
+            if (value == null) {
+                value = weakValue;
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void clearMemory() {
+        if (mMemoryCache == null) {
+            return;
+        }
+        mMemoryCache.clear();
+        if (mWeakValues != null) {
+            synchronized (mWeakValues) {
+                mWeakValues.clear();
+            }
+        }
+    }
+
+    private V removeWeakValue(String key) {
+        synchronized (mWeakValues) {
+            return mWeakValues.remove(key);
+        }
+    }
+
+    /**
+     * Return the pipe to write the disk cache entry of the key.
+     * Disk cache must be enabled.
+     */
+    @NonNull
+    OutputStreamPipe getDiskOutputStreamPipe(@NonNull String key) {
+        return getDiskCache().getOutputStreamPipe(key);
+    }
+
+    /**
+     * Remove the disk cache entry with its {@link Validators}.
+     */
+    @Override
+    public void removeFromDisk(@NonNull String key) {
+        super.removeFromDisk(key);
+        SimpleDiskCache diskCache = getDiskCache();
+        if (diskCache != null) {
+            Validators.remove(diskCache, key);
+        }
+    }
+
+    /**
+     * Get from memory then disk.
+     */
+    @Override
+    public V get(@NonNull String key) {
+        V value = getFromMemory(key);
+        if (value == null) {
+            value = getFromDisk(key);
+            if (value != null) {
+                putToMemory(key, value);
+            }
+        }
+        return value;
+    }
+
+    @Override
+    public void put(@NonNull String key, @NonNull V value) {
+        putToMemory(key, value);
+        putToDisk(key, value);
+    }
+
+    @Override
+    public void remove(@NonNull String key) {
+        removeFromMemory(key);
+        removeFromDisk(key);
+    }
+
+    @Override
+    public void clear() {
+        clearMemory();
+        clearDisk();
     }
 
     @Override
@@ -42,16 +243,55 @@ class ValueCache<V> extends BeerBelly<V> {
         mHelper.onAddToMemoryCache(key, value);
     }
 
+    /**
+     * Called while the lock of a shard is held. A value evicted from memory cache
+     * is either handed to the pool, if the helper marks it reusable, or removed
+     * with {@link ValueHelper#onRemoveFromMemoryCache(String, Object)} and kept
+     * in the weak tier. It is never in both.
+     */
     @Override
     protected void memoryEntryRemoved(boolean evicted, String key, V oldValue, V newValue) {
-        if (oldValue != null) {
-            mHelper.onRemoveFromMemoryCache(key, oldValue);
+        if (oldValue == null) {
+            return;
+        }
+
+        // Ask before the helper recycles it in onRemoveFromMemoryCache
+        if (evicted && mValuePool != null && mHelper instanceof ReusableValueHelper &&
+                ((ReusableValueHelper<V>) mHelper).canReuse(key, oldValue)) {
+            if (mWeakValues != null) {
+                synchronized (mWeakValues) {
+                    if (mWeakValues.get(key) == oldValue) {
+                        mWeakValues.remove(key);
+                    }
+                }
+            }
+            mValuePool.release(oldValue, mHelper.sizeOf(key, oldValue));
+            return;
+        }
+
+        mHelper.onRemoveFromMemoryCache(key, oldValue);
+        if (evicted && mWeakValues != null) {
+            synchronized (mWeakValues) {
+                mWeakValues.put(key, oldValue);
+            }
+        }
+    }
+
+    /**
+     * Decode with the helper, decode into a pooled value if it is possible.
+     */
+    @Nullable
+    V decode(@NonNull ValueHelper<V> helper, @NonNull InputStreamPipe isPipe) {
+        if (mValuePool != null && helper instanceof ReusableValueHelper) {
+            return ((ReusableValueHelper<V>) helper).decode(isPipe, mValuePool);
+        } else {
+            return helper.decode(isPipe);
         }
     }
 
     @Override
     protected V read(@NonNull InputStreamPipe isPipe) {
-        return mHelper.decode(isPipe);
+        return decode(mHelper, isPipe);
     }
 
     @Override
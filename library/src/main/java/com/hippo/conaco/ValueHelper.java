@@ -33,17 +33,21 @@ public interface ValueHelper<V> {
     V decode(@NonNull InputStreamPipe isPipe);
 
     /**
-     * Get the size of the object
+     * Get the size of the object.
+     * It is called while a lock of memory cache is held.
      */
     int sizeOf(@NonNull String key, @NonNull V value);
 
     /**
-     * Called when the object added to memory cache
+     * Called when the object added to memory cache.
+     * Memory cache callbacks might be called in any thread, while a lock
+     * of memory cache is held, keep them short and don't call Conaco in them.
      */
     void onAddToMemoryCache(@NonNull String key, @NonNull V value);
 
     /**
-     * Called when the object removed from memory cache
+     * Called when the object removed from memory cache. It is not called for
+     * objects handed to the value pool, see {@link ReusableValueHelper#canReuse(String, Object)}.
      */
     void onRemoveFromMemoryCache(@NonNull String key, @NonNull V value);
 
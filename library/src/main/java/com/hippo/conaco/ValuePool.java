@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A pool of values which can be decoded into, like mutable bitmaps.
+ * It is fed by values evicted from memory cache which are not referenced
+ * any more, see {@link ReusableValueHelper}. Values are bucketed by size,
+ * the least recently released values are dropped if the pool is full.
+ * <p>
+ * It is thread-safe.
+ */
+public class ValuePool<V> {
+
+    private final int mMaxSize;
+    private int mSize;
+    private int mCount;
+
+    private final TreeMap<Integer, ArrayDeque<Node<V>>> mBuckets = new TreeMap<>();
+    // The least recently released is the next of the sentinel
+    private final Node<V> mOrder = new Node<>(null, 0);
+
+    private long mHitCount;
+    private long mMissCount;
+
+    public ValuePool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive: " + maxSize);
+        }
+        mMaxSize = maxSize;
+        mOrder.prev = mOrder;
+        mOrder.next = mOrder;
+    }
+
+    /**
+     * Take a value of the size.
+     *
+     * @return the value, null if not found
+     */
+    @Nullable
+    public V acquire(int size) {
+        return acquire(size, size);
+    }
+
+    /**
+     * Take the smallest value whose size is between {@code minSize} and {@code maxSize}.
+     *
+     * @return the value, null if not found
+     */
+    @Nullable
+    public synchronized V acquire(int minSize, int maxSize) {
+        Map.Entry<Integer, ArrayDeque<Node<V>>> entry = mBuckets.ceilingEntry(minSize);
+        if (entry == null || entry.getKey() > maxSize) {
+            mMissCount++;
+            return null;
+        }
+
+        ArrayDeque<Node<V>> bucket = entry.getValue();
+        // The most recently released one
+        Node<V> node = bucket.pollLast();
+        if (bucket.isEmpty()) {
+            mBuckets.remove(entry.getKey());
+        }
+        node.unlink();
+        mSize -= node.size;
+        mCount--;
+        mHitCount++;
+        return node.value;
+    }
+
+    /**
+     * Put a value to the pool. It must not be used by others any more.
+     * It is dropped if it is larger than max size of the pool.
+     */
+    public synchronized void release(@NonNull V value, int size) {
+        if (size > mMaxSize || size < 0) {
+            return;
+        }
+
+        Node<V> node = new Node<>(value, size);
+        ArrayDeque<Node<V>> bucket = mBuckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            mBuckets.put(size, bucket);
+        }
+        bucket.offerLast(node);
+        node.linkBefore(mOrder);
+        mSize += size;
+        mCount++;
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Drop the least recently released values until the size
+     * is not larger than {@code maxSize}.
+     */
+    public synchronized void trimToSize(int maxSize) {
+        while (mSize > maxSize) {
+            Node<V> node = mOrder.next;
+            node.unlink();
+            ArrayDeque<Node<V>> bucket = mBuckets.get(node.size);
+            // It is the oldest in its bucket, so the first one
+            bucket.removeFirstOccurrence(node);
+            if (bucket.isEmpty()) {
+                mBuckets.remove(node.size);
+            }
+            mSize -= node.size;
+            mCount--;
+        }
+    }
+
+    /**
+     * Drop all values.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Return the total size of values in the pool.
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Return the count of values in the pool.
+     */
+    public synchronized int count() {
+        return mCount;
+    }
+
+    /**
+     * Return the count of {@code acquire} which gets a value.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Return the count of {@code acquire} which gets nothing.
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    private static class Node<V> {
+
+        private final V value;
+        private final int size;
+        private Node<V> prev;
+        private Node<V> next;
+
+        public Node(V value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+
+        public void linkBefore(Node<V> node) {
+            prev = node.prev;
+            next = node;
+            node.prev.next = this;
+            node.prev = this;
+        }
+
+        public void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+}
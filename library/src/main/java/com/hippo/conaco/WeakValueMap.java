@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+/**
+ * A map which holds values weakly. Entries of collected values
+ * are removed on the next access. It is not thread-safe.
+ */
+class WeakValueMap<V> {
+
+    private final HashMap<String, Ref<V>> mMap = new HashMap<>();
+    private final ReferenceQueue<V> mQueue = new ReferenceQueue<>();
+
+    public void put(@NonNull String key, @NonNull V value) {
+        purge();
+        mMap.put(key, new Ref<>(key, value, mQueue));
+    }
+
+    /**
+     * Return the value of the key, null if not found or collected.
+     */
+    @Nullable
+    public V get(@NonNull String key) {
+        Ref<V> ref = mMap.get(key);
+        return ref != null ? ref.get() : null;
+    }
+
+    /**
+     * Remove the value of the key.
+     *
+     * @return the value, null if not found or collected
+     */
+    @Nullable
+    public V remove(@NonNull String key) {
+        purge();
+        Ref<V> ref = mMap.remove(key);
+        return ref != null ? ref.get() : null;
+    }
+
+    public void clear() {
+        mMap.clear();
+        // Drop collected references
+        while (mQueue.poll() != null) {}
+    }
+
+    /**
+     * Return the count of entries, including collected
+     * values which are not removed yet.
+     */
+    public int size() {
+        return mMap.size();
+    }
+
+    /**
+     * Clear the reference of the key as if the value was collected.
+     * It is for tests, which should not depend on {@link System#gc()}.
+     */
+    void collect(@NonNull String key) {
+        Ref<V> ref = mMap.get(key);
+        if (ref != null) {
+            ref.clear();
+            ref.enqueue();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void purge() {
+        Ref<V> ref;
+        while ((ref = (Ref<V>) mQueue.poll()) != null) {
+            // The key might be taken by a new value
+            if (mMap.get(ref.key) == ref) {
+                mMap.remove(ref.key);
+            }
+        }
+    }
+
+    private static class Ref<V> extends WeakReference<V> {
+
+        private final String key;
+
+        public Ref(String key, V value, ReferenceQueue<V> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Loads of one key share a task: waiting, hand over and prefetch upgrade.
+ */
+public class CoalescingTest extends ConacoTestCase {
+
+    @Test
+    public void sameKeyIsLoadedOnce() {
+        final AtomicInteger requests = new AtomicInteger();
+        mHandler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                respond(exchange, 200, "hello");
+            }
+        };
+        TestUnikery a = new TestUnikery();
+        TestUnikery b = new TestUnikery();
+        mConaco.load(newBuilder(a, "k"));
+        mConaco.load(newBuilder(b, "k"));
+        runJobs();
+
+        assertEquals(1, requests.get());
+        assertEquals(Arrays.asList("miss0", "miss1", "value2=hello"), a.mEvents);
+        // The second one waits for the first one, and shares its value
+        assertEquals(Arrays.asList("wait", "miss0", "value2=hello"), b.mEvents);
+    }
+
+    @Test
+    public void cancelHandsOverToWaitingTask() {
+        mHandler = body("hello");
+        QueueExecutor callbackA = new QueueExecutor("a");
+        QueueExecutor callbackB = new QueueExecutor("b");
+        TestUnikery a = new TestUnikery();
+        TestUnikery b = new TestUnikery();
+
+        ConacoTask.Builder<String> builderA = newBuilder(a, "k");
+        builderA.callbackExecutor = callbackA;
+        builderA.priority = ConacoTask.PRIORITY_HIGH;
+        mConaco.load(builderA);
+
+        ConacoTask.Builder<String> builderB = newBuilder(b, "k");
+        builderB.callbackExecutor = callbackB;
+        builderB.priority = ConacoTask.PRIORITY_LOW;
+        mConaco.load(builderB);
+
+        // The started task keeps running for b
+        mConaco.cancel(a);
+        runJobs();
+        callbackA.runAll();
+        callbackB.runAll();
+
+        assertEquals(Collections.singletonList(ConacoTask.PRIORITY_LOW), mNetwork.mPriorities);
+        assertEquals(Arrays.asList("a:miss1", "a:miss0", "a:cancel"), a.mEvents);
+        // The wait callback is of the task of b, which is dropped
+        assertEquals(Arrays.asList("b:miss1", "b:value2=hello"), b.mEvents);
+    }
+
+    @Test
+    public void cancelHandsOverDiskMiss() {
+        mHandler = body("hello");
+        QueueExecutor callbackA = new QueueExecutor("a");
+        QueueExecutor callbackB = new QueueExecutor("b");
+        TestUnikery a = new TestUnikery();
+        TestUnikery b = new TestUnikery();
+
+        ConacoTask.Builder<String> builderA = newBuilder(a, "k");
+        builderA.callbackExecutor = callbackA;
+        mConaco.load(builderA);
+        ConacoTask.Builder<String> builderB = newBuilder(b, "k");
+        builderB.callbackExecutor = callbackB;
+        mConaco.load(builderB);
+
+        // Disk cache is missed before b takes the task
+        mDisk.runAll();
+        mConaco.cancel(a);
+        runJobs();
+        callbackA.runAll();
+        callbackB.runAll();
+
+        assertEquals(Arrays.asList("a:miss0", "a:cancel"), a.mEvents);
+        assertEquals(Arrays.asList("b:miss1", "b:value2=hello"), b.mEvents);
+    }
+
+    @Test
+    public void prefetchCopiesBuilder() {
+        TestUnikery unikery = new TestUnikery();
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        mConaco.prefetch(builder, null);
+
+        assertSame(unikery, builder.unikery);
+        assertFalse(builder.skipDecode);
+        assertEquals(ConacoTask.PRIORITY_NORMAL, builder.priority);
+        assertSame(mDisk, builder.diskExecutor);
+        assertEquals(null, builder.callbackExecutor);
+    }
+
+    @Test
+    public void upgradeChecksMemoryFirst() throws IOException {
+        putToDisk("k", "disk");
+        mConaco.prefetch(newBuilder(new TestUnikery(), "k"), null);
+        // The prefetch task is running, the value is in memory already
+        mConaco.getBeerBelly().putToMemory("k", "memory");
+
+        TestUnikery unikery = new TestUnikery();
+        mConaco.load(newBuilder(unikery, "k"));
+        runJobs();
+        assertEquals(Collections.singletonList("value0=memory"), unikery.mEvents);
+        assertFalse(mConaco.isLoading(unikery));
+    }
+
+    @Test
+    public void upgradeInNetworkStageGetsDiskMiss() {
+        final AtomicInteger requests = new AtomicInteger();
+        mHandler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                respond(exchange, 200, "hello");
+            }
+        };
+        mConaco.prefetch(newBuilder(new TestUnikery(), "k"), null);
+        // The prefetch task is waiting for network
+        mDisk.runAll();
+
+        TestUnikery unikery = new TestUnikery();
+        mConaco.load(newBuilder(unikery, "k"));
+        runJobs();
+        assertEquals(1, requests.get());
+        assertEquals(Arrays.asList("miss0", "miss1", "value2=hello"), unikery.mEvents);
+    }
+}
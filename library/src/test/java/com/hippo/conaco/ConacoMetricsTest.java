@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConacoMetricsTest {
+
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void valuesGoToLog2Buckets() {
+        ConacoMetrics.Histogram histogram = new ConacoMetrics.Histogram();
+        long[] values = {-5, 0, 1, 2, 3, 4, 1023, 1024, Long.MAX_VALUE};
+        for (long value : values) {
+            histogram.record(value);
+        }
+
+        long[] buckets = histogram.snapshot().getBuckets();
+        assertEquals(64, buckets.length);
+        // Negative values count as 0, 0 goes with 1
+        assertEquals(3, buckets[0]);
+        assertEquals(2, buckets[1]);
+        assertEquals(1, buckets[2]);
+        assertEquals(1, buckets[9]);
+        assertEquals(1, buckets[10]);
+        assertEquals(1, buckets[62]);
+        long total = 0;
+        for (long bucket : buckets) {
+            total += bucket;
+        }
+        assertEquals(values.length, total);
+    }
+
+    @Test
+    public void percentileIsUpperBoundOfBucket() {
+        ConacoMetrics.Histogram histogram = new ConacoMetrics.Histogram();
+        for (int i = 0; i < 50; i++) {
+            histogram.record(1);
+        }
+        for (int i = 0; i < 49; i++) {
+            histogram.record(100);
+        }
+        histogram.record(10000);
+
+        ConacoMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(50 + 49 * 100 + 10000, snapshot.getSum());
+        assertEquals((50 + 49 * 100 + 10000) / 100, snapshot.getMean());
+        assertEquals(1, snapshot.getPercentile(0.0));
+        assertEquals(1, snapshot.getPercentile(0.5));
+        // 100 is in [64, 128)
+        assertEquals(127, snapshot.getPercentile(0.51));
+        assertEquals(127, snapshot.getPercentile(0.99));
+        // 10000 is in [8192, 16384)
+        assertEquals(16383, snapshot.getPercentile(1.0));
+    }
+
+    @Test
+    public void percentileOfEmptyOrHugeValues() {
+        ConacoMetrics.Histogram histogram = new ConacoMetrics.Histogram();
+        assertEquals(0, histogram.snapshot().getPercentile(0.5));
+        assertEquals(0, histogram.snapshot().getMean());
+
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, histogram.snapshot().getPercentile(0.5));
+    }
+
+    @Test
+    public void hitRatioBySource() {
+        ConacoMetrics metrics = new ConacoMetrics();
+        metrics.onLookup(Conaco.SOURCE_MEMORY, true);
+        metrics.onLookup(Conaco.SOURCE_MEMORY, false);
+        metrics.onLookup(Conaco.SOURCE_MEMORY, false);
+        metrics.onLookup(Conaco.SOURCE_MEMORY, true);
+        metrics.onLookup(Conaco.SOURCE_DISK, true);
+        metrics.onLookup(Conaco.SOURCE_DISK, false);
+        metrics.onLookup(Conaco.SOURCE_DISK, false);
+
+        ConacoMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(4, snapshot.lookups[Conaco.SOURCE_MEMORY]);
+        assertEquals(2, snapshot.hits[Conaco.SOURCE_MEMORY]);
+        assertEquals(0.5, snapshot.getHitRatio(Conaco.SOURCE_MEMORY), DELTA);
+        assertEquals(1.0 / 3, snapshot.getHitRatio(Conaco.SOURCE_DISK), DELTA);
+        // No lookup
+        assertEquals(0.0, snapshot.getHitRatio(Conaco.SOURCE_NETWORK), DELTA);
+    }
+
+    @Test
+    public void stagesGoToTheirHistograms() {
+        ConacoMetrics metrics = new ConacoMetrics();
+        metrics.onQueueWait(MetricsListener.STAGE_DISK, 10);
+        metrics.onQueueWait(MetricsListener.STAGE_NETWORK, 20);
+        metrics.onQueueWait(MetricsListener.STAGE_NETWORK, 30);
+        metrics.onDownload(1000, 500000000L);
+        metrics.onDownload(1000, 500000000L);
+
+        ConacoMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.diskQueueWait.getCount());
+        assertEquals(2, snapshot.networkQueueWait.getCount());
+        assertEquals(50, snapshot.networkQueueWait.getSum());
+        assertEquals(0, snapshot.decodeQueueWait.getCount());
+        assertEquals(2000.0, snapshot.getDownloadThroughput(), DELTA);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Loads with Conaco, and calls it from other threads.
+ */
+public class ConacoTest extends ConacoTestCase {
+
+    @Test
+    public void callbacksRunWithoutLock() {
+        mConaco.getBeerBelly().putToMemory("k", "memory");
+        TestUnikery unikery = new TestUnikery();
+        mConaco.load(newBuilder(unikery, "k"));
+
+        // Direct callback executor, delivered before load returns
+        assertEquals(Collections.singletonList("value0=memory"), unikery.mEvents);
+    }
+
+    @Test
+    public void lookupsDoNotWaitForLock() throws InterruptedException {
+        mHandler = body("hello");
+        QueueExecutor callback = new QueueExecutor(null);
+        TestUnikery loading = new TestUnikery();
+        TestUnikery done = new TestUnikery();
+        ConacoTask.Builder<String> builder = newBuilder(done, "b");
+        builder.callbackExecutor = callback;
+        mConaco.load(builder);
+        runJobs();
+        // The value of b is not delivered, the task of a is in disk stage
+        mConaco.load(newBuilder(loading, "a"));
+
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread locker = new Thread() {
+            @Override
+            public void run() {
+                synchronized (mConaco.mLock) {
+                    locked.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+            }
+        };
+        locker.start();
+        assertTrue(locked.await(10, TimeUnit.SECONDS));
+        try {
+            long start = System.nanoTime();
+            assertTrue(mConaco.isLoading(loading));
+            assertFalse(mConaco.isLoading(done));
+            // The done task is dropped without the lock
+            mConaco.cancel(done);
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        } finally {
+            release.countDown();
+            locker.join();
+        }
+
+        callback.runAll();
+        assertTrue(done.mEvents.isEmpty());
+    }
+
+    @Test
+    public void loadAllChecksAllBuildersFirst() {
+        TestUnikery a = new TestUnikery();
+        TestUnikery b = new TestUnikery();
+        List<ConacoTask.Builder<String>> builders = new ArrayList<>();
+        builders.add(newBuilder(a, "a"));
+        builders.add(newBuilder(b, "b"));
+        // No unikery
+        builders.add(new ConacoTask.Builder<String>());
+
+        try {
+            mConaco.loadAll(builders);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertFalse(mConaco.isLoading(a));
+        assertFalse(mConaco.isLoading(b));
+        assertTrue(a.mEvents.isEmpty());
+    }
+
+    @Test
+    public void loadAllKeepsStripes() throws Exception {
+        StripedExecutor disk = new StripedExecutor(2, Executors.defaultThreadFactory());
+        List<ConacoTask.Builder<String>> builders = new ArrayList<>();
+        List<TestUnikery> unikeries = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            putToDisk("k" + i, "v" + i);
+            TestUnikery unikery = new TestUnikery();
+            unikeries.add(unikery);
+            ConacoTask.Builder<String> builder = newBuilder(unikery, "k" + i);
+            builder.diskExecutor = disk;
+            builders.add(builder);
+        }
+
+        // Block the stripe of k0
+        final CountDownLatch release = new CountDownLatch(1);
+        disk.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+        }, "k0");
+
+        mConaco.loadAll(builders);
+
+        // Keys of other stripes are loaded, k0 waits for its stripe
+        int other = 1;
+        while (disk.forKey("k" + other) == disk.forKey("k0")) {
+            other++;
+        }
+        TestUnikery otherUnikery = unikeries.get(other);
+        for (int i = 0; i < 500 && otherUnikery.mEvents.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("miss0", "value1=v" + other), otherUnikery.mEvents);
+        assertEquals(Collections.singletonList("miss0"), unikeries.get(0).mEvents);
+
+        release.countDown();
+        for (int i = 0; i < 500 && unikeries.get(0).mEvents.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("miss0", "value1=v0"), unikeries.get(0).mEvents);
+    }
+
+    @Test
+    public void memoryIsReadWithoutLock() throws IOException {
+        final List<Boolean> locked = new ArrayList<>();
+        Conaco.Builder<String> conacoBuilder = newConacoBuilder(null);
+        conacoBuilder.valueHelper = new StringHelper() {
+            @Override
+            public boolean useMemoryCache(String key, String value) {
+                if (value == null) {
+                    locked.add(Thread.holdsLock(mConaco.mLock));
+                }
+                return true;
+            }
+        };
+        mConaco = conacoBuilder.build();
+        mConaco.getBeerBelly().putToMemory("k0", "memory");
+
+        TestUnikery unikery = new TestUnikery();
+        mConaco.load(newBuilder(unikery, "k0"));
+        List<ConacoTask.Builder<String>> builders = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            builders.add(newBuilder(new TestUnikery(), "k" + i));
+        }
+        mConaco.loadAll(builders);
+
+        assertEquals(Collections.singletonList("value0=memory"), unikery.mEvents);
+        assertEquals(Arrays.asList(false, false, false), locked);
+    }
+
+    @Test
+    public void runsOnJvmWithoutLooper() throws IOException, InterruptedException {
+        mHandler = body("hello");
+        ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+        Conaco.Builder<String> conacoBuilder = newConacoBuilder(null);
+        conacoBuilder.networkBackend = Conaco.NETWORK_BACKEND_THREAD_PER_TASK;
+        conacoBuilder.callbackExecutor = callbackExecutor;
+        mConaco = conacoBuilder.build();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        TestUnikery unikery = new TestUnikery() {
+            @Override
+            public void onGetValue(String value, int source) {
+                super.onGetValue(value, source);
+                done.countDown();
+            }
+        };
+        // Executors of Conaco, no UI thread
+        ConacoTask.Builder<String> builder = new ConacoTask.Builder<>();
+        builder.unikery = unikery;
+        builder.key = "k";
+        builder.url = url("/k");
+        mConaco.load(builder);
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("miss0", "miss1", "value2=hello"), unikery.mEvents);
+        callbackExecutor.shutdown();
+        assertTrue(callbackExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void waitingJobsOfOneHostKeepPriorities() {
+        final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+        mHandler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                paths.add(exchange.getRequestURI().getPath());
+                respond(exchange, 200, "v");
+            }
+        };
+        for (int i = 0; i < 6; i++) {
+            ConacoTask.Builder<String> builder = newBuilder(new TestUnikery(), "k" + i);
+            builder.priority = ConacoTask.PRIORITY_LOW;
+            mConaco.load(builder);
+        }
+        mDisk.runAll();
+        // One host can use all 3 threads of the default pool, the others wait
+        assertEquals(Arrays.asList(ConacoTask.PRIORITY_LOW, ConacoTask.PRIORITY_LOW,
+                ConacoTask.PRIORITY_LOW), mNetwork.mPriorities);
+
+        // Load k5 again with high priority, it is moved in the waiting queue
+        ConacoTask.Builder<String> builder = newBuilder(new TestUnikery(), "k5");
+        builder.priority = ConacoTask.PRIORITY_HIGH;
+        mConaco.load(builder);
+        runJobs();
+
+        assertEquals(Arrays.asList("/k0", "/k1", "/k2", "/k5", "/k3", "/k4"), paths);
+    }
+}
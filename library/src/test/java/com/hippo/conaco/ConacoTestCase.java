@@ -0,0 +1,373 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.Nullable;
+
+import com.hippo.beerbelly.BeerBelly;
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import okhttp3.OkHttpClient;
+
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs Conaco with queue executors, a string helper
+ * and a local http server. Tests of Conaco extend it.
+ */
+abstract class ConacoTestCase {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * Keeps commands until {@link #runAll()}. Callbacks run by
+     * a named one are recorded with the name.
+     */
+    static class QueueExecutor implements Executor {
+
+        static String sCurrent;
+
+        final String mName;
+        final ArrayDeque<Runnable> mQueue = new ArrayDeque<>();
+
+        public QueueExecutor(@Nullable String name) {
+            mName = name;
+        }
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            mQueue.offer(command);
+        }
+
+        public void runAll() {
+            for (;;) {
+                Runnable command;
+                synchronized (this) {
+                    command = mQueue.poll();
+                }
+                if (command == null) {
+                    return;
+                }
+                String last = sCurrent;
+                sCurrent = mName != null ? mName : last;
+                try {
+                    command.run();
+                } finally {
+                    sCurrent = last;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps network jobs with their priorities until {@link #runAll()}.
+     */
+    static class QueuePriorityExecutor extends PriorityExecutor {
+
+        final List<Integer> mPriorities = new ArrayList<>();
+        final QueueExecutor mQueue = new QueueExecutor(null);
+
+        public QueuePriorityExecutor() {
+            super(1, false, Executors.defaultThreadFactory());
+        }
+
+        @Override
+        public void execute(Runnable command, int priority, Object tag) {
+            synchronized (mPriorities) {
+                mPriorities.add(priority);
+            }
+            mQueue.execute(command);
+        }
+
+        public void runAll() {
+            mQueue.runAll();
+        }
+    }
+
+    static class StringHelper implements ValueHelper<String> {
+
+        @Override
+        public String decode(InputStreamPipe isPipe) {
+            try {
+                isPipe.obtain();
+                return new String(readAll(isPipe.open()), UTF_8);
+            } catch (IOException e) {
+                return null;
+            } finally {
+                isPipe.close();
+                isPipe.release();
+            }
+        }
+
+        @Override
+        public int sizeOf(String key, String value) {
+            return value.length();
+        }
+
+        @Override
+        public void onAddToMemoryCache(String key, String value) {}
+
+        @Override
+        public void onRemoveFromMemoryCache(String key, String value) {}
+
+        @Override
+        public boolean useMemoryCache(String key, String value) {
+            return true;
+        }
+    }
+
+    /**
+     * Records callbacks with the name of the queue executor running them.
+     */
+    class TestUnikery implements Unikery<String> {
+
+        volatile int mTaskId = INVALID_ID;
+        final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+        volatile boolean mRecordProgress;
+
+        void record(String event) {
+            // Never called with the lock held
+            assertFalse(Thread.holdsLock(mConaco.mLock));
+            String executor = QueueExecutor.sCurrent;
+            mEvents.add(executor != null ? executor + ":" + event : event);
+        }
+
+        @Override
+        public void setTaskId(int id) {
+            mTaskId = id;
+        }
+
+        @Override
+        public int getTaskId() {
+            return mTaskId;
+        }
+
+        @Override
+        public void onMiss(int source) {
+            record("miss" + source);
+        }
+
+        @Override
+        public void onProgress(long singleReceivedSize, long receivedSize, long totalSize) {
+            if (mRecordProgress) {
+                record("progress" + receivedSize + "/" + totalSize);
+            }
+        }
+
+        @Override
+        public void onWait() {
+            record("wait");
+        }
+
+        @Override
+        public void onGetValue(String value, int source) {
+            record("value" + source + "=" + value);
+        }
+
+        @Override
+        public void onGetPipe(InputStreamPipe pipe) {
+            record("pipe");
+        }
+
+        @Override
+        public void onFailure() {
+            record("failure");
+        }
+
+        @Override
+        public void onCancel() {
+            record("cancel");
+        }
+    }
+
+    @Rule
+    public TemporaryFolder mTemp = new TemporaryFolder();
+
+    HttpServer mServer;
+    volatile HttpHandler mHandler;
+    Conaco<String> mConaco;
+    File mDiskCacheDir;
+    QueueExecutor mDisk;
+    QueuePriorityExecutor mNetwork;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    mHandler.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+
+        mConaco = newConaco(null);
+
+        mDisk = new QueueExecutor(null);
+        mNetwork = new QueuePriorityExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    Conaco<String> newConaco(@Nullable File partialDownloadDir) throws IOException {
+        return newConacoBuilder(partialDownloadDir).build();
+    }
+
+    Conaco.Builder<String> newConacoBuilder(@Nullable File partialDownloadDir)
+            throws IOException {
+        Conaco.Builder<String> builder = new Conaco.Builder<>();
+        builder.hasMemoryCache = true;
+        builder.memoryCacheMaxSize = 1024 * 1024;
+        builder.hasDiskCache = true;
+        mDiskCacheDir = mTemp.newFolder();
+        builder.diskCacheDir = mDiskCacheDir;
+        builder.diskCacheMaxSize = 1024 * 1024;
+        builder.partialDownloadDir = partialDownloadDir;
+        builder.okHttpClient = new OkHttpClient();
+        builder.valueHelper = new StringHelper();
+        builder.callbackExecutor = DIRECT;
+        return builder;
+    }
+
+    static byte[] readAll(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            os.write(buffer, 0, n);
+        }
+        return os.toByteArray();
+    }
+
+    static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.sendResponseHeaders(code, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length != 0) {
+            OutputStream os = exchange.getResponseBody();
+            os.write(bytes);
+            os.close();
+        }
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + path;
+    }
+
+    ConacoTask.Builder<String> newBuilder(Unikery<String> unikery, String key) {
+        ConacoTask.Builder<String> builder = new ConacoTask.Builder<>();
+        builder.unikery = unikery;
+        builder.key = key;
+        builder.url = url("/" + key);
+        builder.diskExecutor = mDisk;
+        builder.networkExecutor = mNetwork;
+        builder.decodeExecutor = DIRECT;
+        return builder;
+    }
+
+    /**
+     * Run queued jobs until all of them are done.
+     */
+    void runJobs() {
+        for (int i = 0; i < 10; i++) {
+            mDisk.runAll();
+            mNetwork.runAll();
+        }
+    }
+
+    void putToDisk(String key, String value) throws IOException {
+        OutputStreamPipe pipe = mConaco.getBeerBelly().getDiskCache().getOutputStreamPipe(key);
+        try {
+            pipe.obtain();
+            pipe.open().write(value.getBytes(UTF_8));
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+    }
+
+    static HttpHandler body(final String body) {
+        return new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, body);
+            }
+        };
+    }
+
+    String getFromDisk(String key) {
+        return mConaco.getBeerBelly().getFromDisk(key);
+    }
+
+    static String largeBody(int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        return sb.toString();
+    }
+
+    String readFromDisk(BeerBelly<?> cache, String key) throws IOException {
+        InputStreamPipe pipe = cache.getDiskCache().getInputStreamPipe(key);
+        if (pipe == null) {
+            return null;
+        }
+        try {
+            pipe.obtain();
+            return new String(readAll(pipe.open()), UTF_8);
+        } finally {
+            pipe.close();
+            pipe.release();
+        }
+    }
+}
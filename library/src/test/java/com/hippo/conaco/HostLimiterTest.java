@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostLimiterTest {
+
+    private HttpServer mServer;
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private final AtomicInteger mSlowRunning = new AtomicInteger();
+    private final AtomicInteger mSlowMaxRunning = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // The slow host is reached by 127.0.0.1, the other one by localhost
+                if (exchange.getRequestHeaders().getFirst("Host").startsWith("127.0.0.1")) {
+                    int running = mSlowRunning.incrementAndGet();
+                    updateMax(running);
+                    try {
+                        mRelease.await(30, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    mSlowRunning.decrementAndGet();
+                }
+                exchange.sendResponseHeaders(200, 1);
+                OutputStream os = exchange.getResponseBody();
+                os.write(0);
+                os.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+    }
+
+    private void updateMax(int running) {
+        for (;;) {
+            int max = mSlowMaxRunning.get();
+            if (running <= max || mSlowMaxRunning.compareAndSet(max, running)) {
+                return;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        mServer.stop(0);
+    }
+
+    private void submit(final HostLimiter limiter, final PriorityExecutor executor,
+            final OkHttpClient client, final String host, final CountDownLatch done) {
+        final String url = "http://" + host + ":" + mServer.getAddress().getPort() + "/";
+        final Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+                    response.body().close();
+                } catch (IOException e) {
+                    // Not counted as done
+                    return;
+                } finally {
+                    limiter.finish(host);
+                }
+                done.countDown();
+            }
+        };
+        limiter.execute(host, new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(job);
+            }
+        });
+    }
+
+    @Test
+    public void slowHostDoesNotBlockOthers() throws Exception {
+        HostLimiter limiter = new HostLimiter(2, 8, false);
+        PriorityExecutor executor = new PriorityExecutor(3, false, Executors.defaultThreadFactory());
+        OkHttpClient client = new OkHttpClient();
+
+        CountDownLatch slowDone = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            submit(limiter, executor, client, "127.0.0.1", slowDone);
+        }
+        CountDownLatch fastDone = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            submit(limiter, executor, client, "localhost", fastDone);
+        }
+
+        // The slow host holds 2 of 3 threads, the other host goes on
+        assertTrue(fastDone.await(10, TimeUnit.SECONDS));
+        assertEquals(2, limiter.getRunningCount("127.0.0.1"));
+
+        mRelease.countDown();
+        assertTrue(slowDone.await(10, TimeUnit.SECONDS));
+        assertEquals(2, mSlowMaxRunning.get());
+        assertEquals(0, limiter.getRunningCount("127.0.0.1"));
+    }
+
+    @Test
+    public void http2HostGetsHigherLimit() {
+        HostLimiter limiter = new HostLimiter(1, 3, false);
+        final AtomicInteger started = new AtomicInteger();
+        Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                started.incrementAndGet();
+            }
+        };
+
+        for (int i = 0; i < 4; i++) {
+            limiter.execute("a", start);
+        }
+        assertEquals(1, started.get());
+
+        // A response says HTTP/2, the next finish starts up to the new limit
+        limiter.setHttp2("a");
+        limiter.finish("a");
+        assertEquals(4, started.get());
+        assertEquals(3, limiter.getRunningCount("a"));
+    }
+
+    @Test
+    public void tryAcquireNeverWaits() {
+        HostLimiter limiter = new HostLimiter(2, 8, false);
+        final AtomicInteger started = new AtomicInteger();
+        Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                started.incrementAndGet();
+            }
+        };
+
+        // A job and one of its segments take both slots
+        limiter.execute("a", start);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+        assertEquals(2, limiter.getRunningCount("a"));
+
+        // The segment is done, the waiting job takes its slot
+        limiter.execute("a", start);
+        assertEquals(1, started.get());
+        limiter.finish("a");
+        assertEquals(2, started.get());
+        assertEquals(2, limiter.getRunningCount("a"));
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void waitingJobsStartByPriority() {
+        HostLimiter limiter = new HostLimiter(1, 1, false);
+        List<String> order = new ArrayList<>();
+        Object tag = new Object();
+        limiter.execute("a", 0, null, record(order, "running"));
+        limiter.execute("a", -1, tag, record(order, "low"));
+        limiter.execute("a", 0, null, record(order, "normal1"));
+        limiter.execute("a", 0, null, record(order, "normal2"));
+        limiter.execute("a", 1, null, record(order, "high"));
+        assertTrue(limiter.reprioritize("a", tag, 0));
+        for (int i = 0; i < 4; i++) {
+            limiter.finish("a");
+        }
+        // The moved one keeps its place among jobs of its new priority
+        assertEquals(Arrays.asList("running", "high", "low", "normal1", "normal2"), order);
+    }
+
+    @Test
+    public void waitingJobsStartInLifoOrder() {
+        HostLimiter limiter = new HostLimiter(1, 1, true);
+        List<String> order = new ArrayList<>();
+        limiter.execute("a", 0, null, record(order, "running"));
+        limiter.execute("a", 0, null, record(order, "first"));
+        limiter.execute("a", 0, null, record(order, "second"));
+        limiter.finish("a");
+        limiter.finish("a");
+        assertEquals(Arrays.asList("running", "second", "first"), order);
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class IOUtilsTest {
+
+    @Rule
+    public final TemporaryFolder mTemp = new TemporaryFolder();
+
+    private final BufferPool mPool = new BufferPool(1024, 2);
+
+    private File newFile(byte[] data) throws IOException {
+        File file = mTemp.newFile();
+        FileOutputStream os = new FileOutputStream(file);
+        os.write(data);
+        os.close();
+        return file;
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) i;
+        }
+        return data;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            int b;
+            while ((b = is.read()) != -1) {
+                os.write(b);
+            }
+            return os.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void fileStreamsUseChannel() throws IOException {
+        byte[] data = data(10000);
+        FileInputStream is = new FileInputStream(newFile(data));
+        File out = mTemp.newFile();
+        FileOutputStream os = new FileOutputStream(out);
+        // Start from the middle of the input, append to the output
+        os.write(data, 0, 100);
+        assertEquals(100, is.skip(100));
+
+        assertEquals(9900, IOUtils.copy(is, os, mPool));
+        assertEquals(-1, is.read());
+        assertEquals(10000, os.getChannel().position());
+        is.close();
+        os.close();
+
+        assertArrayEquals(data, read(out));
+        // No buffer for channel transfer
+        assertEquals(0, mPool.getAcquireCount());
+    }
+
+    @Test
+    public void otherStreamsUseBuffer() throws IOException {
+        byte[] data = data(10000);
+        ByteArrayInputStream is = new ByteArrayInputStream(data);
+        File out = mTemp.newFile();
+        FileOutputStream os = new FileOutputStream(out);
+
+        assertEquals(10000, IOUtils.copy(is, os, mPool));
+        assertEquals(-1, is.read());
+        assertEquals(10000, os.getChannel().position());
+        os.close();
+
+        assertArrayEquals(data, read(out));
+        assertEquals(1, mPool.getAcquireCount());
+    }
+
+    @Test
+    public void stalledChannelFallsBackToBuffer() throws IOException {
+        byte[] data = data(10000);
+        StalledInputStream is = new StalledInputStream(newFile(data), 3000);
+        File out = mTemp.newFile();
+        FileOutputStream os = new FileOutputStream(out);
+
+        assertEquals(10000, IOUtils.copy(is, os, mPool));
+        assertEquals(-1, is.read());
+        assertEquals(10000, os.getChannel().position());
+        is.close();
+        os.close();
+
+        assertArrayEquals(data, read(out));
+        assertEquals(1, mPool.getAcquireCount());
+    }
+
+    @Test
+    public void emptyFileCopiesNothing() throws IOException {
+        FileInputStream is = new FileInputStream(newFile(new byte[0]));
+        File out = mTemp.newFile();
+        FileOutputStream os = new FileOutputStream(out);
+
+        assertEquals(0, IOUtils.copy(is, os, mPool));
+        is.close();
+        os.close();
+
+        assertArrayEquals(new byte[0], read(out));
+        assertEquals(0, mPool.getAcquireCount());
+    }
+
+    /**
+     * Its channel transfers at most {@code limit} bytes,
+     * then {@code transferTo} returns 0.
+     */
+    private static class StalledInputStream extends FileInputStream {
+
+        private final FileChannel mChannel;
+
+        public StalledInputStream(File file, long limit) throws FileNotFoundException {
+            super(file);
+            mChannel = new StalledChannel(super.getChannel(), limit);
+        }
+
+        @Override
+        public FileChannel getChannel() {
+            return mChannel;
+        }
+    }
+
+    private static class StalledChannel extends FileChannel {
+
+        private final FileChannel mChannel;
+        private long mLimit;
+
+        public StalledChannel(FileChannel channel, long limit) {
+            mChannel = channel;
+            mLimit = limit;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target)
+                throws IOException {
+            long n = mChannel.transferTo(position, Math.min(count, mLimit), target);
+            mLimit -= n;
+            return n;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return mChannel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return mChannel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return mChannel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return mChannel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return mChannel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            mChannel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            mChannel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            mChannel.force(metaData);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count)
+                throws IOException {
+            return mChannel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return mChannel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return mChannel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return mChannel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return mChannel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return mChannel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            mChannel.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Metrics reported by loads.
+ */
+public class LoadMetricsTest extends ConacoTestCase {
+
+    @Test
+    public void memoryLookupIsCountedOnce() throws IOException {
+        ConacoMetrics metrics = new ConacoMetrics();
+        Conaco.Builder<String> conacoBuilder = newConacoBuilder(null);
+        conacoBuilder.metricsListener = metrics;
+        mConaco = conacoBuilder.build();
+        mConaco.getBeerBelly().putToMemory("k0", "memory");
+        mConaco.getBeerBelly().putToMemory("k2", "memory");
+        putToDisk("k1", "disk");
+        mHandler = body("hello");
+
+        // Hit, miss then disk hit
+        mConaco.load(newBuilder(new TestUnikery(), "k0"));
+        mConaco.load(newBuilder(new TestUnikery(), "k1"));
+        // Hit, miss then network
+        mConaco.loadAll(Arrays.asList(newBuilder(new TestUnikery(), "k2"),
+                newBuilder(new TestUnikery(), "k3")));
+        // The waiting one takes the value without lookup
+        mConaco.load(newBuilder(new TestUnikery(), "k4"));
+        mConaco.load(newBuilder(new TestUnikery(), "k4"));
+        runJobs();
+
+        ConacoMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(5, snapshot.lookups[Conaco.SOURCE_MEMORY]);
+        assertEquals(2, snapshot.hits[Conaco.SOURCE_MEMORY]);
+        assertEquals(3, snapshot.lookups[Conaco.SOURCE_DISK]);
+        assertEquals(1, snapshot.hits[Conaco.SOURCE_DISK]);
+        assertEquals(2, snapshot.lookups[Conaco.SOURCE_NETWORK]);
+        assertEquals(2, snapshot.hits[Conaco.SOURCE_NETWORK]);
+        assertEquals(1, snapshot.coalesced);
+    }
+
+    @Test
+    public void networkQueueWaitSkipsHostWait() throws IOException {
+        ConacoMetrics metrics = new ConacoMetrics();
+        Conaco.Builder<String> conacoBuilder = newConacoBuilder(null);
+        conacoBuilder.metricsListener = metrics;
+        conacoBuilder.maxRequestsPerHost = 1;
+        mConaco = conacoBuilder.build();
+        mHandler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                respond(exchange, 200, "hello");
+            }
+        };
+
+        // The second one waits for the host while the first one is loading
+        mConaco.load(newBuilder(new TestUnikery(), "k1"));
+        mConaco.load(newBuilder(new TestUnikery(), "k2"));
+        runJobs();
+
+        ConacoMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.networkQueueWait.getCount());
+        assertTrue(snapshot.networkQueueWait.getPercentile(1.0) < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void streamDecodeIsTimed() throws IOException {
+        ConacoMetrics metrics = new ConacoMetrics();
+        Conaco.Builder<String> conacoBuilder = newConacoBuilder(null);
+        conacoBuilder.metricsListener = metrics;
+        mConaco = conacoBuilder.build();
+        mHandler = body("hello");
+
+        ConacoTask.Builder<String> builder = newBuilder(new TestUnikery(), "k");
+        builder.streamDecode = true;
+        mConaco.load(builder);
+        runJobs();
+
+        assertEquals(1, metrics.snapshot().decode.getCount());
+    }
+}
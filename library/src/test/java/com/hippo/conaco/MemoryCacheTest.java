@@ -0,0 +1,166 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryCacheTest {
+
+    /**
+     * Size of each value is the value, evicted keys are recorded.
+     */
+    private static class Recorder implements MemoryCache.Callback<Integer> {
+
+        private final List<String> mEvicted = new ArrayList<>();
+        private int mAdded;
+        private int mRemoved;
+
+        @Override
+        public int sizeOf(String key, Integer value) {
+            return value;
+        }
+
+        @Override
+        public void onEntryAdded(String key, Integer value) {
+            mAdded++;
+        }
+
+        @Override
+        public void onEntryRemoved(boolean evicted, String key, Integer oldValue, Integer newValue) {
+            mRemoved++;
+            if (evicted) {
+                mEvicted.add(key);
+            }
+        }
+    }
+
+    @Test
+    public void lruEvictsLeastRecentlyUsed() {
+        Recorder recorder = new Recorder();
+        MemoryCache<Integer> cache = new LruMemoryCache<>(3, recorder);
+        cache.put("a", 1);
+        cache.put("b", 1);
+        cache.put("c", 1);
+        assertNotNull(cache.get("a"));
+        cache.put("d", 1);
+
+        assertEquals(1, recorder.mEvicted.size());
+        assertEquals("b", recorder.mEvicted.get(0));
+        assertEquals(3, cache.size());
+        assertEquals(3, cache.count());
+    }
+
+    @Test
+    public void replaceUpdatesSize() {
+        for (MemoryCache<Integer> cache : createCaches(new Recorder(), 100)) {
+            cache.put("a", 10);
+            assertEquals(Integer.valueOf(10), cache.put("a", 20));
+            assertEquals(20, cache.size());
+            assertEquals(1, cache.count());
+            assertEquals(Integer.valueOf(20), cache.remove("a"));
+            assertEquals(0, cache.size());
+            assertNull(cache.get("a"));
+        }
+    }
+
+    @Test
+    public void callbacksAreBalanced() {
+        Recorder recorder = new Recorder();
+        for (MemoryCache<Integer> cache : createCaches(recorder, 50)) {
+            for (int i = 0; i < 1000; i++) {
+                cache.put("key" + (i % 120), 1 + i % 3);
+                cache.get("key" + (i * 7 % 120));
+                assertTrue(cache.size() <= cache.maxSize());
+            }
+            cache.clear();
+            assertEquals(0, cache.size());
+            assertEquals(0, cache.count());
+        }
+        assertEquals(recorder.mAdded, recorder.mRemoved);
+    }
+
+    @Test
+    public void tinyLfuResistsScan() {
+        Recorder recorder = new Recorder();
+        MemoryCache<Integer> lru = new LruMemoryCache<>(100, recorder);
+        MemoryCache<Integer> tinyLfu = new TinyLfuMemoryCache<>(100, recorder);
+
+        for (MemoryCache<Integer> cache : new MemoryCache[] {lru, tinyLfu}) {
+            // A hot set used many times
+            for (int round = 0; round < 10; round++) {
+                for (int i = 0; i < 50; i++) {
+                    if (cache.get("hot" + i) == null) {
+                        cache.put("hot" + i, 1);
+                    }
+                }
+            }
+            // A scan through new keys
+            for (int i = 0; i < 1000; i++) {
+                if (cache.get("scan" + i) == null) {
+                    cache.put("scan" + i, 1);
+                }
+            }
+        }
+
+        assertEquals(0, countHot(lru));
+        assertTrue(countHot(tinyLfu) >= 45);
+    }
+
+    private static int countHot(MemoryCache<Integer> cache) {
+        int count = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("hot" + i) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void sketchCountsKeys() {
+        FrequencySketch sketch = new FrequencySketch(64);
+        for (int i = 0; i < 5; i++) {
+            sketch.increment("a");
+        }
+        sketch.increment("b");
+        assertEquals(5, sketch.frequency("a"));
+        assertTrue(sketch.frequency("b") >= 1);
+        assertTrue(sketch.frequency("b") < sketch.frequency("a"));
+
+        // Counters saturate at 15
+        for (int i = 0; i < 100; i++) {
+            sketch.increment("c");
+        }
+        assertEquals(15, sketch.frequency("c"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MemoryCache<Integer>[] createCaches(Recorder recorder, int maxSize) {
+        return new MemoryCache[] {
+                new LruMemoryCache<>(maxSize, recorder),
+                new TinyLfuMemoryCache<>(maxSize, recorder)
+        };
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryTrimmerTest {
+
+    private static final int MB = 1024 * 1024;
+    private static final int ENTRY_SIZE = 64 * 1024;
+    private static final int ENTRIES_PER_FRAME = 4;
+
+    /**
+     * Runs frames by hand.
+     */
+    private static class Frames implements Executor {
+
+        private final ArrayDeque<Runnable> mCommands = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mCommands.offer(command);
+        }
+
+        public boolean runFrame() {
+            Runnable command = mCommands.poll();
+            if (command != null) {
+                command.run();
+                return true;
+            } else {
+                return false;
+            }
+        }
+    }
+
+    private static final MemoryCache.Callback<Integer> CALLBACK = new MemoryCache.Callback<Integer>() {
+        @Override
+        public int sizeOf(String key, Integer value) {
+            return value;
+        }
+
+        @Override
+        public void onEntryAdded(String key, Integer value) {}
+
+        @Override
+        public void onEntryRemoved(boolean evicted, String key, Integer oldValue, Integer newValue) {}
+    };
+
+    private ShardedMemoryCache<Integer> mCache;
+    private Frames mFrames;
+    private MemoryTrimmer mTrimmer;
+
+    @Before
+    public void setUp() {
+        mCache = new ShardedMemoryCache<>(16 * MB, 4, CALLBACK,
+                new ShardedMemoryCache.ShardFactory<Integer>() {
+                    @Override
+                    public MemoryCache<Integer> create(int maxSize, MemoryCache.Callback<Integer> callback) {
+                        return new TinyLfuMemoryCache<>(maxSize, callback);
+                    }
+                });
+        mFrames = new Frames();
+        mTrimmer = new MemoryTrimmer(mCache, mFrames, ENTRIES_PER_FRAME);
+        fill();
+    }
+
+    private void fill() {
+        for (int i = 0; i < 1000; i++) {
+            mCache.put("key" + i, ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * Run frames until trimming is done, each frame evicts a few entries.
+     *
+     * @return count of frames
+     */
+    private int runFrames() {
+        int frames = 0;
+        int count = mCache.count();
+        while (mFrames.runFrame()) {
+            frames++;
+            int newCount = mCache.count();
+            assertTrue(count - newCount <= ENTRIES_PER_FRAME);
+            count = newCount;
+        }
+        assertFalse(mTrimmer.isTrimming());
+        return frames;
+    }
+
+    @Test
+    public void keepRatio() {
+        assertEquals(1.0f, MemoryTrimmer.getKeepRatio(MemoryTrimmer.TRIM_MEMORY_RUNNING_MODERATE), 0.0f);
+        assertEquals(0.75f, MemoryTrimmer.getKeepRatio(MemoryTrimmer.TRIM_MEMORY_RUNNING_LOW), 0.0f);
+        assertEquals(0.5f, MemoryTrimmer.getKeepRatio(MemoryTrimmer.TRIM_MEMORY_RUNNING_CRITICAL), 0.0f);
+        assertEquals(0.5f, MemoryTrimmer.getKeepRatio(MemoryTrimmer.TRIM_MEMORY_UI_HIDDEN), 0.0f);
+        assertEquals(0.0f, MemoryTrimmer.getKeepRatio(MemoryTrimmer.TRIM_MEMORY_BACKGROUND), 0.0f);
+        assertEquals(0.0f, MemoryTrimmer.getKeepRatio(80), 0.0f);
+    }
+
+    @Test
+    public void runningTrimIsIncremental() {
+        assertEquals(16 * MB, mCache.size());
+
+        mTrimmer.trim(MemoryTrimmer.TRIM_MEMORY_RUNNING_LOW);
+        assertTrue(mTrimmer.isTrimming());
+        // Nothing is evicted before the first frame
+        assertEquals(16 * MB, mCache.size());
+
+        int frames = runFrames();
+        assertTrue(frames > 1);
+        assertTrue(mCache.size() <= 12 * MB);
+        assertEquals(16 * MB, mCache.maxSize());
+    }
+
+    @Test
+    public void hiddenTrimIsAtOnce() {
+        mTrimmer.trim(MemoryTrimmer.TRIM_MEMORY_UI_HIDDEN);
+        assertFalse(mTrimmer.isTrimming());
+        assertTrue(mCache.size() <= 8 * MB);
+
+        mTrimmer.trim(MemoryTrimmer.TRIM_MEMORY_BACKGROUND);
+        assertEquals(0, mCache.size());
+        assertEquals(0, mCache.count());
+    }
+
+    @Test
+    public void moderateLevelDoesNothing() {
+        mTrimmer.trim(MemoryTrimmer.TRIM_MEMORY_RUNNING_MODERATE);
+        assertFalse(mTrimmer.isTrimming());
+        assertEquals(16 * MB, mCache.size());
+    }
+
+    @Test
+    public void shrinkTakesEffectAfterTrimming() {
+        mTrimmer.resize(4 * MB);
+        assertEquals(16 * MB, mCache.maxSize());
+
+        runFrames();
+        assertTrue(mCache.size() <= 4 * MB);
+        assertEquals(4 * MB, mCache.maxSize());
+
+        // New entries are bounded by the new max size
+        fill();
+        assertTrue(mCache.size() <= 4 * MB);
+    }
+
+    @Test
+    public void growTakesEffectAtOnce() {
+        mTrimmer.resize(4 * MB);
+        mTrimmer.resize(32 * MB);
+        assertEquals(32 * MB, mCache.maxSize());
+        runFrames();
+        assertEquals(32 * MB, mCache.maxSize());
+
+        for (int i = 1000; i < 2000; i++) {
+            mCache.put("key" + i, ENTRY_SIZE);
+        }
+        assertTrue(mCache.size() > 16 * MB);
+    }
+
+    @Test
+    public void trimDuringShrink() {
+        mTrimmer.resize(8 * MB);
+        mTrimmer.trim(MemoryTrimmer.TRIM_MEMORY_RUNNING_CRITICAL);
+        runFrames();
+        // Half of the new max size
+        assertTrue(mCache.size() <= 4 * MB);
+        assertEquals(8 * MB, mCache.maxSize());
+    }
+}
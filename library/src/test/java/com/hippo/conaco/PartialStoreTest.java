@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PartialStoreTest {
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("partial", "");
+        mDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    private static void append(File file, int length) throws IOException {
+        FileOutputStream os = new FileOutputStream(file, true);
+        os.write(new byte[length]);
+        os.close();
+    }
+
+    @Test
+    public void resumeFromLength() throws IOException {
+        PartialStore store = new PartialStore(mDir);
+        assertNull(store.get("a", "http://example.com/a"));
+
+        PartialStore.Partial partial = store.begin("a", "http://example.com/a", "\"v1\"", 1000L);
+        assertNotNull(partial);
+        append(partial.file, 300);
+
+        partial = store.get("a", "http://example.com/a");
+        assertNotNull(partial);
+        assertEquals(300L, partial.length());
+        assertEquals(1000L, partial.total);
+
+        Request.Builder builder = new Request.Builder().url("http://example.com/a");
+        partial.addRangeTo(builder);
+        Request request = builder.build();
+        assertEquals("bytes=300-", request.header("Range"));
+        assertEquals("\"v1\"", request.header("If-Range"));
+
+        store.remove("a");
+        assertNull(store.get("a", "http://example.com/a"));
+    }
+
+    @Test
+    public void keyedByKey() throws IOException {
+        PartialStore store = new PartialStore(mDir);
+        PartialStore.Partial a = store.begin("a", "http://example.com/same", "v", 1000L);
+        PartialStore.Partial b = store.begin("b", "http://example.com/same", "v", 1000L);
+        assertNotNull(a);
+        assertNotNull(b);
+        append(a.file, 300);
+        append(b.file, 100);
+
+        // Same url, different files
+        assertEquals(300L, store.get("a", "http://example.com/same").length());
+        assertEquals(100L, store.get("b", "http://example.com/same").length());
+
+        // The key is loaded from another url now, start again
+        assertNull(store.get("a", "http://example.com/other"));
+        assertNull(store.get("a", "http://example.com/same"));
+    }
+
+    @Test
+    public void reservedByOneTask() throws IOException {
+        PartialStore store = new PartialStore(mDir);
+        assertTrue(store.reserve("a"));
+        assertFalse(store.reserve("a"));
+        assertTrue(store.reserve("b"));
+        store.release("a");
+        assertTrue(store.reserve("a"));
+
+        // Reserved ones are not dropped
+        assertNotNull(store.begin("a", "http://example.com/a", "v", 1000L));
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(store.begin(Integer.toString(i), "http://example.com/" + i, "v", 1000L));
+        }
+        assertNotNull(store.get("a", "http://example.com/a"));
+    }
+
+    @Test
+    public void oldestIsDropped() throws IOException {
+        PartialStore store = new PartialStore(mDir);
+        for (int i = 0; i < 20; i++) {
+            assertNotNull(store.begin(Integer.toString(i), "http://example.com/" + i, "v", 1000L));
+        }
+        int metas = 0;
+        for (File file : mDir.listFiles()) {
+            if (file.getName().endsWith(".meta")) {
+                metas++;
+            }
+        }
+        assertEquals(16, metas);
+        assertNotNull(store.get("19", "http://example.com/19"));
+    }
+
+    @Test
+    public void parseResponse() {
+        Response response = new Response.Builder()
+                .request(new Request.Builder().url("http://example.com/").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(206)
+                .header("Content-Range", "bytes 300-999/1000")
+                .header("ETag", "W/\"weak\"")
+                .header("Last-Modified", "Wed, 21 Oct 2015 07:28:00 GMT")
+                .build();
+        assertEquals(300L, PartialStore.getRangeStart(response));
+        // Weak ETag can't be used in If-Range
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", PartialStore.getValidator(response));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityExecutorTest {
+
+    private final List<String> mOrder = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch mStarted = new CountDownLatch(1);
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+    private CountDownLatch mDone;
+
+    /**
+     * Return a one-thread executor, its thread is busy until {@link #release(int)}.
+     */
+    private PriorityExecutor newBlockedExecutor(boolean lifo) throws InterruptedException {
+        PriorityExecutor executor = new PriorityExecutor(1, lifo, Executors.defaultThreadFactory());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mStarted.countDown();
+                try {
+                    mRelease.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+        });
+        assertTrue(mStarted.await(10, TimeUnit.SECONDS));
+        return executor;
+    }
+
+    private void submit(PriorityExecutor executor, final String name, int priority, Object tag) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mOrder.add(name);
+                mDone.countDown();
+            }
+        }, priority, tag);
+    }
+
+    /**
+     * Let the queued jobs run, wait for them.
+     */
+    private void release(int count) throws InterruptedException {
+        mRelease.countDown();
+        assertTrue(mDone.await(10, TimeUnit.SECONDS));
+        assertEquals(count, mOrder.size());
+    }
+
+    @Test
+    public void higherPriorityRunsFirst() throws InterruptedException {
+        PriorityExecutor executor = newBlockedExecutor(false);
+        mDone = new CountDownLatch(3);
+        submit(executor, "low", ConacoTask.PRIORITY_LOW, null);
+        submit(executor, "normal", ConacoTask.PRIORITY_NORMAL, null);
+        submit(executor, "high", ConacoTask.PRIORITY_HIGH, null);
+        release(3);
+        assertEquals(Arrays.asList("high", "normal", "low"), mOrder);
+    }
+
+    @Test
+    public void samePriorityRunsInFifoOrder() throws InterruptedException {
+        PriorityExecutor executor = newBlockedExecutor(false);
+        mDone = new CountDownLatch(3);
+        submit(executor, "a", 0, null);
+        submit(executor, "b", 0, null);
+        submit(executor, "c", 0, null);
+        release(3);
+        assertEquals(Arrays.asList("a", "b", "c"), mOrder);
+    }
+
+    @Test
+    public void samePriorityRunsInLifoOrder() throws InterruptedException {
+        PriorityExecutor executor = newBlockedExecutor(true);
+        mDone = new CountDownLatch(3);
+        submit(executor, "a", 0, null);
+        submit(executor, "b", 0, null);
+        submit(executor, "c", 0, null);
+        release(3);
+        assertEquals(Arrays.asList("c", "b", "a"), mOrder);
+    }
+
+    @Test
+    public void reprioritizeKeepsSubmitOrder() throws InterruptedException {
+        PriorityExecutor executor = newBlockedExecutor(false);
+        mDone = new CountDownLatch(4);
+        Object tag = new Object();
+        submit(executor, "a", ConacoTask.PRIORITY_LOW, tag);
+        submit(executor, "b", ConacoTask.PRIORITY_NORMAL, null);
+        submit(executor, "c", ConacoTask.PRIORITY_NORMAL, null);
+        submit(executor, "d", ConacoTask.PRIORITY_LOW, null);
+        assertTrue(executor.reprioritize(tag, ConacoTask.PRIORITY_NORMAL));
+        release(4);
+        // a was submitted before b and c, it keeps its place among them
+        assertEquals(Arrays.asList("a", "b", "c", "d"), mOrder);
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import android.support.annotation.Nullable;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Progress and partial values of downloads.
+ */
+public class ProgressTest extends ConacoTestCase {
+
+    @Test
+    public void progressIsPostedOnceInFlight() {
+        String body = largeBody(256 * 1024);
+        mHandler = body(body);
+        QueueExecutor callback = new QueueExecutor(null);
+        TestUnikery unikery = new TestUnikery();
+        unikery.mRecordProgress = true;
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.callbackExecutor = callback;
+        builder.progressInterval = 0L;
+        mConaco.load(builder);
+        runJobs();
+
+        // Every read wants a progress, the one in flight takes the latest
+        int posted = callback.mQueue.size();
+        callback.runAll();
+        assertEquals(Arrays.asList("miss0", "miss1", "progress262144/262144",
+                "value2=" + body), unikery.mEvents);
+        assertEquals(posted, unikery.mEvents.size());
+    }
+
+    @Test
+    public void progressWaitsForQueuedMiss() throws InterruptedException {
+        String body = largeBody(1024);
+        mHandler = body(body);
+
+        // Another thread is stuck dispatching a callback of the first task
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean blocked = new AtomicBoolean();
+        Executor slow = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (blocked.compareAndSet(false, true)) {
+                    entered.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+                command.run();
+            }
+        };
+        final ConacoTask.Builder<String> slowBuilder = newBuilder(new TestUnikery(), "a");
+        slowBuilder.callbackExecutor = slow;
+        Thread dispatcher = new Thread() {
+            @Override
+            public void run() {
+                mConaco.load(slowBuilder);
+            }
+        };
+        dispatcher.start();
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+        // The misses of the second task are queued behind it
+        QueueExecutor callback = new QueueExecutor(null);
+        TestUnikery unikery = new TestUnikery();
+        unikery.mRecordProgress = true;
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "b");
+        builder.callbackExecutor = callback;
+        mConaco.load(builder);
+        runJobs();
+
+        release.countDown();
+        dispatcher.join();
+        callback.runAll();
+        assertEquals(Arrays.asList("miss0", "miss1", "progress1024/1024",
+                "value2=" + body), unikery.mEvents);
+    }
+
+    @Test
+    public void lastProgressIsFullLength() {
+        String body = largeBody(256 * 1024);
+        mHandler = body(body);
+        TestUnikery unikery = new TestUnikery();
+        unikery.mRecordProgress = true;
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.progressInterval = 0L;
+        mConaco.load(builder);
+        runJobs();
+
+        int n = unikery.mEvents.size();
+        assertTrue(n > 4);
+        assertEquals("progress262144/262144", unikery.mEvents.get(n - 2));
+        assertEquals("value2=" + body, unikery.mEvents.get(n - 1));
+        for (String event : unikery.mEvents.subList(2, n - 1)) {
+            assertTrue(event.startsWith("progress"));
+        }
+    }
+
+    @Test
+    public void noProgressAfterCancel() throws InterruptedException {
+        final byte[] body = largeBody(256 * 1024).getBytes(UTF_8);
+        final CountDownLatch half = new CountDownLatch(1);
+        mHandler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(body, 0, body.length / 2);
+                os.flush();
+                try {
+                    half.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                os.write(body, body.length / 2, body.length - body.length / 2);
+                os.close();
+            }
+        };
+        QueueExecutor callback = new QueueExecutor(null);
+        TestUnikery unikery = new TestUnikery();
+        unikery.mRecordProgress = true;
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.callbackExecutor = callback;
+        builder.progressInterval = 0L;
+        mConaco.load(builder);
+        mDisk.runAll();
+        Thread network = new Thread() {
+            @Override
+            public void run() {
+                mNetwork.runAll();
+            }
+        };
+        network.start();
+
+        // Wait for a progress of the first half
+        long deadline = System.currentTimeMillis() + 5000;
+        while (unikery.mEvents.size() < 3 && System.currentTimeMillis() < deadline) {
+            callback.runAll();
+            Thread.sleep(10);
+        }
+        mConaco.cancel(unikery);
+        half.countDown();
+        network.join(5000);
+        callback.runAll();
+
+        // Cancel calls onMiss(SOURCE_MEMORY) then onCancel
+        List<String> events = unikery.mEvents;
+        int n = events.size();
+        assertTrue(n >= 5);
+        assertEquals(Arrays.asList("miss0", "miss1"), events.subList(0, 2));
+        assertEquals(Arrays.asList("miss0", "cancel"), events.subList(n - 2, n));
+        for (String event : events.subList(2, n - 2)) {
+            assertTrue(event.startsWith("progress"));
+            assertFalse(event.equals("progress262144/262144"));
+        }
+    }
+
+    /**
+     * Decodes all bytes fed so far as a string, records the thread of decodePartial.
+     */
+    private static class ProgressiveStringHelper extends StringHelper
+            implements ProgressiveValueHelper<String> {
+
+        private volatile Thread mDecodeThread;
+
+        @Override
+        public ProgressiveDecoder<String> newProgressiveDecoder(@Nullable String mediaType) {
+            return new ProgressiveDecoder<String>() {
+                private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    mBytes.write(b, off, len);
+                }
+
+                @Override
+                public String decodePartial() {
+                    mDecodeThread = Thread.currentThread();
+                    return new String(mBytes.toByteArray(), UTF_8);
+                }
+
+                @Override
+                public void close() {}
+            };
+        }
+    }
+
+    private class PartialUnikery extends TestUnikery implements ProgressiveUnikery<String> {
+
+        private final CountDownLatch mPartial = new CountDownLatch(1);
+
+        @Override
+        public void onGetPartialValue(String value) {
+            record("partial");
+            mPartial.countDown();
+        }
+    }
+
+    @Test
+    public void partialValueIsDecodedInDecodeExecutor() throws Exception {
+        final String body = largeBody(100);
+        final CountDownLatch rest = new CountDownLatch(1);
+        mHandler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] bytes = body.getBytes(UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(bytes, 0, 60);
+                os.flush();
+                try {
+                    rest.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                os.write(bytes, 60, 40);
+                os.close();
+            }
+        };
+
+        ProgressiveStringHelper helper = new ProgressiveStringHelper();
+        ExecutorService decodeExecutor = Executors.newSingleThreadExecutor();
+        PartialUnikery unikery = new PartialUnikery();
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.helper = helper;
+        builder.decodeExecutor = decodeExecutor;
+        builder.progressiveSteps = new int[] {50};
+        mConaco.load(builder);
+        mDisk.runAll();
+
+        Thread network = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mNetwork.runAll();
+            }
+        });
+        network.start();
+        try {
+            assertTrue(unikery.mPartial.await(10, TimeUnit.SECONDS));
+            assertTrue(helper.mDecodeThread != network);
+        } finally {
+            rest.countDown();
+            network.join();
+        }
+        decodeExecutor.shutdown();
+        assertTrue(decodeExecutor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("miss0", "miss1", "partial", "value2=" + body), unikery.mEvents);
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Downloads in segments, and downloads resumed with Range.
+ */
+public class RangeTest extends ConacoTestCase {
+
+    /**
+     * Answer with the body and {@code ETag: "r1"}, a {@code Range} request
+     * gets the range with 206. Ranges asked are recorded.
+     */
+    private static class RangeHandler implements HttpHandler {
+
+        private final byte[] mBody;
+        private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+        // Bytes to send before the connection is lost, -1 for all
+        private volatile int mCut = -1;
+        // True to answer 503 to range requests
+        private volatile boolean mFailRanges;
+        // The code to answer range requests with instead of 206, 0 for 206
+        private volatile int mRangeError;
+
+        public RangeHandler(byte[] body) {
+            mBody = body;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            exchange.getResponseHeaders().add("ETag", "\"r1\"");
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            int start = 0;
+            int end = mBody.length - 1;
+            int code = 200;
+            if (range != null && (ifRange == null || "\"r1\"".equals(ifRange))) {
+                mRanges.add(range);
+                if (mFailRanges) {
+                    respond(exchange, 503, "");
+                    return;
+                }
+                if (mRangeError != 0) {
+                    respond(exchange, mRangeError, "error");
+                    return;
+                }
+                String[] pair = range.substring("bytes=".length()).split("-", -1);
+                start = Integer.parseInt(pair[0]);
+                if (!pair[1].isEmpty()) {
+                    end = Integer.parseInt(pair[1]);
+                }
+                code = 206;
+                exchange.getResponseHeaders().add("Content-Range",
+                        "bytes " + start + "-" + end + "/" + mBody.length);
+            }
+            exchange.sendResponseHeaders(code, end - start + 1);
+            OutputStream os = exchange.getResponseBody();
+            if (mCut >= 0) {
+                os.write(mBody, start, mCut);
+                // The connection is closed before the body is complete
+                return;
+            }
+            os.write(mBody, start, end - start + 1);
+            os.close();
+        }
+    }
+
+    @Test
+    public void segmentsAreLimitedByHost() {
+        String body = largeBody(2048 * 1024);
+        RangeHandler handler = new RangeHandler(body.getBytes(UTF_8));
+        mHandler = handler;
+        TestUnikery unikery = new TestUnikery();
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.segments = 4;
+        mConaco.load(builder);
+        runJobs();
+
+        assertEquals(3, unikery.mEvents.size());
+        assertTrue(unikery.mEvents.get(2).equals("value2=" + body));
+        // The job holds one of 3 slots of the host, 2 more segments get the others
+        List<String> ranges = new ArrayList<>(handler.mRanges);
+        Collections.sort(ranges);
+        assertEquals(Arrays.asList("bytes=1398102-2097151", "bytes=699051-1398101"), ranges);
+        assertNoSegmentFile();
+    }
+
+    /**
+     * The file of segments is in disk cache directory, check it is gone.
+     */
+    private void assertNoSegmentFile() {
+        File[] files = mDiskCacheDir.listFiles();
+        for (File file : files) {
+            assertFalse(file.getName().endsWith(".segments"));
+        }
+    }
+
+    @Test
+    public void failedSegmentLeavesNoFile() {
+        RangeHandler handler = new RangeHandler(largeBody(2048 * 1024).getBytes(UTF_8));
+        handler.mFailRanges = true;
+        mHandler = handler;
+        TestUnikery unikery = new TestUnikery();
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.segments = 2;
+        mConaco.load(builder);
+        runJobs();
+
+        assertEquals(1, handler.mRanges.size());
+        assertEquals(Arrays.asList("miss0", "miss1", "miss2", "failure"), unikery.mEvents);
+        assertNoSegmentFile();
+    }
+
+    @Test
+    public void lostDownloadIsResumed() throws IOException {
+        mConaco = newConaco(mTemp.newFolder("partial"));
+        String body = largeBody(300 * 1024);
+        RangeHandler handler = new RangeHandler(body.getBytes(UTF_8));
+        handler.mCut = 100 * 1024;
+        mHandler = handler;
+        TestUnikery first = new TestUnikery();
+        mConaco.load(newBuilder(first, "k"));
+        runJobs();
+        assertEquals(Arrays.asList("miss0", "miss1", "miss2", "failure"), first.mEvents);
+
+        handler.mCut = -1;
+        TestUnikery second = new TestUnikery();
+        mConaco.load(newBuilder(second, "k"));
+        runJobs();
+        assertEquals(Arrays.asList("miss0", "miss1", "value2=" + body), second.mEvents);
+        // Only the rest is asked
+        assertEquals(Collections.singletonList("bytes=102400-"), handler.mRanges);
+    }
+
+    @Test
+    public void unsatisfiableRangeStartsAgain() throws IOException {
+        mConaco = newConaco(mTemp.newFolder("partial"));
+        String body = largeBody(300 * 1024);
+        RangeHandler handler = new RangeHandler(body.getBytes(UTF_8));
+        handler.mCut = 100 * 1024;
+        mHandler = handler;
+        mConaco.load(newBuilder(new TestUnikery(), "k"));
+        runJobs();
+
+        handler.mCut = -1;
+        handler.mRangeError = 416;
+        TestUnikery unikery = new TestUnikery();
+        mConaco.load(newBuilder(unikery, "k"));
+        runJobs();
+
+        // The error is not the value, the whole body is asked again
+        assertEquals(Arrays.asList("miss0", "miss1", "value2=" + body), unikery.mEvents);
+        assertEquals(Collections.singletonList("bytes=102400-"), handler.mRanges);
+        assertEquals(body, readFromDisk(mConaco.getBeerBelly(), "k"));
+    }
+
+    @Test
+    public void failedRangeIsNotCached() throws IOException {
+        mConaco = newConaco(mTemp.newFolder("partial"));
+        RangeHandler handler = new RangeHandler(largeBody(300 * 1024).getBytes(UTF_8));
+        handler.mCut = 100 * 1024;
+        mHandler = handler;
+        mConaco.load(newBuilder(new TestUnikery(), "k"));
+        runJobs();
+
+        handler.mCut = -1;
+        handler.mRangeError = 404;
+        TestUnikery unikery = new TestUnikery();
+        mConaco.load(newBuilder(unikery, "k"));
+        runJobs();
+
+        assertEquals(Arrays.asList("miss0", "miss1", "miss2", "failure"), unikery.mEvents);
+        assertFalse(mConaco.getBeerBelly().getDiskCache().contain("k"));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stale disk cache entries are checked with the server.
+ */
+public class RevalidateTest extends ConacoTestCase {
+
+    /**
+     * Answer with the body and {@code ETag: "v1"}, or with
+     * {@code code} if it is a conditional request.
+     */
+    private static class RevalidateHandler implements HttpHandler {
+
+        private final int mCode;
+        private final String mBody;
+        private volatile String mIfNoneMatch;
+
+        public RevalidateHandler(int code, String body) {
+            mCode = code;
+            mBody = body;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch == null) {
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                respond(exchange, 200, "one");
+            } else {
+                mIfNoneMatch = ifNoneMatch;
+                respond(exchange, mCode, mBody);
+            }
+        }
+    }
+
+    /**
+     * Load the key twice, the second load finds a stale entry.
+     */
+    private TestUnikery loadStale(RevalidateHandler handler) throws InterruptedException {
+        mHandler = handler;
+        ConacoTask.Builder<String> first = newBuilder(new TestUnikery(), "k");
+        first.maxAge = 0L;
+        mConaco.load(first);
+        runJobs();
+        Thread.sleep(5);
+
+        TestUnikery unikery = new TestUnikery();
+        ConacoTask.Builder<String> second = newBuilder(unikery, "k");
+        second.maxAge = 0L;
+        second.useMemoryCache = false;
+        mConaco.load(second);
+        runJobs();
+        assertEquals("\"v1\"", handler.mIfNoneMatch);
+        return unikery;
+    }
+
+    @Test
+    public void revalidateNotModified() throws InterruptedException {
+        TestUnikery unikery = loadStale(new RevalidateHandler(304, ""));
+        assertEquals(Arrays.asList("miss0", "value1=one"), unikery.mEvents);
+    }
+
+    @Test
+    public void revalidateModified() throws InterruptedException {
+        TestUnikery unikery = loadStale(new RevalidateHandler(200, "two"));
+        assertEquals(Arrays.asList("miss0", "miss1", "value2=two"), unikery.mEvents);
+        assertEquals("two", getFromDisk("k"));
+        // No validators in the new response
+        assertFalse(mConaco.getBeerBelly().getDiskCache().contain("k.validators"));
+    }
+
+    @Test
+    public void revalidateServerError() throws InterruptedException {
+        TestUnikery unikery = loadStale(new RevalidateHandler(503, "error"));
+        assertEquals(Arrays.asList("miss0", "value1=one"), unikery.mEvents);
+        assertEquals("one", getFromDisk("k"));
+    }
+
+    @Test
+    public void validatorsAreRemovedWithEntry() throws InterruptedException {
+        mHandler = new RevalidateHandler(304, "");
+        ConacoTask.Builder<String> builder = newBuilder(new TestUnikery(), "k");
+        builder.maxAge = 0L;
+        mConaco.load(builder);
+        runJobs();
+        assertTrue(mConaco.getBeerBelly().getDiskCache().contain("k.validators"));
+
+        mConaco.getBeerBelly().removeFromDisk("k");
+        assertFalse(mConaco.getBeerBelly().getDiskCache().contain("k"));
+        assertFalse(mConaco.getBeerBelly().getDiskCache().contain("k.validators"));
+    }
+
+    @Test
+    public void noValidatorsWithoutRevalidation() {
+        mHandler = body("plain");
+        ConacoTask.Builder<String> builder = newBuilder(new TestUnikery(), "k");
+        builder.maxAge = 0L;
+        mConaco.load(builder);
+        runJobs();
+        assertEquals("plain", getFromDisk("k"));
+        assertFalse(mConaco.getBeerBelly().getDiskCache().contain("k.validators"));
+    }
+}
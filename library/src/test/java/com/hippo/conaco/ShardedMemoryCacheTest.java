@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShardedMemoryCacheTest {
+
+    private static final int MB = 1024 * 1024;
+
+    private static class Counter implements MemoryCache.Callback<Integer> {
+
+        private final AtomicInteger mAdded = new AtomicInteger();
+        private final AtomicInteger mRemoved = new AtomicInteger();
+
+        @Override
+        public int sizeOf(String key, Integer value) {
+            return value;
+        }
+
+        @Override
+        public void onEntryAdded(String key, Integer value) {
+            mAdded.incrementAndGet();
+        }
+
+        @Override
+        public void onEntryRemoved(boolean evicted, String key, Integer oldValue, Integer newValue) {
+            mRemoved.incrementAndGet();
+        }
+    }
+
+    private static final ShardedMemoryCache.ShardFactory<Integer> LRU =
+            new ShardedMemoryCache.ShardFactory<Integer>() {
+                @Override
+                public MemoryCache<Integer> create(int maxSize, MemoryCache.Callback<Integer> callback) {
+                    return new LruMemoryCache<>(maxSize, callback);
+                }
+            };
+
+    @Test
+    public void shardCount() {
+        Counter counter = new Counter();
+        assertEquals(1, new ShardedMemoryCache<>(MB, 8, counter, LRU).getShardCount());
+        assertEquals(2, new ShardedMemoryCache<>(12 * MB, 8, counter, LRU).getShardCount());
+        assertEquals(4, new ShardedMemoryCache<>(64 * MB, 6, counter, LRU).getShardCount());
+    }
+
+    @Test
+    public void concurrentPutsKeepBudget() throws InterruptedException {
+        final Counter counter = new Counter();
+        final ShardedMemoryCache<Integer> cache = new ShardedMemoryCache<>(32 * MB, 8, counter, LRU);
+        assertEquals(8, cache.getShardCount());
+
+        int threads = 8;
+        final CountDownLatch latch = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        String key = "key" + ((i * 31 + seed) % 5000);
+                        if (cache.get(key) == null) {
+                            cache.put(key, 64 * 1024);
+                        }
+                        if (i % 100 == 0) {
+                            cache.remove(key);
+                        }
+                    }
+                    latch.countDown();
+                }
+            }.start();
+        }
+        assertTrue(latch.await(60, TimeUnit.SECONDS));
+
+        assertTrue(cache.size() <= cache.maxSize());
+        assertEquals(cache.count() * 64 * 1024, cache.size());
+        assertEquals(counter.mAdded.get() - counter.mRemoved.get(), cache.count());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(counter.mAdded.get(), counter.mRemoved.get());
+    }
+
+    @Test
+    public void largeValueSurvivesPut() {
+        Counter counter = new Counter();
+        ShardedMemoryCache<Integer> cache = new ShardedMemoryCache<>(32 * MB, 8, counter, LRU);
+        assertEquals(8, cache.getShardCount());
+
+        // Fill all shards
+        for (int i = 0; i < 256; i++) {
+            cache.put("small" + i, 128 * 1024);
+        }
+        assertTrue(cache.size() > 24 * MB);
+
+        cache.put("large", 6 * MB);
+        assertEquals(6 * MB, (int) cache.get("large"));
+        assertTrue(cache.size() <= cache.maxSize());
+        assertEquals(counter.mAdded.get() - counter.mRemoved.get(), cache.count());
+
+        // Same key with a small value leaves the overflow
+        cache.put("large", 1024);
+        assertEquals(1024, (int) cache.get("large"));
+        assertEquals(counter.mAdded.get() - counter.mRemoved.get(), cache.count());
+
+        assertEquals(1024, (int) cache.remove("large"));
+        assertNull(cache.get("large"));
+    }
+
+    @Test
+    public void concurrentSameKeyPutAndRemove() throws Exception {
+        final Counter counter = new Counter();
+        final ShardedMemoryCache<Integer> cache = new ShardedMemoryCache<>(32 * MB, 8, counter, LRU);
+        assertEquals(8, cache.getShardCount());
+
+        // Each round a large value for the overflow and a small
+        // value for the shard are put at the same time
+        final int rounds = 5000;
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        final int[] values = {5 * MB, 1024};
+        for (final int value : values) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < rounds; i++) {
+                            barrier.await();
+                            cache.put("key", value);
+                            barrier.await();
+                        }
+                    } catch (Exception e) {
+                        // The test fails on the barrier
+                    }
+                }
+            }.start();
+        }
+
+        for (int i = 0; i < rounds; i++) {
+            barrier.await(10, TimeUnit.SECONDS);
+            barrier.await(10, TimeUnit.SECONDS);
+
+            // The key is in the shard or in the overflow, never in both
+            assertEquals(1, cache.count());
+            int value = cache.get("key");
+            assertEquals(value, cache.size());
+            assertEquals(value, (int) cache.remove("key"));
+            assertNull(cache.get("key"));
+            assertEquals(0, cache.count());
+            assertEquals(0, cache.size());
+        }
+        assertEquals(counter.mAdded.get(), counter.mRemoved.get());
+    }
+
+    @Test
+    public void putDuringLargePutOfSameKey() throws Exception {
+        final AtomicInteger largeSizeOfCount = new AtomicInteger();
+        final AtomicReference<ShardedMemoryCache<Integer>> cacheRef = new AtomicReference<>();
+        Counter counter = new Counter() {
+            @Override
+            public int sizeOf(String key, Integer value) {
+                // A small value of the key is put just before the large one goes to the overflow
+                if (value == 5 * MB && largeSizeOfCount.incrementAndGet() == 2) {
+                    Thread thread = new Thread() {
+                        @Override
+                        public void run() {
+                            cacheRef.get().put("key", 1024);
+                        }
+                    };
+                    thread.start();
+                    try {
+                        // It waits for the large put if the key is locked
+                        thread.join(200);
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return value;
+            }
+        };
+        ShardedMemoryCache<Integer> cache = new ShardedMemoryCache<>(32 * MB, 8, counter, LRU);
+        cacheRef.set(cache);
+
+        cache.put("key", 5 * MB);
+        for (int i = 0; i < 50 && cache.size() == 5 * MB; i++) {
+            Thread.sleep(10);
+        }
+
+        // The small value replaced the large one
+        assertEquals(1, cache.count());
+        assertEquals(1024, (int) cache.get("key"));
+        assertEquals(1024, (int) cache.remove("key"));
+        assertNull(cache.get("key"));
+        assertEquals(0, cache.size());
+        assertEquals(counter.mAdded.get(), counter.mRemoved.get());
+    }
+
+    @Test
+    public void largeValuesShareBudget() {
+        Counter counter = new Counter();
+        ShardedMemoryCache<Integer> cache = new ShardedMemoryCache<>(32 * MB, 8, counter, LRU);
+
+        for (int i = 0; i < 20; i++) {
+            cache.put("large" + i, 10 * MB);
+            cache.put("small" + i, MB);
+            assertTrue(cache.size() <= cache.maxSize());
+        }
+        assertEquals(10 * MB, (int) cache.get("large19"));
+
+        cache.trimToSize(0, Integer.MAX_VALUE);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.count());
+    }
+
+    @Test
+    public void evictionMovesOnAcrossShards() {
+        Counter counter = new Counter();
+        ShardedMemoryCache<Integer> cache = new ShardedMemoryCache<>(32 * MB, 8, counter, LRU);
+        for (int i = 0; i < 256; i++) {
+            cache.put("small" + i, 128 * 1024);
+        }
+
+        // Each eviction starts from the next shard, so they are spread
+        int before = cache.count();
+        for (int i = 0; i < 8; i++) {
+            assertTrue(cache.evictOne());
+        }
+        assertEquals(before - 8, cache.count());
+        cache.trimToSize(16 * MB, Integer.MAX_VALUE);
+        assertTrue(cache.size() <= 16 * MB);
+    }
+}
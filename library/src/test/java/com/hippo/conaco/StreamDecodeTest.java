@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.hippo.streampipe.InputStreamPipe;
+import com.hippo.streampipe.OutputStreamPipe;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Values decoded while downloading.
+ */
+public class StreamDecodeTest extends ConacoTestCase {
+
+    /**
+     * Counts down after the first read of the stream, returns null if it fails.
+     */
+    private static class StreamStringHelper extends StringHelper {
+
+        private final CountDownLatch mFirstRead = new CountDownLatch(1);
+        volatile boolean mFail;
+
+        @Override
+        public String decode(InputStreamPipe isPipe) {
+            try {
+                isPipe.obtain();
+                InputStream is = isPipe.open();
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    os.write(buffer, 0, n);
+                    mFirstRead.countDown();
+                }
+                return mFail ? null : new String(os.toByteArray(), UTF_8);
+            } catch (IOException e) {
+                return null;
+            } finally {
+                isPipe.close();
+                isPipe.release();
+            }
+        }
+    }
+
+    /**
+     * Writes to disk cache fail after some bytes.
+     */
+    private static class BrokenDiskCache extends ValueCache<String> {
+
+        public BrokenDiskCache(Conaco.Builder<String> params) {
+            super(params, null);
+        }
+
+        @Override
+        OutputStreamPipe getDiskOutputStreamPipe(String key) {
+            final OutputStreamPipe pipe = super.getDiskOutputStreamPipe(key);
+            return new OutputStreamPipe() {
+                @Override
+                public void obtain() {
+                    pipe.obtain();
+                }
+
+                @Override
+                public void release() {
+                    pipe.release();
+                }
+
+                @Override
+                public OutputStream open() throws IOException {
+                    final OutputStream os = pipe.open();
+                    return new OutputStream() {
+                        private int mWritten;
+
+                        @Override
+                        public void write(int b) throws IOException {
+                            write(new byte[] {(byte) b}, 0, 1);
+                        }
+
+                        @Override
+                        public void write(byte[] b, int off, int len) throws IOException {
+                            if (mWritten + len > 1024) {
+                                throw new IOException("No space left");
+                            }
+                            os.write(b, off, len);
+                            mWritten += len;
+                        }
+                    };
+                }
+
+                @Override
+                public void close() {
+                    pipe.close();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void streamDecodeWhileDownloading() throws IOException {
+        final String body = largeBody(256 * 1024);
+        final StreamStringHelper helper = new StreamStringHelper();
+        final AtomicBoolean decodedEarly = new AtomicBoolean();
+        mHandler = new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] bytes = body.getBytes(UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream os = exchange.getResponseBody();
+                os.write(bytes, 0, bytes.length / 2);
+                os.flush();
+                // The rest is sent after the decoder gets the first bytes
+                try {
+                    decodedEarly.set(helper.mFirstRead.await(10, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+                os.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+                os.close();
+            }
+        };
+        QueueExecutor decode = new QueueExecutor("decode");
+        TestUnikery unikery = new TestUnikery();
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.helper = helper;
+        builder.streamDecode = true;
+        builder.decodeExecutor = decode;
+        mConaco.load(builder);
+        runJobs();
+
+        assertTrue(decodedEarly.get());
+        // Decoded in the network job
+        assertTrue(decode.mQueue.isEmpty());
+        assertEquals(Arrays.asList("miss0", "miss1", "value2=" + body), unikery.mEvents);
+        // The bytes on disk are the body
+        assertEquals(body, readFromDisk(mConaco.getBeerBelly(), "k"));
+    }
+
+    @Test
+    public void failedStreamDecodeLeavesNoDiskEntry() throws IOException {
+        mHandler = body(largeBody(64 * 1024));
+        StreamStringHelper helper = new StreamStringHelper();
+        helper.mFail = true;
+        TestUnikery unikery = new TestUnikery();
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.helper = helper;
+        builder.streamDecode = true;
+        mConaco.load(builder);
+        runJobs();
+
+        assertEquals(Arrays.asList("miss0", "miss1", "miss2", "failure"), unikery.mEvents);
+        assertFalse(mConaco.getBeerBelly().getDiskCache().contain("k"));
+        assertNull(readFromDisk(mConaco.getBeerBelly(), "k"));
+    }
+
+    @Test
+    public void failedDiskWriteStillDeliversStreamDecodedValue() throws IOException {
+        String body = largeBody(64 * 1024);
+        mHandler = body(body);
+        BrokenDiskCache cache = new BrokenDiskCache(newConacoBuilder(null));
+        TestUnikery unikery = new TestUnikery();
+        ConacoTask.Builder<String> builder = newBuilder(unikery, "k");
+        builder.helper = new StreamStringHelper();
+        builder.cache = cache;
+        builder.streamDecode = true;
+        mConaco.load(builder);
+        runJobs();
+
+        // The decoder gets all bytes, the broken entry is dropped
+        assertEquals(Arrays.asList("miss0", "miss1", "value2=" + body), unikery.mEvents);
+        assertFalse(cache.getDiskCache().contain("k"));
+        assertNull(readFromDisk(cache, "k"));
+    }
+}
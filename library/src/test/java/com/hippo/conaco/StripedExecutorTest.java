@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StripedExecutorTest {
+
+    @Test
+    public void sameKeyRunsInOrder() throws Exception {
+        StripedExecutor executor = new StripedExecutor(4, Executors.defaultThreadFactory());
+        final int count = 200;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicBoolean broken = new AtomicBoolean();
+
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (!next.compareAndSet(index, index + 1)) {
+                        broken.set(true);
+                    }
+                    latch.countDown();
+                }
+            }, "key");
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertFalse(broken.get());
+        assertEquals(count, next.get());
+    }
+
+    @Test
+    public void differentKeysRunConcurrently() throws Exception {
+        StripedExecutor executor = new StripedExecutor(2, Executors.defaultThreadFactory());
+        final CountDownLatch started = new CountDownLatch(2);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // Find two keys in different stripes
+        String key1 = "a";
+        String key2 = "b";
+        for (int i = 0; executor.forKey(key1) == executor.forKey(key2); i++) {
+            key2 = "b" + i;
+        }
+
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+        };
+        executor.execute(job, key1);
+        executor.execute(job, key2);
+
+        // Both jobs block until both of them are started
+        boolean concurrent = started.await(10, TimeUnit.SECONDS);
+        release.countDown();
+        assertTrue(concurrent);
+    }
+
+    @Test
+    public void concurrencyIsBounded() throws Exception {
+        final int concurrency = 3;
+        StripedExecutor executor = new StripedExecutor(concurrency, Executors.defaultThreadFactory());
+        final int count = 100;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        for (int i = 0; i < count; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    for (;;) {
+                        int max = maxRunning.get();
+                        if (now <= max || maxRunning.compareAndSet(max, now)) {
+                            break;
+                        }
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    running.decrementAndGet();
+                    latch.countDown();
+                }
+            }, "key" + i);
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(concurrency, executor.getConcurrency());
+        assertTrue(maxRunning.get() <= concurrency);
+    }
+}
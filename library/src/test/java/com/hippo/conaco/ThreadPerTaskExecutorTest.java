@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+public class ThreadPerTaskExecutorTest {
+
+    @Test
+    public void blockingJobsDoNotStarve() throws Exception {
+        ThreadPerTaskExecutor executor = new ThreadPerTaskExecutor("Test");
+        final int count = 500;
+        final CountDownLatch started = new CountDownLatch(count);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        for (int i = 0; i < count; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                }
+            });
+        }
+
+        // All jobs block until all of them are started
+        boolean concurrent = started.await(30, TimeUnit.SECONDS);
+        release.countDown();
+        assertTrue(concurrent);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ValidatorsTest {
+
+    private static Response response(int code, String eTag, String lastModified) {
+        Response.Builder builder = new Response.Builder()
+                .request(new Request.Builder().url("http://example.com/").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code);
+        if (eTag != null) {
+            builder.header("ETag", eTag);
+        }
+        if (lastModified != null) {
+            builder.header("Last-Modified", lastModified);
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void conditionalHeaders() {
+        Validators validators = Validators.from(response(200, "\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT"));
+        Request.Builder builder = new Request.Builder().url("http://example.com/");
+        validators.addTo(builder);
+        Request request = builder.build();
+        assertEquals("\"abc\"", request.header("If-None-Match"));
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", request.header("If-Modified-Since"));
+    }
+
+    @Test
+    public void noValidators() {
+        Validators validators = Validators.from(response(200, null, null));
+        assertFalse(validators.canRevalidate());
+        Request.Builder builder = new Request.Builder().url("http://example.com/");
+        validators.addTo(builder);
+        assertNull(builder.build().header("If-None-Match"));
+    }
+
+    @Test
+    public void renewKeepsOldValidators() {
+        Validators old = new Validators("\"abc\"", "Wed, 21 Oct 2015 07:28:00 GMT", 0L);
+        assertTrue(old.isStale(1000L, 1001L));
+        assertFalse(old.isStale(1000L, 1000L));
+
+        Validators renewed = old.renew(response(304, "\"def\"", null));
+        assertEquals("\"def\"", renewed.eTag);
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", renewed.lastModified);
+        assertFalse(renewed.isStale(1000L, System.currentTimeMillis()));
+    }
+}
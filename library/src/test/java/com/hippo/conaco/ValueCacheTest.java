@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import com.hippo.streampipe.InputStreamPipe;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ValueCacheTest {
+
+    private static class Value {
+        private final int size;
+
+        private Value(int size) {
+            this.size = size;
+        }
+    }
+
+    private static class Helper implements ReusableValueHelper<Value> {
+
+        private final Set<Value> mReusable = new HashSet<>();
+        private final List<Value> mRemoved = new ArrayList<>();
+
+        @Override
+        public Value decode(InputStreamPipe isPipe) {
+            return null;
+        }
+
+        @Override
+        public Value decode(InputStreamPipe isPipe, ValuePool<Value> pool) {
+            return null;
+        }
+
+        @Override
+        public int sizeOf(String key, Value value) {
+            return value.size;
+        }
+
+        @Override
+        public void onAddToMemoryCache(String key, Value value) {}
+
+        @Override
+        public void onRemoveFromMemoryCache(String key, Value value) {
+            mRemoved.add(value);
+        }
+
+        @Override
+        public boolean canReuse(String key, Value value) {
+            // Asked before it is removed, so never a recycled one
+            assertTrue(!mRemoved.contains(value));
+            return mReusable.contains(value);
+        }
+
+        @Override
+        public boolean useMemoryCache(String key, Value value) {
+            return true;
+        }
+    }
+
+    private static ValueCache<Value> create(Helper helper, ValuePool<Value> pool) {
+        Conaco.Builder<Value> builder = new Conaco.Builder<>();
+        builder.valueHelper = helper;
+        builder.hasMemoryCache = true;
+        builder.memoryCacheMaxSize = 10;
+        builder.memoryCacheShardCount = 1;
+        builder.weakMemoryCache = true;
+        return new ValueCache<>(builder, pool);
+    }
+
+    @Test
+    public void reusableValueGoesToPoolOnly() {
+        Helper helper = new Helper();
+        ValuePool<Value> pool = new ValuePool<>(100);
+        ValueCache<Value> cache = create(helper, pool);
+
+        Value reusable = new Value(10);
+        helper.mReusable.add(reusable);
+        cache.putToMemory("a", reusable);
+        cache.putToMemory("b", new Value(10));
+
+        // Handed to the pool, not removed and not in the weak tier
+        assertTrue(helper.mRemoved.isEmpty());
+        assertNull(cache.getFromMemory("a"));
+        assertSame(reusable, pool.acquire(10));
+    }
+
+    @Test
+    public void otherValueGoesToWeakTier() {
+        Helper helper = new Helper();
+        ValuePool<Value> pool = new ValuePool<>(100);
+        ValueCache<Value> cache = create(helper, pool);
+
+        Value held = new Value(10);
+        cache.putToMemory("a", held);
+        cache.putToMemory("b", new Value(10));
+
+        assertEquals(1, helper.mRemoved.size());
+        assertSame(held, helper.mRemoved.get(0));
+        assertEquals(0, pool.count());
+        // Second chance
+        assertSame(held, cache.getFromMemory("a"));
+    }
+}
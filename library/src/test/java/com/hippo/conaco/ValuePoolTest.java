@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ValuePoolTest {
+
+    @Test
+    public void acquireBySize() {
+        ValuePool<String> pool = new ValuePool<>(100);
+        pool.release("a10", 10);
+        pool.release("b20", 20);
+        pool.release("c20", 20);
+
+        assertNull(pool.acquire(15));
+        assertEquals("c20", pool.acquire(20));
+        assertEquals("a10", pool.acquire(5, 15));
+        assertEquals("b20", pool.acquire(11, 40));
+        assertNull(pool.acquire(1, 100));
+
+        assertEquals(3, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+        assertEquals(0, pool.size());
+        assertEquals(0, pool.count());
+    }
+
+    @Test
+    public void dropsLeastRecentlyReleased() {
+        ValuePool<String> pool = new ValuePool<>(30);
+        pool.release("a", 10);
+        pool.release("b", 10);
+        pool.release("c", 10);
+        pool.release("d", 10);
+
+        assertEquals(30, pool.size());
+        assertEquals(3, pool.count());
+        assertEquals("d", pool.acquire(10));
+        assertEquals("c", pool.acquire(10));
+        assertEquals("b", pool.acquire(10));
+        assertNull(pool.acquire(10));
+
+        // Too large for the pool
+        pool.release("e", 31);
+        assertEquals(0, pool.count());
+    }
+
+    @Test
+    public void clear() {
+        ValuePool<String> pool = new ValuePool<>(30);
+        pool.release("a", 10);
+        pool.release("b", 20);
+        pool.clear();
+        assertEquals(0, pool.size());
+        assertNull(pool.acquire(0, 30));
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Hippo Seven
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hippo.conaco;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class WeakValueMapTest {
+
+    @Test
+    public void removeReturnsValue() {
+        WeakValueMap<Object> map = new WeakValueMap<>();
+        Object value = new Object();
+        map.put("a", value);
+        assertSame(value, map.remove("a"));
+        assertNull(map.remove("a"));
+    }
+
+    @Test
+    public void collectedValueIsPurged() {
+        WeakValueMap<Object> map = new WeakValueMap<>();
+        Object held = new Object();
+        map.put("held", held);
+        map.put("dropped", new Object());
+
+        map.collect("dropped");
+        assertEquals(2, map.size());
+        // Any access purges collected entries
+        map.put("held", held);
+
+        assertEquals(1, map.size());
+        assertNull(map.remove("dropped"));
+        assertSame(held, map.remove("held"));
+    }
+
+    @Test
+    public void purgeKeepsNewValueOfKey() {
+        WeakValueMap<Object> map = new WeakValueMap<>();
+        map.put("a", new Object());
+        map.collect("a");
+        Object value = new Object();
+        map.put("a", value);
+
+        assertEquals(1, map.size());
+        assertSame(value, map.remove("a"));
+    }
+}